@@ -0,0 +1,87 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A text that consists of ASCII characters, kept as bytes, one byte for each character.
+ * This is how BaseX keeps strings that only contain ASCII characters, so such a string can be used without decoding it.
+ * Sub-sequences share the bytes of the text.
+ */
+public final class AsciiText implements CharSequence
+{
+
+  private final byte[] bytes;
+  private final int offset;
+  private final int length;
+
+
+  private AsciiText(byte[] bytes, int offset, int length)
+  {
+    this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
+  }
+
+
+  /**
+   * Make a text from bytes, if they are all ASCII characters.
+   * @param bytes the bytes, in UTF-8 or any other encoding that is compatible with ASCII. They must not be changed afterwards.
+   * @return the text, or null if there are bytes that are not ASCII characters.
+   */
+  public static AsciiText of(byte[] bytes)
+  {
+    for (byte b : bytes) {
+      if (b < 0) {
+        return null;
+      }
+    }
+    return new AsciiText(bytes, 0, bytes.length);
+  }
+
+
+  byte[] getBytes()
+  {
+    return bytes;
+  }
+
+
+  int getOffset()
+  {
+    return offset;
+  }
+
+
+  @Override
+  public int length()
+  {
+    return length;
+  }
+
+
+  @Override
+  public char charAt(int index)
+  {
+    if (index < 0 || index >= length) {
+      throw new IndexOutOfBoundsException(index);
+    }
+    return (char)bytes[offset + index];
+  }
+
+
+  @Override
+  public CharSequence subSequence(int start, int end)
+  {
+    if (start < 0 || end > length || start > end) {
+      throw new IndexOutOfBoundsException("["+start+", "+end+") is not within [0, "+length+")");
+    }
+    return new AsciiText(bytes, offset + start, end - start);
+  }
+
+
+  @Override
+  public String toString()
+  {
+    return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+  }
+
+}
@@ -0,0 +1,283 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.basex.query.QueryException;
+import org.greenmercury.basex.xquery.functions.peg.AutomataParser.NodeType;
+import org.greenmercury.basex.xquery.functions.peg.AutomataParser.NonTerminal;
+import org.greenmercury.basex.xquery.functions.peg.Grammar.Definition;
+import org.greenmercury.basex.xquery.functions.peg.Grammar.Expression;
+import org.waxeye.parser.AutomatonTransition;
+import org.waxeye.parser.CharTransition;
+import org.waxeye.parser.Edge;
+import org.waxeye.parser.FA;
+import org.waxeye.parser.ITransition;
+import org.waxeye.parser.PreParsedNonTerminalTransition;
+import org.waxeye.parser.State;
+import org.waxeye.parser.WildCardTransition;
+
+/**
+ * Compiles a {@link Grammar} into Waxeye automata, and makes an {@link AutomataParser} for them.
+ * This replaces the Java code generation by the Waxeye executable.
+ *<p>
+ * Each definition becomes an automaton, at the same index as the definition in the grammar.
+ * Each predicate (&amp;, !) becomes an additional automaton, after the automata for the definitions.
+ * An expression is first translated into a non-deterministic automaton with epsilon-transitions,
+ * which are then removed while keeping the order of the edges, so that alternatives are tried in the order in which they are written.
+ */
+public class AutomataBuilder
+{
+
+  /* The states and edges of an automaton with epsilon-transitions. An epsilon-transition has no transition. */
+
+  private static final class NfaState
+  {
+    private final List<NfaEdge> edges = new ArrayList<>();
+    private boolean match = false;
+  }
+
+  private static final class NfaEdge
+  {
+    private final ITransition<NodeType> transition;
+    private final NfaState target;
+    private final boolean voided;
+
+    NfaEdge(ITransition<NodeType> transition, NfaState target, boolean voided)
+    {
+      this.transition = transition;
+      this.target = target;
+      this.voided = voided;
+    }
+  }
+
+  private final Grammar grammar;
+  private final Map<String, Integer> definitionIndex = new HashMap<>();
+  private final List<FA<NodeType>> automata = new ArrayList<>();
+  private final List<NonTerminal> nonTerminals = new ArrayList<>();
+  private final CharSets charSets = new CharSets();
+
+
+  private AutomataBuilder(Grammar grammar)
+  {
+    this.grammar = grammar;
+  }
+
+
+  /**
+   * Compile a grammar into a parser.
+   * @param grammar the grammar. The first definition is the start non-terminal.
+   * @return a parser for the grammar.
+   * @throws QueryException if the grammar is empty or refers to undefined non-terminals.
+   */
+  public static AutomataParser build(Grammar grammar) throws QueryException
+  {
+    return new AutomataBuilder(grammar).build();
+  }
+
+
+  private AutomataParser build() throws QueryException
+  {
+    List<Definition> definitions = grammar.getDefinitions();
+    if (definitions.isEmpty()) {
+      throw new QueryException("The waxeye grammar does not contain any definitions.");
+    }
+    for (Definition definition : definitions) {
+      definitionIndex.put(definition.name, automata.size());
+      automata.add(null); // Will be set when the automaton has been made.
+      nonTerminals.add(new NonTerminal(definition.name));
+    }
+    for (int index = 0; index < definitions.size(); ++index) {
+      Definition definition = definitions.get(index);
+      automata.set(index, makeAutomaton(definition.expression, NodeType.NON_TERMINAL, definition.mode));
+    }
+    return new AutomataParser(automata, nonTerminals, 0, charSets);
+  }
+
+
+  /**
+   * Make an automaton for an expression.
+   */
+  private FA<NodeType> makeAutomaton(Expression expression, NodeType type, int mode) throws QueryException
+  {
+    NfaState start = new NfaState();
+    NfaState end = new NfaState();
+    end.match = true;
+    addExpression(expression, start, end, false);
+    return removeEpsilons(start, type, mode);
+  }
+
+
+  /**
+   * Add states and edges that recognize an expression, from a given state to a given state.
+   * @param expression
+   * @param from
+   * @param to
+   * @param voided if the results of transitions must be left out of the parse tree.
+   * @throws QueryException
+   */
+  private void addExpression(Expression expression, NfaState from, NfaState to, boolean voided) throws QueryException
+  {
+    switch (expression.kind) {
+      case ALTERNATION:
+        for (Expression alternative : expression.children) {
+          NfaState alternativeStart = new NfaState();
+          addEpsilon(from, alternativeStart);
+          addExpression(alternative, alternativeStart, to, voided);
+        }
+        break;
+      case SEQUENCE:
+        NfaState current = from;
+        for (int i = 0; i < expression.children.size() - 1; ++i) {
+          NfaState next = new NfaState();
+          addExpression(expression.children.get(i), current, next, voided);
+          current = next;
+        }
+        addExpression(expression.children.get(expression.children.size() - 1), current, to, voided);
+        break;
+      case CLOSURE:
+        NfaState loop = new NfaState();
+        NfaState loopEnd = new NfaState();
+        addEpsilon(from, loop);
+        addExpression(expression.children.get(0), loop, loopEnd, voided);
+        addEpsilon(loopEnd, loop);
+        addEpsilon(loop, to);
+        break;
+      case PLUS:
+        NfaState first = new NfaState();
+        addExpression(expression.children.get(0), from, first, voided);
+        addExpression(Expression.of(Grammar.Kind.CLOSURE, expression.children.get(0)), first, to, voided);
+        break;
+      case OPTIONAL:
+        NfaState optional = new NfaState();
+        addEpsilon(from, optional);
+        addExpression(expression.children.get(0), optional, to, voided);
+        addEpsilon(from, to);
+        break;
+      case VOID:
+        addExpression(expression.children.get(0), from, to, true);
+        break;
+      case AND:
+      case NOT:
+        int predicateIndex = automata.size();
+        automata.add(null);
+        nonTerminals.add(new NonTerminal(expression.kind == Grammar.Kind.AND ? "_Pos" : "_Neg"));
+        automata.set(predicateIndex, makeAutomaton(expression.children.get(0), expression.kind == Grammar.Kind.AND ? NodeType.POSITIVE : NodeType.NEGATIVE, FA.VOID));
+        addEdge(from, new AutomatonTransition<NodeType>(predicateIndex), to, voided);
+        break;
+      case IDENTIFIER:
+        Integer index = definitionIndex.get(expression.text);
+        if (index == null) {
+          throw new QueryException("The waxeye grammar refers to the non-terminal '"+expression.text+"', which is not defined.");
+        }
+        addEdge(from, new AutomatonTransition<NodeType>(index), to, voided);
+        break;
+      case PRE_PARSED_NON_TERMINAL:
+        addEdge(from, new PreParsedNonTerminalTransition<NodeType>(expression.text), to, voided);
+        break;
+      case LITERAL:
+      case CASELESS_LITERAL:
+        String literal = expression.text;
+        if (literal.isEmpty()) {
+          addEpsilon(from, to);
+        }
+        NfaState charFrom = from;
+        for (int i = 0; i < literal.length(); ++i) {
+          NfaState charTo = (i == literal.length() - 1) ? to : new NfaState();
+          addEdge(charFrom, charTransition(literal.charAt(i), expression.kind == Grammar.Kind.CASELESS_LITERAL), charTo, voided);
+          charFrom = charTo;
+        }
+        break;
+      case CHAR_CLASS:
+        addEdge(from, charSets.transition(expression.single, expression.min, expression.max), to, voided);
+        break;
+      case WILDCARD:
+        addEdge(from, new WildCardTransition<NodeType>(), to, voided);
+        break;
+    }
+  }
+
+
+  private CharTransition<NodeType> charTransition(char c, boolean caseless)
+  {
+    char lower = Character.toLowerCase(c);
+    char upper = Character.toUpperCase(c);
+    char[] single = (caseless && lower != upper) ? new char[] {lower, upper} : new char[] {c};
+    return charSets.transition(single, new char[0], new char[0]);
+  }
+
+
+  private static void addEpsilon(NfaState from, NfaState to)
+  {
+    from.edges.add(new NfaEdge(null, to, false));
+  }
+
+
+  private static void addEdge(NfaState from, ITransition<NodeType> transition, NfaState to, boolean voided)
+  {
+    from.edges.add(new NfaEdge(transition, to, voided));
+  }
+
+
+  /**
+   * Make an automaton without epsilon-transitions.
+   * The edges of a state are the non-epsilon edges of all states that are reachable by epsilon-transitions, in depth-first order.
+   * @param start the start state of the automaton with epsilon-transitions.
+   * @param type the type of the automaton.
+   * @param mode the mode of the automaton.
+   * @return the automaton without epsilon-transitions, where state 0 is the start state.
+   */
+  private static FA<NodeType> removeEpsilons(NfaState start, NodeType type, int mode)
+  {
+    Map<NfaState, Integer> stateIndex = new HashMap<>();
+    List<NfaState> nfaStates = new ArrayList<>();
+    List<State<NodeType>> states = new ArrayList<>();
+    stateIndex.put(start, 0);
+    nfaStates.add(start);
+    for (int i = 0; i < nfaStates.size(); ++i) {
+      List<NfaEdge> closureEdges = new ArrayList<>();
+      boolean match = epsilonClosure(nfaStates.get(i), closureEdges, new HashSet<>());
+      List<Edge<NodeType>> edges = new ArrayList<>(closureEdges.size());
+      for (NfaEdge edge : closureEdges) {
+        Integer targetIndex = stateIndex.get(edge.target);
+        if (targetIndex == null) {
+          targetIndex = nfaStates.size();
+          stateIndex.put(edge.target, targetIndex);
+          nfaStates.add(edge.target);
+        }
+        edges.add(new Edge<NodeType>(edge.transition, targetIndex, edge.voided));
+      }
+      states.add(new State<NodeType>(edges, match));
+    }
+    return new FA<NodeType>(type, mode, states);
+  }
+
+
+  /**
+   * Collect the non-epsilon edges that are reachable from a state through epsilon-transitions.
+   * @param state the state.
+   * @param edges collects the non-epsilon edges.
+   * @param visited the states that have already been visited.
+   * @return true if a matching state is reachable through epsilon-transitions.
+   */
+  private static boolean epsilonClosure(NfaState state, List<NfaEdge> edges, Set<NfaState> visited)
+  {
+    if (!visited.add(state)) {
+      return false;
+    }
+    boolean match = state.match;
+    for (NfaEdge edge : state.edges) {
+      if (edge.transition == null) {
+        match |= epsilonClosure(edge.target, edges, visited);
+      } else {
+        edges.add(edge);
+      }
+    }
+    return match;
+  }
+
+}
@@ -0,0 +1,545 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiFunction;
+
+import org.waxeye.ast.Char;
+import org.waxeye.ast.Empty;
+import org.waxeye.ast.IAST;
+import org.waxeye.ast.Position;
+import org.waxeye.ast.PreParsedNonTerminal;
+import org.waxeye.input.IParserInput;
+import org.waxeye.input.InputBuffer;
+import org.waxeye.parser.AutomatonTransition;
+import org.waxeye.parser.CharTransition;
+import org.waxeye.parser.Edge;
+import org.waxeye.parser.FA;
+import org.waxeye.parser.IParser;
+import org.waxeye.parser.ITransitionVisitor;
+import org.waxeye.parser.ParseError;
+import org.waxeye.parser.ParseResult;
+import org.waxeye.parser.PreParsedNonTerminalTransition;
+import org.waxeye.parser.State;
+import org.waxeye.parser.WildCardTransition;
+
+/**
+ * A parser that interprets the Waxeye automata for a grammar, as built by the {@link AutomataBuilder}.
+ *<p>
+ * This does the same as the {@link org.waxeye.parser.Parser} that is generated by the Waxeye executable,
+ * but it does not need a generated enum type for the non-terminals, so it does not need to be compiled.
+ * The non-terminal of an automaton is described by a {@link NonTerminal}, and appears in the parse tree as a {@link NonTerminalAST}.
+ *<p>
+ * An AutomataParser is immutable, so one instance can be used by many threads at the same time.
+ * The state of a parse is kept in an object that is made for each call of a parse method,
+ * and settings like the end-of-input check are passed to each call in a {@link Settings} object.
+ * The only state that is shared between parses are the counts of memo table hits, which are used to choose the automata to memoize
+ * when the settings ask for automatic memoization. These counts are thread-safe.
+ *
+ * @author Orlando Hill
+ * @author Nico Verwer
+ */
+public class AutomataParser implements IParser<AutomataParser.NodeType>
+{
+
+  /**
+   * The type of nodes in the parse tree, and of automata.
+   * Automata for definitions have type NON_TERMINAL. Automata for predicates (&amp;, !) have type POSITIVE or NEGATIVE.
+   */
+  public enum NodeType { EMPTY, CHAR, PRE_PARSED_NON_TERMINAL, POSITIVE, NEGATIVE, NON_TERMINAL }
+
+  /**
+   * The non-terminal that is recognized by an automaton.
+   */
+  public static final class NonTerminal
+  {
+    private final String label;
+    private final String waxeyeName;
+
+    public NonTerminal(String label)
+    {
+      this.label = label;
+      this.waxeyeName = label.isEmpty() ? label : Character.toUpperCase(label.charAt(0)) + label.substring(1).replace('-', '_');
+    }
+
+    /**
+     * @return the name of the non-terminal, as it is in the grammar.
+     */
+    public String getLabel()
+    {
+      return label;
+    }
+
+    /**
+     * @return the capitalized name of the non-terminal, as used by the Waxeye generated parser.
+     */
+    public String getWaxeyeName()
+    {
+      return waxeyeName;
+    }
+
+    @Override
+    public String toString()
+    {
+      return label;
+    }
+  }
+
+  private final List<FA<NodeType>> automata;
+  private final List<NonTerminal> nonTerminals;
+  private final int start;
+  private final CharSets charSets;
+  private final IAST<NodeType> empty = new Empty<NodeType>(NodeType.EMPTY);
+  private volatile FirstSet firstSet;
+  private volatile Optional<LiteralPrefixMatcher> literalPrefixMatcher;
+  /* The number of memo table look-ups and hits for each automaton, for automatic memoization. */
+  private final AtomicLongArray memoLookups;
+  private final AtomicLongArray memoHits;
+
+  /* An automaton is memoized automatically until it has this many look-ups, and after that only if enough of them are hits. */
+  private static final long AUTO_MEMOIZE_MIN_LOOKUPS = 1000;
+  private static final long AUTO_MEMOIZE_MIN_HITS_PER_1000_LOOKUPS = 50;
+
+
+  /**
+   * The settings for one parse.
+   */
+  public static final class Settings
+  {
+    /** No end-of-input check, no debugging. */
+    public static final Settings DEFAULT = new Settings(false, false);
+
+    private final boolean eofCheck;
+    private final boolean debug;
+    private final BitSet memoized;
+    private final boolean autoMemoize;
+
+    /**
+     * @param eofCheck if the complete input must be matched.
+     * @param debug if the parser must show what it is doing on standard output.
+     */
+    public Settings(boolean eofCheck, boolean debug)
+    {
+      this(eofCheck, debug, null, false);
+    }
+
+    /**
+     * @param eofCheck if the complete input must be matched.
+     * @param debug if the parser must show what it is doing on standard output.
+     * @param memoized the indexes of the automata whose results are stored in the memo table, or null for all automata.
+     * @param autoMemoize if true, the automata whose results are stored are chosen by the parser, from the memo table hits in earlier parses.
+     *   Then <code>memoized</code> is ignored.
+     */
+    public Settings(boolean eofCheck, boolean debug, BitSet memoized, boolean autoMemoize)
+    {
+      this.eofCheck = eofCheck;
+      this.debug = debug;
+      this.memoized = memoized == null ? null : (BitSet)memoized.clone();
+      this.autoMemoize = autoMemoize;
+    }
+
+    public boolean isEofCheck()
+    {
+      return eofCheck;
+    }
+
+    public boolean isDebug()
+    {
+      return debug;
+    }
+
+    public boolean isAutoMemoize()
+    {
+      return autoMemoize;
+    }
+
+    /**
+     * @param index the index of an automaton.
+     * @return true if the results of the automaton are stored in the memo table, unless memoization is automatic.
+     */
+    public boolean isMemoized(int index)
+    {
+      return memoized == null || memoized.get(index);
+    }
+  }
+
+
+  /**
+   * @param automata the automata for all definitions and predicates in the grammar.
+   * @param nonTerminals the non-terminal for each automaton, at the same index.
+   * @param start the index of the automaton for the start non-terminal.
+   * @param charSets the characters of the character transitions in the automata.
+   */
+  AutomataParser(List<FA<NodeType>> automata, List<NonTerminal> nonTerminals, int start, CharSets charSets)
+  {
+    this.automata = automata;
+    this.nonTerminals = nonTerminals;
+    this.start = start;
+    this.charSets = charSets;
+    this.memoLookups = new AtomicLongArray(automata.size());
+    this.memoHits = new AtomicLongArray(automata.size());
+  }
+
+  public List<FA<NodeType>> getAutomata()
+  {
+    return automata;
+  }
+
+  public List<NonTerminal> getNonTerminals()
+  {
+    return nonTerminals;
+  }
+
+  public int getStart()
+  {
+    return start;
+  }
+
+  /**
+   * @return the characters of the character transitions in the automata.
+   */
+  CharSets getCharSets()
+  {
+    return charSets;
+  }
+
+  /**
+   * @return the characters that a match of the start non-terminal can start with. This is computed when it is first needed.
+   */
+  public FirstSet getFirstSet()
+  {
+    FirstSet result = firstSet;
+    if (result == null) {
+      // Computing the set more than once in concurrent threads does no harm.
+      result = FirstSet.compute(automata, charSets, start);
+      firstSet = result;
+    }
+    return result;
+  }
+
+  /**
+   * @return a matcher for the literal strings that a match of the start non-terminal starts with, or null if there are no such strings.
+   *   This is computed when it is first needed.
+   */
+  public LiteralPrefixMatcher getLiteralPrefixMatcher()
+  {
+    Optional<LiteralPrefixMatcher> result = literalPrefixMatcher;
+    if (result == null) {
+      result = Optional.ofNullable(LiteralPrefixMatcher.build(automata, charSets, start));
+      literalPrefixMatcher = result;
+    }
+    return result.orElse(null);
+  }
+
+  /**
+   * Decide if the results of an automaton are worth storing in the memo table, when memoization is automatic.
+   * This depends on the fraction of look-ups in the memo table that were hits in earlier parses.
+   * Automata for which the results are not stored do not get more look-ups, so the decision does not change after that.
+   * @param index the index of an automaton.
+   * @return true if the results of the automaton should be memoized.
+   */
+  public boolean isWorthMemoizing(int index)
+  {
+    long lookups = memoLookups.get(index);
+    return lookups < AUTO_MEMOIZE_MIN_LOOKUPS || memoHits.get(index) * 1000 >= lookups * AUTO_MEMOIZE_MIN_HITS_PER_1000_LOOKUPS;
+  }
+
+  @Override
+  public ParseResult<NodeType> parse(char[] input)
+  {
+    return parse(new InputBuffer(input), null, Settings.DEFAULT);
+  }
+
+  @Override
+  public ParseResult<NodeType> parse(String input)
+  {
+    return parse(new InputBuffer(input.toCharArray()), null, Settings.DEFAULT);
+  }
+
+  @Override
+  public <ExtendedData> ParseResult<NodeType> parse(IParserInput<ExtendedData> input)
+  {
+    return parse(input, null, Settings.DEFAULT);
+  }
+
+  @Override
+  public <ExtendedData> ParseResult<NodeType> parse(IParserInput<ExtendedData> input, BiFunction<String, IParserInput<ExtendedData>, Integer> preparsedNonTerminalAt)
+  {
+    return parse(input, preparsedNonTerminalAt, Settings.DEFAULT);
+  }
+
+  /**
+   * Parse the input from its current position, with the given settings.
+   * The memo table is taken from the pool for the current thread, and returned after the parse.
+   * @param input the input.
+   * @param preparsedNonTerminalAt determines if a pre-parsed non-terminal is present in the input, or null if there are none.
+   * @param settings the settings for this parse.
+   * @return the result of the parse.
+   */
+  public <ExtendedData> ParseResult<NodeType> parse(IParserInput<ExtendedData> input, BiFunction<String, IParserInput<ExtendedData>, Integer> preparsedNonTerminalAt, Settings settings)
+  {
+    MemoTable memo = MemoTable.acquire();
+    try {
+      return new InnerParser<ExtendedData>(input, preparsedNonTerminalAt, settings, memo).parse();
+    } finally {
+      memo.release();
+    }
+  }
+
+  /**
+   * Parse the input from its current position, with the given settings, re-using the results in a memo table from earlier parses.
+   * @param input the input. This must be the same input for all parses with the memo table, and the parses must start at increasing positions.
+   * @param preparsedNonTerminalAt determines if a pre-parsed non-terminal is present in the input, or null if there are none.
+   * @param settings the settings for this parse.
+   * @param memo the memo table, which must only be used with this parser until it is {@link MemoTable#reset() reset}.
+   * @return the result of the parse.
+   */
+  public <ExtendedData> ParseResult<NodeType> parse(IParserInput<ExtendedData> input, BiFunction<String, IParserInput<ExtendedData>, Integer> preparsedNonTerminalAt, Settings settings, MemoTable memo)
+  {
+    return new InnerParser<ExtendedData>(input, preparsedNonTerminalAt, settings, memo).parse();
+  }
+
+
+  /**
+   * The state of one parse.
+   */
+  private final class InnerParser<ExtendedData> implements ITransitionVisitor<NodeType>
+  {
+    private final IParserInput<ExtendedData> input;
+    private final BiFunction<String, IParserInput<ExtendedData>, Integer> preparsedNonTerminalAt;
+    private final boolean eofCheck;
+    private final boolean debug;
+    private final Settings settings;
+    private final Deque<Integer> automatonStack = new ArrayDeque<>();
+    private final MemoTable memo;
+    private int line = 1;
+    private int column = 0;
+    private boolean lastCR = false;
+    private int errorPos = 0;
+    private int errorLine = 1;
+    private int errorCol = 0;
+    private String errorNT;
+    private int parseDepth = 0;
+
+    InnerParser(IParserInput<ExtendedData> input, BiFunction<String, IParserInput<ExtendedData>, Integer> preparsedNonTerminalAt, Settings settings, MemoTable memo)
+    {
+      this.memo = memo;
+      memo.startParse(input.getPosition());
+      this.input = input;
+      this.preparsedNonTerminalAt = preparsedNonTerminalAt;
+      this.settings = settings;
+      this.eofCheck = settings.isEofCheck();
+      this.debug = settings.isDebug();
+      this.errorNT = nonTerminals.get(start).getWaxeyeName();
+    }
+
+    ParseResult<NodeType> parse()
+    {
+      IAST<NodeType> ast = matchAutomaton(start);
+      ParseError error = null;
+      if (ast == null) {
+        error = new ParseError(errorPos, errorLine, errorCol, errorNT);
+      } else if (eofCheck && input.peek() != IParserInput.EOF) {
+        error = new ParseError(errorPos, errorLine, errorCol, errorNT);
+        ast = null;
+      }
+      return new ParseResult<NodeType>(ast, error);
+    }
+
+    private void restorePos(int pos, ExtendedData extendedData, int line, int col, boolean cr)
+    {
+      input.setPosition(pos);
+      input.setExtendedData(extendedData);
+      this.line = line;
+      this.column = col;
+      this.lastCR = cr;
+    }
+
+    private IAST<NodeType> matchAutomaton(int index)
+    {
+      int startPos = input.getPosition();
+      ExtendedData extendedData = input.getExtendedData();
+      boolean memoize = settings.isAutoMemoize() ? isWorthMemoizing(index) : settings.isMemoized(index);
+      int slot = memoize ? memo.find(index, startPos) : -1;
+      // A result from an earlier parse can only be used if it started in the same input state.
+      boolean hit = slot >= 0 && (memo.generation(slot) == memo.getGeneration() || memo.startExtendedData(slot) == extendedData && memo.startCR(slot) == lastCR);
+      if (memoize && settings.isAutoMemoize()) {
+        memoLookups.incrementAndGet(index);
+        if (hit) {
+          memoHits.incrementAndGet(index);
+        }
+      }
+      if (hit) {
+        @SuppressWarnings("unchecked")
+        IAST<NodeType> result = (IAST<NodeType>)memo.result(slot);
+        @SuppressWarnings("unchecked")
+        ExtendedData endExtendedData = (ExtendedData)memo.endExtendedData(slot);
+        restorePos(memo.endPosition(slot), endExtendedData, memo.line(slot), memo.column(slot), memo.lastCR(slot));
+        debug("[%d/%d] %s cached result: %s", line, column, nonTerminals.get(index), result == null ? null : result.getType());
+        return result;
+      }
+      int startLine = line;
+      int startCol = column;
+      boolean startCR = lastCR;
+      FA<NodeType> automaton = automata.get(index);
+      NodeType type = automaton.getType();
+      debug("[%d/%d] try %s at pos %d", line, column, nonTerminals.get(index), startPos);
+      ++parseDepth;
+      automatonStack.push(index);
+      List<IAST<NodeType>> res = matchState(0);
+      automatonStack.pop();
+      --parseDepth;
+      IAST<NodeType> value;
+      if (type == NodeType.POSITIVE) {
+        restorePos(startPos, extendedData, startLine, startCol, startCR);
+        value = res == null ? null : empty;
+      } else if (type == NodeType.NEGATIVE) {
+        restorePos(startPos, extendedData, startLine, startCol, startCR);
+        if (res == null) {
+          value = empty;
+        } else {
+          updateError();
+          value = null;
+        }
+      } else if (res == null) {
+        updateError();
+        value = null;
+      } else if (automaton.getMode() == FA.VOID) {
+        value = empty;
+      } else if (automaton.getMode() == FA.PRUNE && res.size() <= 1) {
+        value = res.isEmpty() ? empty : res.get(0);
+      } else {
+        value = new NonTerminalAST(nonTerminals.get(index), res, new Position(startPos, input.getPosition()));
+      }
+      if (memoize) {
+        memo.put(index, startPos, value, input.getPosition(), input.getExtendedData(), line, column, lastCR, extendedData, startCR);
+      }
+      debug("[%d/%d] %s result: %s at pos %d to %d", line, column, nonTerminals.get(index), value == null ? null : value.getType(), startPos, input.getPosition());
+      return value;
+    }
+
+    private List<IAST<NodeType>> matchState(int index)
+    {
+      State<NodeType> state = automata.get(automatonStack.peek()).getStates().get(index);
+      for (Edge<NodeType> edge : state.getEdges()) {
+        List<IAST<NodeType>> res = matchEdge(edge);
+        if (res != null) {
+          return res;
+        }
+      }
+      return state.isMatch() ? new ArrayList<IAST<NodeType>>() : null;
+    }
+
+    private List<IAST<NodeType>> matchEdge(Edge<NodeType> edge)
+    {
+      int startPos = input.getPosition();
+      ExtendedData extendedData = input.getExtendedData();
+      int startLine = line;
+      int startCol = column;
+      boolean startCR = lastCR;
+      IAST<NodeType> res = edge.getTrans().acceptVisitor(this);
+      if (res == null) {
+        return null;
+      }
+      List<IAST<NodeType>> transRes = matchState(edge.getState());
+      if (transRes == null) {
+        restorePos(startPos, extendedData, startLine, startCol, startCR);
+        return null;
+      }
+      if (!edge.isVoided() && res != empty) {
+        transRes.add(0, res);
+      }
+      return transRes;
+    }
+
+    private void updateLineCol(char ch)
+    {
+      if (ch == '\r') {
+        ++line;
+        column = 0;
+        lastCR = true;
+      } else {
+        if (ch == '\n') {
+          if (!lastCR) {
+            ++line;
+            column = 0;
+          }
+        } else {
+          ++column;
+        }
+        lastCR = false;
+      }
+    }
+
+    private void updateError()
+    {
+      if (errorPos < input.getPosition()) {
+        errorPos = input.getPosition();
+        errorLine = line;
+        errorCol = column;
+        // The automaton stack is empty when the start automaton fails on a result from the memo table.
+        errorNT = nonTerminals.get(automatonStack.isEmpty() ? start : automatonStack.peek()).getWaxeyeName();
+      }
+    }
+
+    private void debug(String format, Object... args)
+    {
+      if (debug) {
+        System.out.println("  ".repeat(parseDepth) + String.format(format, args));
+      }
+    }
+
+    @Override
+    public IAST<NodeType> visitAutomatonTransition(AutomatonTransition<NodeType> t)
+    {
+      return matchAutomaton(t.getIndex());
+    }
+
+    @Override
+    public IAST<NodeType> visitCharTransition(CharTransition<NodeType> t)
+    {
+      int c = input.peek();
+      if (c != IParserInput.EOF && t.withinSet((char)c)) {
+        input.consume();
+        updateLineCol((char)c);
+        return new Char<NodeType>((char)c, NodeType.CHAR, input.getPosition());
+      }
+      updateError();
+      return null;
+    }
+
+    @Override
+    public IAST<NodeType> visitWildCardTransition(WildCardTransition<NodeType> t)
+    {
+      if (input.peek() == IParserInput.EOF) {
+        updateError();
+        return null;
+      }
+      char c = (char)input.consume();
+      updateLineCol(c);
+      return new Char<NodeType>(c, NodeType.CHAR, input.getPosition());
+    }
+
+    @Override
+    public IAST<NodeType> visitPreParsedNonTerminalTransition(PreParsedNonTerminalTransition<NodeType> t)
+    {
+      int startPos = input.getPosition();
+      int skipChars = preparsedNonTerminalAt == null ? -1 : preparsedNonTerminalAt.apply(t.getName(), input);
+      if (skipChars >= 0) {
+        int endPos = startPos + skipChars;
+        ExtendedData correspondingElement = input.getExtendedData();
+        input.setPosition(endPos);
+        debug("[%d/%d] match: <%s>", line, column, t.getName());
+        return new PreParsedNonTerminal<NodeType, ExtendedData>(NodeType.PRE_PARSED_NON_TERMINAL, t.getName(), new Position(startPos, endPos), correspondingElement);
+      }
+      updateError();
+      return null;
+    }
+  }
+
+}
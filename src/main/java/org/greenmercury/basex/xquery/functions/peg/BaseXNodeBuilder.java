@@ -0,0 +1,153 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.basex.query.QueryContext;
+import org.basex.query.value.Value;
+import org.basex.query.value.ValueBuilder;
+import org.basex.query.value.item.QNm;
+import org.basex.query.value.node.FBuilder;
+import org.basex.query.value.node.FDoc;
+import org.basex.query.value.node.FElem;
+import org.basex.query.value.node.FNode;
+import org.basex.query.value.node.FTxt;
+import org.basex.util.Token;
+import org.greenmercury.smax.SmaxDocument;
+import org.greenmercury.smax.SmaxElement;
+import org.xml.sax.Attributes;
+
+/**
+ * Builds BaseX nodes from a SMAX document, directly from its markup tree and content,
+ * without making a W3C DOM document first.
+ *<p>
+ * Namespaces are declared on the elements where they come into scope.
+ * Attributes named <code>xmlns</code> or <code>xmlns:*</code> are turned into namespace declarations.
+ */
+public final class BaseXNodeBuilder
+{
+
+  private static final String XMLNS = "xmlns";
+
+  private BaseXNodeBuilder()
+  {
+  }
+
+
+  /**
+   * @param smaxDocument a SMAX document.
+   * @return a document node with the root element of the SMAX document.
+   */
+  public static FNode document(SmaxDocument smaxDocument)
+  {
+    return FDoc.build(Token.EMPTY).add(element(smaxDocument)).finish();
+  }
+
+
+  /**
+   * @param smaxDocument a SMAX document.
+   * @return the root element of the SMAX document.
+   */
+  public static FNode element(SmaxDocument smaxDocument)
+  {
+    return build(smaxDocument.getMarkup(), smaxDocument.getContent(), new HashMap<>()).finish();
+  }
+
+
+  /**
+   * @param smaxDocument a SMAX document.
+   * @param qc the query context.
+   * @return the text nodes and elements within the root element of the SMAX document, without the root element.
+   */
+  public static Value children(SmaxDocument smaxDocument, QueryContext qc)
+  {
+    SmaxElement root = smaxDocument.getMarkup();
+    CharSequence content = smaxDocument.getContent();
+    ValueBuilder children = new ValueBuilder(qc);
+    int position = root.getStartPos();
+    if (root.hasChildNodes()) {
+      for (SmaxElement child : root.getChildren()) {
+        if (child.getStartPos() > position) {
+          children.add(new FTxt(content.subSequence(position, child.getStartPos()).toString()));
+        }
+        children.add(build(child, content, new HashMap<>()).finish());
+        position = child.getEndPos();
+      }
+    }
+    if (root.getEndPos() > position) {
+      children.add(new FTxt(content.subSequence(position, root.getEndPos()).toString()));
+    }
+    return children.value();
+  }
+
+
+  /**
+   * Build an element and its descendants.
+   * @param element the SMAX element.
+   * @param content the text content of the SMAX document.
+   * @param namespaces the namespace URI for each prefix that is in scope for the parent element. The default namespace has prefix "".
+   * @return the builder for the element.
+   */
+  private static FBuilder build(SmaxElement element, CharSequence content, Map<String, String> namespaces)
+  {
+    String uri = element.getNamespaceURI() == null ? "" : element.getNamespaceURI();
+    String qualifiedName = element.getQualifiedName() == null ? element.getLocalName() : element.getQualifiedName();
+    FBuilder builder = FElem.build(new QNm(qualifiedName, uri));
+    Map<String, String> scope = namespaces;
+    // Declare the namespace of the element if its prefix is not bound to the same URI in the parent.
+    String prefix = prefix(qualifiedName);
+    if (!uri.equals(namespaces.getOrDefault(prefix, ""))) {
+      builder.declareNS();
+      scope = new HashMap<>(scope);
+      scope.put(prefix, uri);
+    }
+    Attributes attributes = element.getAttributes();
+    if (attributes != null) {
+      for (int i = 0; i < attributes.getLength(); ++i) {
+        String attributeName = attributes.getQName(i);
+        String attributeUri = attributes.getURI(i) == null ? "" : attributes.getURI(i);
+        if (attributeName.equals(XMLNS) || attributeName.startsWith(XMLNS + ":")) {
+          String declaredPrefix = attributeName.equals(XMLNS) ? "" : attributeName.substring(XMLNS.length() + 1);
+          if (!attributes.getValue(i).equals(scope.get(declaredPrefix))) {
+            builder.addNS(Token.token(declaredPrefix), Token.token(attributes.getValue(i)));
+            scope = scope == namespaces ? new HashMap<>(scope) : scope;
+            scope.put(declaredPrefix, attributes.getValue(i));
+          }
+          continue;
+        }
+        String attributePrefix = prefix(attributeName);
+        if (!attributeUri.isEmpty() && !attributeUri.equals(scope.get(attributePrefix))) {
+          builder.addNS(Token.token(attributePrefix), Token.token(attributeUri));
+          scope = scope == namespaces ? new HashMap<>(scope) : scope;
+          scope.put(attributePrefix, attributeUri);
+        }
+        builder.add(new QNm(attributeName, attributeUri), attributes.getValue(i));
+      }
+    }
+    // Add the text and child elements, in document order.
+    int position = element.getStartPos();
+    if (element.hasChildNodes()) {
+      List<SmaxElement> children = element.getChildren();
+      for (SmaxElement child : children) {
+        if (child.getStartPos() > position) {
+          builder.add(new FTxt(content.subSequence(position, child.getStartPos()).toString()));
+        }
+        builder.add(build(child, content, scope));
+        position = child.getEndPos();
+      }
+    }
+    if (element.getEndPos() > position) {
+      builder.add(new FTxt(content.subSequence(position, element.getEndPos()).toString()));
+    }
+    return builder;
+  }
+
+
+  private static String prefix(String qualifiedName)
+  {
+    int colon = qualifiedName.indexOf(':');
+    return colon < 0 ? "" : qualifiedName.substring(0, colon);
+  }
+
+}
@@ -0,0 +1,139 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A one-to-one mapping of characters, used to normalize the input of the parser.
+ * The mapping is a table with an entry for each of the 65536 <code>char</code> values, so mapping a character is one array access.
+ * Because each character is mapped to one character, the positions in the normalized text are the same as in the original text.
+ *<p>
+ * Mappings are known by name. The built-in mappings are:
+ * <ul>
+ *   <li><code>ascii</code> Converts characters to low ASCII characters, see {@link StringUtils#normalizeOneToOne(CharSequence)}.
+ *       This is the mapping for the option <code>normalize=true</code>.</li>
+ *   <li><code>identity</code> Does not change characters. This is useful as the base of other mappings.</li>
+ *   <li><code>lower-case</code> Converts characters to lower case, with {@link Character#toLowerCase(char)}. This is used for the option <code>case-insensitive</code>.</li>
+ * </ul>
+ * Other mappings can be {@link #register(String, CharMapping) registered}, usually made from a built-in mapping with {@link #with(Map)}.
+ */
+public final class CharMapping
+{
+
+  public static final String ASCII = "ascii";
+  public static final String IDENTITY = "identity";
+  public static final String LOWER_CASE = "lower-case";
+
+  private static final Map<String, CharMapping> registry = new ConcurrentHashMap<>();
+
+  static {
+    char[] identity = new char[Character.MAX_VALUE + 1];
+    char[] lowerCase = new char[Character.MAX_VALUE + 1];
+    for (int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; ++c) {
+      identity[c] = (char)c;
+      lowerCase[c] = Character.toLowerCase((char)c);
+    }
+    registry.put(IDENTITY, new CharMapping(identity));
+    registry.put(LOWER_CASE, new CharMapping(lowerCase));
+    registry.put(ASCII, new CharMapping(StringUtils.lowAsciiOneToOneTable()));
+  }
+
+  private final char[] table;
+
+
+  private CharMapping(char[] table)
+  {
+    this.table = table;
+  }
+
+
+  /**
+   * Get a registered mapping.
+   * @param name the name of the mapping.
+   * @return the mapping.
+   * @throws IllegalArgumentException if there is no mapping with this name.
+   */
+  public static CharMapping forName(String name)
+  {
+    CharMapping mapping = registry.get(name);
+    if (mapping == null) {
+      throw new IllegalArgumentException("There is no normalization mapping named '"+name+"'. Known mappings are "+registry.keySet()+".");
+    }
+    return mapping;
+  }
+
+
+  /**
+   * Register a mapping under a name, replacing a mapping with the same name.
+   * The built-in mappings cannot be replaced.
+   * Registered mappings are used by all parsers in the process, so only trusted code should register them.
+   * @param name the name of the mapping.
+   * @param mapping the mapping.
+   */
+  public static void register(String name, CharMapping mapping)
+  {
+    if (name.equals(ASCII) || name.equals(IDENTITY) || name.equals(LOWER_CASE)) {
+      throw new IllegalArgumentException("The built-in normalization mapping '"+name+"' cannot be replaced.");
+    }
+    registry.put(name, mapping);
+  }
+
+
+  /**
+   * Make a mapping that is like this mapping, except for some characters.
+   * @param changes maps strings of one character to strings of one character, which replace the mapping of that character.
+   * @return the new mapping.
+   * @throws IllegalArgumentException if a key or value is not one character.
+   */
+  public CharMapping with(Map<String, String> changes)
+  {
+    char[] newTable = table.clone();
+    for (Map.Entry<String, String> change : changes.entrySet()) {
+      if (change.getKey().length() != 1 || change.getValue().length() != 1) {
+        throw new IllegalArgumentException("A normalization mapping maps one character to one character, not '"+change.getKey()+"' to '"+change.getValue()+"'.");
+      }
+      newTable[change.getKey().charAt(0)] = change.getValue().charAt(0);
+    }
+    return new CharMapping(newTable);
+  }
+
+
+  /**
+   * Make a mapping that first applies this mapping, and then another mapping.
+   * @param next the mapping that is applied to the result of this mapping.
+   * @return the combined mapping.
+   */
+  public CharMapping andThen(CharMapping next)
+  {
+    char[] newTable = new char[table.length];
+    for (int c = 0; c < table.length; ++c) {
+      newTable[c] = next.table[table[c]];
+    }
+    return new CharMapping(newTable);
+  }
+
+
+  /**
+   * @param c a character.
+   * @return the mapped character.
+   */
+  public char map(char c)
+  {
+    return table[c];
+  }
+
+
+  /**
+   * Map the characters in a region of an array, in place.
+   * @param chars the array.
+   * @param start the start of the region.
+   * @param end the end of the region.
+   */
+  public void map(char[] chars, int start, int end)
+  {
+    for (int i = start; i < end; ++i) {
+      chars[i] = table[chars[i]];
+    }
+  }
+
+}
@@ -0,0 +1,82 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.greenmercury.basex.xquery.functions.peg.AutomataParser.NodeType;
+import org.waxeye.parser.CharTransition;
+
+/**
+ * The characters of the {@link CharTransition}s in the automata of a grammar.
+ *<p>
+ * A CharTransition does not expose its characters, so the {@link AutomataBuilder} and the {@link ParserStore}
+ * make every CharTransition through {@link #transition(char[], char[], char[])}, which keeps the single characters and ranges
+ * that the transition was made with. The {@link AutomataParser} for the automata keeps this object next to them.
+ * After the automata have been made, a CharSets is only read, so it can be used by many threads at the same time.
+ */
+final class CharSets
+{
+
+  /* The single characters, and the first and last characters of the ranges, of each transition. */
+  private final Map<CharTransition<NodeType>, char[][]> transitionRanges = new IdentityHashMap<>();
+
+
+  /**
+   * Make a transition, and remember its characters.
+   * @param single the single characters.
+   * @param min the first characters of the ranges.
+   * @param max the last characters of the ranges, at the same index as in <code>min</code>.
+   * @return the transition.
+   */
+  CharTransition<NodeType> transition(char[] single, char[] min, char[] max)
+  {
+    CharTransition<NodeType> transition = new CharTransition<NodeType>(single, min, max);
+    transitionRanges.put(transition, new char[][] {single.clone(), min.clone(), max.clone()});
+    return transition;
+  }
+
+
+  /**
+   * Get the characters of a transition as ranges.
+   * @param transition a transition that was made by {@link #transition(char[], char[], char[])}.
+   * @return the ranges, as two arrays of the same length with the first and last character of each range.
+   *   A single character is a range where the first and last character are the same.
+   */
+  char[][] ranges(CharTransition<NodeType> transition)
+  {
+    char[][] ranges = transitionRanges.get(transition);
+    if (ranges == null) {
+      throw new IllegalArgumentException("The character transition was not made for these automata.");
+    }
+    char[] single = ranges[0];
+    char[] min = ranges[1];
+    char[] max = ranges[2];
+    char[] from = new char[single.length + min.length];
+    char[] to = new char[single.length + min.length];
+    System.arraycopy(single, 0, from, 0, single.length);
+    System.arraycopy(single, 0, to, 0, single.length);
+    System.arraycopy(min, 0, from, single.length, min.length);
+    System.arraycopy(max, 0, to, single.length, max.length);
+    return new char[][] {from, to};
+  }
+
+
+  /**
+   * Get the characters of a transition as a set.
+   * @param transition a transition that was made by {@link #transition(char[], char[], char[])}.
+   * @return the set of characters.
+   */
+  BitSet characters(CharTransition<NodeType> transition)
+  {
+    char[][] ranges = ranges(transition);
+    BitSet characters = new BitSet(Character.MAX_VALUE + 1);
+    for (int r = 0; r < ranges[0].length; ++r) {
+      if (ranges[0][r] <= ranges[1][r]) {
+        characters.set(ranges[0][r], ranges[1][r] + 1);
+      }
+    }
+    return characters;
+  }
+
+}
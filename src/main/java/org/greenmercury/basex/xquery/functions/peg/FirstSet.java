@@ -0,0 +1,130 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.greenmercury.basex.xquery.functions.peg.AutomataParser.NodeType;
+import org.waxeye.parser.AutomatonTransition;
+import org.waxeye.parser.CharTransition;
+import org.waxeye.parser.Edge;
+import org.waxeye.parser.FA;
+import org.waxeye.parser.ITransition;
+import org.waxeye.parser.State;
+
+/**
+ * The characters that can be the first character of a match of the start non-terminal of a grammar.
+ *<p>
+ * The set is computed from the automata, and may contain more characters than necessary, because predicates are ignored.
+ * If the start non-terminal can match the empty string, or can start with any character (<code>.</code>) or with a pre-parsed non-terminal,
+ * the first character does not tell if there may be a match, and the set is not {@link #isSelective() selective}.
+ */
+public final class FirstSet
+{
+
+  private final BitSet characters;
+  private final boolean selective;
+
+
+  private FirstSet(BitSet characters, boolean selective)
+  {
+    this.characters = characters;
+    this.selective = selective;
+  }
+
+
+  /**
+   * @return true if a match can only start with a character in this set.
+   */
+  public boolean isSelective()
+  {
+    return selective;
+  }
+
+
+  /**
+   * @param c a character.
+   * @return true if a match may start with the character. This is always true if the set is not selective.
+   */
+  public boolean contains(char c)
+  {
+    return !selective || characters.get(c);
+  }
+
+
+  /**
+   * Compute the FIRST set of an automaton.
+   * The FIRST sets of all automata are computed together, by repeating until nothing changes, because automata may refer to each other.
+   * @param automata the automata of a grammar.
+   * @param charSets the characters of the character transitions in the automata.
+   * @param start the index of the automaton.
+   * @return the first set.
+   */
+  static FirstSet compute(List<FA<NodeType>> automata, CharSets charSets, int start)
+  {
+    int nrAutomata = automata.size();
+    BitSet[] first = new BitSet[nrAutomata];
+    boolean[] nullable = new boolean[nrAutomata];
+    boolean[] unpredictable = new boolean[nrAutomata];
+    for (int i = 0; i < nrAutomata; ++i) {
+      first[i] = new BitSet();
+      // Predicates do not consume input, and are treated as matching the empty string.
+      NodeType type = automata.get(i).getType();
+      nullable[i] = type == NodeType.POSITIVE || type == NodeType.NEGATIVE;
+    }
+    Map<CharTransition<NodeType>, BitSet> transitionCharacters = new IdentityHashMap<>();
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = 0; i < nrAutomata; ++i) {
+        FA<NodeType> automaton = automata.get(i);
+        if (automaton.getType() == NodeType.POSITIVE || automaton.getType() == NodeType.NEGATIVE) {
+          continue;
+        }
+        // Visit the states that can be reached without consuming input.
+        List<State<NodeType>> states = automaton.getStates();
+        boolean[] visited = new boolean[states.size()];
+        Deque<Integer> toVisit = new ArrayDeque<>();
+        toVisit.push(0);
+        visited[0] = true;
+        BitSet automatonFirst = (BitSet)first[i].clone();
+        boolean automatonNullable = nullable[i];
+        boolean automatonUnpredictable = unpredictable[i];
+        while (!toVisit.isEmpty()) {
+          State<NodeType> state = states.get(toVisit.pop());
+          automatonNullable |= state.isMatch();
+          for (Edge<NodeType> edge : state.getEdges()) {
+            ITransition<NodeType> transition = edge.getTrans();
+            boolean transitionNullable = false;
+            if (transition instanceof CharTransition) {
+              automatonFirst.or(transitionCharacters.computeIfAbsent((CharTransition<NodeType>)transition, charSets::characters));
+            } else if (transition instanceof AutomatonTransition) {
+              int index = ((AutomatonTransition<NodeType>)transition).getIndex();
+              automatonFirst.or(first[index]);
+              automatonUnpredictable |= unpredictable[index];
+              transitionNullable = nullable[index];
+            } else {
+              // A wildcard or a pre-parsed non-terminal.
+              automatonUnpredictable = true;
+            }
+            if (transitionNullable && !visited[edge.getState()]) {
+              visited[edge.getState()] = true;
+              toVisit.push(edge.getState());
+            }
+          }
+        }
+        if (!automatonFirst.equals(first[i]) || automatonNullable != nullable[i] || automatonUnpredictable != unpredictable[i]) {
+          first[i] = automatonFirst;
+          nullable[i] = automatonNullable;
+          unpredictable[i] = automatonUnpredictable;
+          changed = true;
+        }
+      }
+    }
+    return new FirstSet(first[start], !nullable[start] && !unpredictable[start]);
+  }
+
+}
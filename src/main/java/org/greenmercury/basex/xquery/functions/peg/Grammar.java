@@ -0,0 +1,242 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import org.waxeye.parser.FA;
+
+/**
+ * The abstract syntax of a Waxeye grammar, see https://waxeye.org/manual.
+ * A grammar is an ordered list of definitions. The first definition is the start non-terminal.
+ *<p>
+ * A grammar is made by the {@link GrammarReader}, and compiled into automata by the {@link AutomataBuilder}.
+ */
+public class Grammar
+{
+
+  /**
+   * The kinds of expressions that can occur in the right-hand side of a definition.
+   */
+  public enum Kind {
+    ALTERNATION, SEQUENCE,
+    CLOSURE, PLUS, OPTIONAL, VOID, AND, NOT,
+    IDENTIFIER, PRE_PARSED_NON_TERMINAL, LITERAL, CASELESS_LITERAL, CHAR_CLASS, WILDCARD
+  }
+
+  /**
+   * An expression in the right-hand side of a definition.
+   * Depending on the kind, it has sub-expressions, a text (identifier, pre-parsed non-terminal name or literal), or character ranges.
+   */
+  public static final class Expression
+  {
+    public final Kind kind;
+    public final List<Expression> children;
+    public final String text;
+    public final char[] single;
+    public final char[] min;
+    public final char[] max;
+
+    private Expression(Kind kind, List<Expression> children, String text, char[] single, char[] min, char[] max)
+    {
+      this.kind = kind;
+      this.children = children;
+      this.text = text;
+      this.single = single;
+      this.min = min;
+      this.max = max;
+    }
+
+    public static Expression of(Kind kind, List<Expression> children)
+    {
+      return new Expression(kind, children, null, null, null, null);
+    }
+
+    public static Expression of(Kind kind, Expression child)
+    {
+      return of(kind, List.of(child));
+    }
+
+    public static Expression of(Kind kind, String text)
+    {
+      return new Expression(kind, List.of(), text, null, null, null);
+    }
+
+    public static Expression charClass(char[] single, char[] min, char[] max)
+    {
+      return new Expression(Kind.CHAR_CLASS, List.of(), null, single, min, max);
+    }
+
+    /**
+     * Make a copy of this expression where all identifiers are renamed.
+     * @param renaming maps an identifier to its new name; returns the same name if it is not renamed.
+     * @return the renamed expression.
+     */
+    public Expression rename(UnaryOperator<String> renaming)
+    {
+      if (kind == Kind.IDENTIFIER) {
+        return of(kind, renaming.apply(text));
+      } else if (children.isEmpty()) {
+        return this;
+      }
+      List<Expression> renamedChildren = new ArrayList<>(children.size());
+      for (Expression child : children) {
+        renamedChildren.add(child.rename(renaming));
+      }
+      return of(kind, renamedChildren);
+    }
+
+    /**
+     * Make a copy of this expression that matches text where each character has been converted by {@link Character#toLowerCase(char)}.
+     * Literals are converted to lower case, and character classes get the lower case characters of their characters.
+     * @return the case-folded expression.
+     */
+    public Expression foldCase()
+    {
+      switch (kind) {
+        case LITERAL:
+        case CASELESS_LITERAL:
+          char[] folded = text.toCharArray();
+          for (int i = 0; i < folded.length; ++i) {
+            folded[i] = Character.toLowerCase(folded[i]);
+          }
+          return of(Kind.LITERAL, new String(folded));
+        case CHAR_CLASS:
+          return foldCharClass();
+        default:
+          if (children.isEmpty()) {
+            return this;
+          }
+          List<Expression> foldedChildren = new ArrayList<>(children.size());
+          for (Expression child : children) {
+            foldedChildren.add(child.foldCase());
+          }
+          return of(kind, foldedChildren);
+      }
+    }
+
+    /**
+     * Add the lower case characters of the characters in a character class, as single characters and ranges.
+     */
+    private Expression foldCharClass()
+    {
+      BitSet lowerCase = new BitSet();
+      for (char c : single) {
+        lowerCase.set(Character.toLowerCase(c));
+      }
+      for (int r = 0; r < min.length; ++r) {
+        for (int c = min[r]; c <= max[r]; ++c) {
+          char lower = Character.toLowerCase((char)c);
+          if (lower != c) {
+            lowerCase.set(lower);
+          }
+        }
+      }
+      StringBuilder foldedSingle = new StringBuilder().append(single);
+      StringBuilder foldedMin = new StringBuilder().append(min);
+      StringBuilder foldedMax = new StringBuilder().append(max);
+      for (int start = lowerCase.nextSetBit(0); start >= 0; ) {
+        int end = lowerCase.nextClearBit(start);
+        if (end - start == 1) {
+          foldedSingle.append((char)start);
+        } else {
+          foldedMin.append((char)start);
+          foldedMax.append((char)(end - 1));
+        }
+        start = lowerCase.nextSetBit(end);
+      }
+      return charClass(foldedSingle.toString().toCharArray(), foldedMin.toString().toCharArray(), foldedMax.toString().toCharArray());
+    }
+  }
+
+  /**
+   * A definition <code>name &lt;- expression</code>, <code>name &lt;: expression</code> or <code>name &lt;= expression</code>.
+   * The mode is one of {@link FA#LEFT}, {@link FA#VOID} and {@link FA#PRUNE}.
+   */
+  public static final class Definition
+  {
+    public final String name;
+    public final int mode;
+    public final Expression expression;
+
+    public Definition(String name, int mode, Expression expression)
+    {
+      this.name = name;
+      this.mode = mode;
+      this.expression = expression;
+    }
+  }
+
+  private final List<Definition> definitions = new ArrayList<>();
+  private final List<URL> modules = new ArrayList<>();
+  private final List<String> moduleTexts = new ArrayList<>();
+
+  public List<Definition> getDefinitions()
+  {
+    return definitions;
+  }
+
+  public Definition getDefinition(String name)
+  {
+    for (Definition definition : definitions) {
+      if (definition.name.equals(name)) {
+        return definition;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Add a definition at the end of the grammar.
+   * @param definition
+   * @throws IllegalArgumentException if a definition with the same name already exists.
+   */
+  public void add(Definition definition)
+  {
+    if (getDefinition(definition.name) != null) {
+      throw new IllegalArgumentException("The non-terminal '"+definition.name+"' is defined more than once.");
+    }
+    definitions.add(definition);
+  }
+
+  /**
+   * The locations of the grammar modules that a modular grammar was read from, in the order in which they were read.
+   * This is empty for a grammar that is not modular.
+   */
+  public List<URL> getModules()
+  {
+    return modules;
+  }
+
+  /**
+   * The texts of the grammar modules, at the same index as in {@link #getModules()}, as they were read when the grammar was read.
+   */
+  public List<String> getModuleTexts()
+  {
+    return moduleTexts;
+  }
+
+  public void addModule(URL module, String text)
+  {
+    modules.add(module);
+    moduleTexts.add(text);
+  }
+
+  /**
+   * Make a copy of this grammar that matches text where each character has been converted by {@link Character#toLowerCase(char)}.
+   * @return the case-folded grammar, with the same modules.
+   */
+  public Grammar foldCase()
+  {
+    Grammar folded = new Grammar();
+    for (Definition definition : definitions) {
+      folded.add(new Definition(definition.name, definition.mode, definition.expression.foldCase()));
+    }
+    folded.modules.addAll(modules);
+    folded.moduleTexts.addAll(moduleTexts);
+    return folded;
+  }
+
+}
@@ -0,0 +1,582 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.basex.query.QueryException;
+import org.greenmercury.basex.xquery.functions.peg.Grammar.Definition;
+import org.greenmercury.basex.xquery.functions.peg.Grammar.Expression;
+import org.greenmercury.basex.xquery.functions.peg.Grammar.Kind;
+import org.waxeye.parser.FA;
+
+/**
+ * Reads the text of a Waxeye grammar into a {@link Grammar}, without using the external Waxeye executable.
+ *<p>
+ * The syntax is described in https://waxeye.org/manual, with the addition of pre-parsed non-terminals, written as <code>&lt;name&gt;</code>.
+ * Comments start with <code>#</code> and end at the end of the line, or are enclosed in (nested) <code>/* ... *&#47;</code>.
+ *<p>
+ * Modular grammars (https://waxeye.org/manual#_modular_grammars) are sequences of module expressions, where a module expression is one of
+ * <ul>
+ *   <li><code>"path"</code> the grammar in the file or URL <code>path</code>, relative to the modular grammar;</li>
+ *   <li><code>(all m1 m2 ...)</code> all definitions in the module expressions <code>m1 m2 ...</code>;</li>
+ *   <li><code>(only m A B ...)</code> only the definitions for <code>A B ...</code> from module expression <code>m</code>;</li>
+ *   <li><code>(except m A B ...)</code> all definitions except the ones for <code>A B ...</code> from module expression <code>m</code>;</li>
+ *   <li><code>(prefix p m1 m2 ...)</code> the definitions in <code>m1 m2 ...</code>, with all non-terminals prefixed by <code>p</code>;</li>
+ *   <li><code>(rename m (A . B) ...)</code> the definitions in <code>m</code>, with non-terminal <code>A</code> renamed to <code>B</code>, etc.</li>
+ * </ul>
+ * Comments in modular grammars start with <code>;</code> and end at the end of the line.
+ */
+public class GrammarReader
+{
+
+  private final String text;
+  private final String source;
+  private int pos;
+  private final List<URL> modules = new ArrayList<>();
+  private final List<String> moduleTexts = new ArrayList<>();
+
+  private GrammarReader(String text, String source)
+  {
+    this.text = text;
+    this.source = source;
+    this.pos = 0;
+  }
+
+
+  /**
+   * Read a grammar from a string.
+   * @param grammarText the text of the grammar.
+   * @param source a description of where the grammar comes from, used in error messages.
+   * @return the grammar.
+   * @throws QueryException if the grammar contains syntax errors.
+   */
+  public static Grammar readGrammar(String grammarText, String source) throws QueryException
+  {
+    GrammarReader reader = new GrammarReader(grammarText, source);
+    Grammar grammar = new Grammar();
+    reader.skipWhitespace();
+    while (reader.pos < reader.text.length()) {
+      reader.readDefinition(grammar);
+    }
+    return grammar;
+  }
+
+
+  /**
+   * Read a grammar from a URL.
+   * @param grammarURL the location of the grammar.
+   * @return the grammar.
+   * @throws IOException if the grammar cannot be read.
+   * @throws QueryException if the grammar contains syntax errors.
+   */
+  public static Grammar readGrammar(URL grammarURL) throws IOException, QueryException
+  {
+    return readGrammar(readText(grammarURL), grammarURL.toString());
+  }
+
+
+  /**
+   * Read a modular grammar from a string.
+   * @param modularText the text of the modular grammar.
+   * @param base the URL against which the paths of the grammar modules are resolved, or {@code null} to resolve them against the current directory.
+   * @return the grammar, containing the definitions from all modules, and the locations of the modules that were read.
+   * @throws IOException if a grammar module cannot be read.
+   * @throws QueryException if the modular grammar or one of its modules contains syntax errors.
+   */
+  public static Grammar readModularGrammar(String modularText, URL base) throws IOException, QueryException
+  {
+    GrammarReader reader = new GrammarReader(modularText, base == null ? "modular grammar" : base.toString());
+    Grammar grammar = new Grammar();
+    reader.skipModularWhitespace();
+    while (reader.pos < reader.text.length()) {
+      reader.addAll(grammar, reader.readModuleExpression(base));
+      reader.skipModularWhitespace();
+    }
+    for (int i = 0; i < reader.modules.size(); ++i) {
+      grammar.addModule(reader.modules.get(i), reader.moduleTexts.get(i));
+    }
+    return grammar;
+  }
+
+
+  /**
+   * Read a modular grammar from a URL.
+   * @param modularGrammarURL the location of the modular grammar.
+   * @return the grammar, containing the definitions from all modules.
+   * @throws IOException if the modular grammar or a grammar module cannot be read.
+   * @throws QueryException if the modular grammar or one of its modules contains syntax errors.
+   */
+  public static Grammar readModularGrammar(URL modularGrammarURL) throws IOException, QueryException
+  {
+    return readModularGrammar(readText(modularGrammarURL), modularGrammarURL);
+  }
+
+
+  /**
+   * Read the text of a grammar from a URL.
+   * @param url
+   * @return the text, decoded as UTF-8.
+   * @throws IOException
+   */
+  public static String readText(URL url) throws IOException
+  {
+    try (InputStream stream = url.openStream()) {
+      return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+
+  /* Grammars */
+
+
+  private void readDefinition(Grammar grammar) throws QueryException
+  {
+    int definitionPos = pos;
+    String name = readIdentifier();
+    skipWhitespace();
+    int mode = readArrow();
+    if (mode < 0) {
+      throw error("Expected '<-', '<=' or '<:' after '"+name+"'");
+    }
+    skipWhitespace();
+    Expression expression = readAlternation();
+    try {
+      grammar.add(new Definition(name, mode, expression));
+    } catch (IllegalArgumentException e) {
+      pos = definitionPos;
+      throw error(e.getMessage());
+    }
+  }
+
+
+  /**
+   * Read an arrow, and return the corresponding automaton mode.
+   * @return the mode, or -1 if there is no arrow at the current position. In that case, the position does not change.
+   */
+  private int readArrow()
+  {
+    if (text.startsWith("<-", pos)) {
+      pos += 2;
+      return FA.LEFT;
+    } else if (text.startsWith("<:", pos)) {
+      pos += 2;
+      return FA.VOID;
+    } else if (text.startsWith("<=", pos)) {
+      pos += 2;
+      return FA.PRUNE;
+    }
+    return -1;
+  }
+
+
+  private Expression readAlternation() throws QueryException
+  {
+    List<Expression> alternatives = new ArrayList<>();
+    alternatives.add(readSequence());
+    while (pos < text.length() && text.charAt(pos) == '|') {
+      ++pos;
+      skipWhitespace();
+      alternatives.add(readSequence());
+    }
+    return alternatives.size() == 1 ? alternatives.get(0) : Expression.of(Kind.ALTERNATION, alternatives);
+  }
+
+
+  private Expression readSequence() throws QueryException
+  {
+    List<Expression> units = new ArrayList<>();
+    while (atUnit()) {
+      units.add(readUnit());
+    }
+    if (units.isEmpty()) {
+      throw error("Expected an expression");
+    }
+    return units.size() == 1 ? units.get(0) : Expression.of(Kind.SEQUENCE, units);
+  }
+
+
+  /**
+   * Check if a unit starts at the current position.
+   * An identifier that is followed by an arrow starts the next definition, and is not a unit.
+   */
+  private boolean atUnit()
+  {
+    if (pos >= text.length()) {
+      return false;
+    }
+    char c = text.charAt(pos);
+    if (isIdentifierStart(c)) {
+      int savedPos = pos;
+      readIdentifier();
+      skipWhitespace();
+      boolean isDefinition = readArrow() >= 0;
+      pos = savedPos;
+      return !isDefinition;
+    }
+    return "?*+:&!('\"[.".indexOf(c) >= 0 ||
+           c == '<' && pos + 1 < text.length() && isIdentifierStart(text.charAt(pos + 1));
+  }
+
+
+  private Expression readUnit() throws QueryException
+  {
+    char c = text.charAt(pos);
+    Kind prefix = switch (c) {
+      case '?' -> Kind.OPTIONAL;
+      case '*' -> Kind.CLOSURE;
+      case '+' -> Kind.PLUS;
+      case ':' -> Kind.VOID;
+      case '&' -> Kind.AND;
+      case '!' -> Kind.NOT;
+      default -> null;
+    };
+    if (prefix != null) {
+      ++pos;
+      skipWhitespace();
+      if (!atUnit()) {
+        throw error("Expected an expression after '"+c+"'");
+      }
+      return Expression.of(prefix, readUnit());
+    }
+    Expression primary;
+    if (isIdentifierStart(c)) {
+      primary = Expression.of(Kind.IDENTIFIER, readIdentifier());
+    } else if (c == '(') {
+      ++pos;
+      skipWhitespace();
+      primary = readAlternation();
+      expect(')');
+    } else if (c == '\'') {
+      primary = Expression.of(Kind.LITERAL, readQuoted('\''));
+    } else if (c == '"') {
+      primary = Expression.of(Kind.CASELESS_LITERAL, readQuoted('"'));
+    } else if (c == '[') {
+      primary = readCharClass();
+    } else if (c == '.') {
+      ++pos;
+      primary = Expression.of(Kind.WILDCARD, List.of());
+    } else if (c == '<') {
+      ++pos;
+      int start = pos;
+      while (pos < text.length() && text.charAt(pos) != '>' && !Character.isWhitespace(text.charAt(pos))) {
+        ++pos;
+      }
+      String name = text.substring(start, pos);
+      expect('>');
+      primary = Expression.of(Kind.PRE_PARSED_NON_TERMINAL, name);
+    } else {
+      throw error("Unexpected character '"+c+"'");
+    }
+    skipWhitespace();
+    return primary;
+  }
+
+
+  private Expression readCharClass() throws QueryException
+  {
+    ++pos; // Skip '['.
+    StringBuilder single = new StringBuilder();
+    StringBuilder min = new StringBuilder();
+    StringBuilder max = new StringBuilder();
+    while (pos < text.length() && text.charAt(pos) != ']') {
+      char from = readChar();
+      if (pos + 1 < text.length() && text.charAt(pos) == '-' && text.charAt(pos + 1) != ']') {
+        ++pos; // Skip '-'.
+        char to = readChar();
+        if (to < from) {
+          throw error("Invalid character range "+from+"-"+to);
+        }
+        min.append(from);
+        max.append(to);
+      } else {
+        single.append(from);
+      }
+    }
+    expect(']');
+    return Expression.charClass(single.toString().toCharArray(), min.toString().toCharArray(), max.toString().toCharArray());
+  }
+
+
+  private String readQuoted(char quote) throws QueryException
+  {
+    ++pos; // Skip the opening quote.
+    StringBuilder sb = new StringBuilder();
+    while (pos < text.length() && text.charAt(pos) != quote) {
+      sb.append(readChar());
+    }
+    expect(quote);
+    return sb.toString();
+  }
+
+
+  /**
+   * Read a character in a literal or character class, which may be an escape sequence.
+   * Recognized escape sequences are <code>\n \r \t</code>, <code>\&lt;hex&gt;</code> and a backslash followed by any other character.
+   */
+  private char readChar() throws QueryException
+  {
+    if (pos >= text.length()) {
+      throw error("Unexpected end of grammar");
+    }
+    char c = text.charAt(pos++);
+    if (c != '\\') {
+      return c;
+    }
+    if (pos >= text.length()) {
+      throw error("Unexpected end of grammar after '\\'");
+    }
+    c = text.charAt(pos++);
+    switch (c) {
+      case 'n': return '\n';
+      case 'r': return '\r';
+      case 't': return '\t';
+      case '<':
+        int end = text.indexOf('>', pos);
+        if (end < 0) {
+          throw error("Unterminated hexadecimal character escape");
+        }
+        try {
+          char hex = (char)Integer.parseInt(text.substring(pos, end), 16);
+          pos = end + 1;
+          return hex;
+        } catch (NumberFormatException e) {
+          throw error("Invalid hexadecimal character escape '"+text.substring(pos, end)+"'");
+        }
+      default: return c;
+    }
+  }
+
+
+  private static boolean isIdentifierStart(char c)
+  {
+    return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_';
+  }
+
+
+  private static boolean isIdentifierPart(char c)
+  {
+    return isIdentifierStart(c) || c >= '0' && c <= '9' || c == '-';
+  }
+
+
+  private String readIdentifier()
+  {
+    int start = pos;
+    if (pos < text.length() && isIdentifierStart(text.charAt(pos))) {
+      ++pos;
+      while (pos < text.length() && isIdentifierPart(text.charAt(pos))) {
+        ++pos;
+      }
+    }
+    return text.substring(start, pos);
+  }
+
+
+  private void expect(char c) throws QueryException
+  {
+    if (pos >= text.length() || text.charAt(pos) != c) {
+      throw error("Expected '"+c+"'");
+    }
+    ++pos;
+  }
+
+
+  /**
+   * Skip white space and comments in a grammar.
+   */
+  private void skipWhitespace()
+  {
+    while (pos < text.length()) {
+      char c = text.charAt(pos);
+      if (Character.isWhitespace(c)) {
+        ++pos;
+      } else if (c == '#') {
+        while (pos < text.length() && text.charAt(pos) != '\n' && text.charAt(pos) != '\r') {
+          ++pos;
+        }
+      } else if (text.startsWith("/*", pos)) {
+        int depth = 0;
+        do {
+          if (text.startsWith("/*", pos)) {
+            ++depth;
+            pos += 2;
+          } else if (text.startsWith("*/", pos)) {
+            --depth;
+            pos += 2;
+          } else {
+            ++pos;
+          }
+        } while (depth > 0 && pos < text.length());
+      } else {
+        return;
+      }
+    }
+  }
+
+
+  /* Modular grammars */
+
+
+  private Grammar readModuleExpression(URL base) throws IOException, QueryException
+  {
+    if (pos >= text.length()) {
+      throw error("Unexpected end of modular grammar");
+    }
+    char c = text.charAt(pos);
+    if (c == '"') {
+      String path = readQuoted('"');
+      URL moduleURL = base == null ? new File(path).toURI().toURL() : new URL(base, path);
+      String moduleText = readText(moduleURL);
+      modules.add(moduleURL);
+      moduleTexts.add(moduleText);
+      return readGrammar(moduleText, moduleURL.toString());
+    } else if (c != '(') {
+      throw error("Expected a grammar path or '('");
+    }
+    ++pos;
+    skipModularWhitespace();
+    String operator = readModularSymbol();
+    skipModularWhitespace();
+    Grammar result = new Grammar();
+    switch (operator) {
+      case "all":
+        while (pos < text.length() && text.charAt(pos) != ')') {
+          addAll(result, readModuleExpression(base));
+          skipModularWhitespace();
+        }
+        break;
+      case "only":
+      case "except":
+        Grammar module = readModuleExpression(base);
+        skipModularWhitespace();
+        Set<String> names = new HashSet<>();
+        while (pos < text.length() && text.charAt(pos) != ')') {
+          names.add(readModularSymbol());
+          skipModularWhitespace();
+        }
+        boolean only = operator.equals("only");
+        for (Definition definition : module.getDefinitions()) {
+          if (names.contains(definition.name) == only) {
+            addAll(result, definition);
+          }
+        }
+        break;
+      case "prefix":
+        String prefix = text.charAt(pos) == '"' ? readQuoted('"') : readModularSymbol();
+        skipModularWhitespace();
+        while (pos < text.length() && text.charAt(pos) != ')') {
+          for (Definition definition : readModuleExpression(base).getDefinitions()) {
+            addAll(result, new Definition(prefix + definition.name, definition.mode, definition.expression.rename(name -> prefix + name)));
+          }
+          skipModularWhitespace();
+        }
+        break;
+      case "rename":
+        Grammar renamedModule = readModuleExpression(base);
+        skipModularWhitespace();
+        Map<String, String> renaming = new HashMap<>();
+        while (pos < text.length() && text.charAt(pos) == '(') {
+          ++pos;
+          skipModularWhitespace();
+          String from = readModularSymbol();
+          skipModularWhitespace();
+          expect('.');
+          skipModularWhitespace();
+          String to = readModularSymbol();
+          skipModularWhitespace();
+          expect(')');
+          skipModularWhitespace();
+          renaming.put(from, to);
+        }
+        for (Definition definition : renamedModule.getDefinitions()) {
+          addAll(result, new Definition(renaming.getOrDefault(definition.name, definition.name), definition.mode,
+              definition.expression.rename(name -> renaming.getOrDefault(name, name))));
+        }
+        break;
+      default:
+        throw error("Unknown modular grammar operator '"+operator+"'");
+    }
+    expect(')');
+    return result;
+  }
+
+
+  private void addAll(Grammar grammar, Grammar module) throws QueryException
+  {
+    for (Definition definition : module.getDefinitions()) {
+      addAll(grammar, definition);
+    }
+  }
+
+
+  private void addAll(Grammar grammar, Definition definition) throws QueryException
+  {
+    try {
+      grammar.add(definition);
+    } catch (IllegalArgumentException e) {
+      throw error(e.getMessage());
+    }
+  }
+
+
+  private String readModularSymbol() throws QueryException
+  {
+    int start = pos;
+    while (pos < text.length() && !Character.isWhitespace(text.charAt(pos)) && "()\".;".indexOf(text.charAt(pos)) < 0) {
+      ++pos;
+    }
+    if (start == pos) {
+      throw error("Expected a name");
+    }
+    return text.substring(start, pos);
+  }
+
+
+  /**
+   * Skip white space and comments in a modular grammar.
+   */
+  private void skipModularWhitespace()
+  {
+    while (pos < text.length()) {
+      char c = text.charAt(pos);
+      if (Character.isWhitespace(c)) {
+        ++pos;
+      } else if (c == ';') {
+        while (pos < text.length() && text.charAt(pos) != '\n' && text.charAt(pos) != '\r') {
+          ++pos;
+        }
+      } else {
+        return;
+      }
+    }
+  }
+
+
+  /**
+   * Make an exception for an error at the current position.
+   */
+  private QueryException error(String message)
+  {
+    int line = 1;
+    int column = 1;
+    for (int i = 0; i < pos && i < text.length(); ++i) {
+      if (text.charAt(i) == '\n') {
+        ++line;
+        column = 1;
+      } else {
+        ++column;
+      }
+    }
+    return new QueryException("Error in waxeye grammar ["+source+"] at line "+line+", column "+column+": "+message+".");
+  }
+
+}
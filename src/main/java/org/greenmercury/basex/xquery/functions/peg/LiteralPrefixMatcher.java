@@ -0,0 +1,357 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.greenmercury.basex.xquery.functions.peg.AutomataParser.NodeType;
+import org.waxeye.parser.AutomatonTransition;
+import org.waxeye.parser.CharTransition;
+import org.waxeye.parser.Edge;
+import org.waxeye.parser.FA;
+import org.waxeye.parser.ITransition;
+import org.waxeye.parser.State;
+
+/**
+ * Finds the positions in a text where a match of the start non-terminal of a grammar may start,
+ * for grammars where every match starts with one of a set of literal strings, like <code>"art." ws +[0-9]</code>.
+ *<p>
+ * The literal prefixes are found by following the automata from the start, as long as each transition matches only a few characters.
+ * The positions are found with the Aho-Corasick algorithm, in one pass over the text that only goes as far as the scanner needs,
+ * so a scan that stops early, or skips the text of a match, does not look at the rest of the text.
+ */
+public final class LiteralPrefixMatcher
+{
+
+  /* Limits for the extraction of literal prefixes. */
+  private static final int MAX_PREFIX_LENGTH = 8;
+  private static final int MAX_CHARACTERS_PER_TRANSITION = 4;
+  private static final int MAX_PREFIXES = 1024;
+  private static final int MAX_STEPS = 100_000;
+  private static final int MAX_DEPTH = 32;
+
+  private final Set<String> prefixes;
+  /* The Aho-Corasick automaton. Node 0 is the root.
+   * The transitions of a node are in two parallel arrays, with the characters in ascending order.
+   * The characters of the transitions of the root are also in a set, because most characters in a text do not start a prefix. */
+  private char[][] nextChars;
+  private int[][] nextNodes;
+  private BitSet rootChars;
+  private int[] fail;
+  private int[][] matchLengths;
+  private int maxPrefixLength;
+
+
+  private LiteralPrefixMatcher(Set<String> prefixes)
+  {
+    this.prefixes = prefixes;
+    buildAutomaton();
+  }
+
+
+  /**
+   * Make a matcher for the literal prefixes of the start non-terminal.
+   * @param automata the automata of a grammar.
+   * @param charSets the characters of the character transitions in the automata.
+   * @param start the index of the automaton for the start non-terminal.
+   * @return the matcher, or null if the matches do not start with literal strings of at least two characters.
+   */
+  static LiteralPrefixMatcher build(List<FA<NodeType>> automata, CharSets charSets, int start)
+  {
+    Set<String> prefixes = new PrefixExtractor(automata, charSets).extract(start);
+    if (prefixes == null) {
+      return null;
+    }
+    // A prefix that starts with another prefix does not give more positions.
+    Set<String> shortestPrefixes = new LinkedHashSet<>();
+    for (String prefix : prefixes) {
+      if (prefix.length() < 2) {
+        // Then the first set is just as selective.
+        return null;
+      }
+      boolean redundant = false;
+      for (int length = 2; length < prefix.length() && !redundant; ++length) {
+        redundant = prefixes.contains(prefix.substring(0, length));
+      }
+      if (!redundant) {
+        shortestPrefixes.add(prefix);
+      }
+    }
+    return new LiteralPrefixMatcher(shortestPrefixes);
+  }
+
+
+  public Set<String> getPrefixes()
+  {
+    return prefixes;
+  }
+
+
+  /**
+   * Find the positions where one of the prefixes starts.
+   * @param text the text.
+   * @return the positions in the text where a prefix starts, which are found when they are asked for.
+   */
+  public Candidates candidates(CharSequence text)
+  {
+    return new Candidates(text);
+  }
+
+
+  /**
+   * The positions in a text where one of the prefixes starts.
+   * The text is read as far as needed to know the next position after a given position.
+   */
+  public final class Candidates
+  {
+    private final CharSequence text;
+    /* The positions that have been found, in the part of the text that has been read. */
+    private final BitSet found = new BitSet();
+    /* The node of the automaton after reading the text up to the 'scanned' position. */
+    private int node = 0;
+    private int scanned = 0;
+
+    private Candidates(CharSequence text)
+    {
+      this.text = text;
+    }
+
+    /**
+     * Find the first position at or after a given position where a prefix starts.
+     * @param from the position.
+     * @return the first position where a prefix starts, or -1 if there is none.
+     */
+    public int next(int from)
+    {
+      if (from > scanned) {
+        // A prefix that starts at or after the position is found by starting the automaton there.
+        node = 0;
+        scanned = from;
+      }
+      int textLength = text.length();
+      while (true) {
+        int start = found.nextSetBit(from);
+        // All prefixes that start before a found position end before the scanned position, so they have been found.
+        if ((start >= 0 && start + maxPrefixLength <= scanned) || scanned >= textLength) {
+          return start;
+        }
+        step(text.charAt(scanned));
+        ++scanned;
+        for (int length : matchLengths[node]) {
+          found.set(scanned - length);
+        }
+      }
+    }
+
+    private void step(char c)
+    {
+      while (true) {
+        if (node == 0) {
+          node = rootChars.get(c) ? target(0, c) : 0;
+          return;
+        }
+        int target = target(node, c);
+        if (target > 0) {
+          node = target;
+          return;
+        }
+        node = fail[node];
+      }
+    }
+  }
+
+
+  /**
+   * @return the node after a transition from a node for a character, or -1 if there is no transition.
+   */
+  private int target(int node, char c)
+  {
+    int index = Arrays.binarySearch(nextChars[node], c);
+    return index < 0 ? -1 : nextNodes[node][index];
+  }
+
+
+  private void buildAutomaton()
+  {
+    List<Map<Character, Integer>> next = new ArrayList<>();
+    List<List<Integer>> lengths = new ArrayList<>();
+    next.add(new HashMap<>());
+    lengths.add(new ArrayList<>());
+    for (String prefix : prefixes) {
+      int node = 0;
+      for (int i = 0; i < prefix.length(); ++i) {
+        Integer target = next.get(node).get(prefix.charAt(i));
+        if (target == null) {
+          target = next.size();
+          next.add(new HashMap<>());
+          lengths.add(new ArrayList<>());
+          next.get(node).put(prefix.charAt(i), target);
+        }
+        node = target;
+      }
+      lengths.get(node).add(prefix.length());
+      maxPrefixLength = Math.max(maxPrefixLength, prefix.length());
+    }
+    // Compute the failure links in breadth-first order, and add the matches of the failure node to each node.
+    fail = new int[next.size()];
+    Deque<Integer> queue = new ArrayDeque<>();
+    for (int child : next.get(0).values()) {
+      fail[child] = 0;
+      queue.add(child);
+    }
+    while (!queue.isEmpty()) {
+      int node = queue.remove();
+      for (Map.Entry<Character, Integer> transition : next.get(node).entrySet()) {
+        int child = transition.getValue();
+        int f = fail[node];
+        while (f != 0 && !next.get(f).containsKey(transition.getKey())) {
+          f = fail[f];
+        }
+        Integer failTarget = next.get(f).get(transition.getKey());
+        fail[child] = failTarget == null ? 0 : failTarget;
+        lengths.get(child).addAll(lengths.get(fail[child]));
+        queue.add(child);
+      }
+    }
+    matchLengths = new int[next.size()][];
+    nextChars = new char[next.size()][];
+    nextNodes = new int[next.size()][];
+    for (int node = 0; node < next.size(); ++node) {
+      matchLengths[node] = lengths.get(node).stream().mapToInt(Integer::intValue).toArray();
+      Map<Character, Integer> transitions = new TreeMap<>(next.get(node));
+      nextChars[node] = new char[transitions.size()];
+      nextNodes[node] = new int[transitions.size()];
+      int i = 0;
+      for (Map.Entry<Character, Integer> transition : transitions.entrySet()) {
+        nextChars[node][i] = transition.getKey();
+        nextNodes[node][i] = transition.getValue();
+        ++i;
+      }
+    }
+    rootChars = new BitSet();
+    for (char c : nextChars[0]) {
+      rootChars.set(c);
+    }
+  }
+
+
+  /**
+   * Follows the automata from the start, collecting the literal strings that a match can start with.
+   */
+  private static final class PrefixExtractor
+  {
+    /* A position in an automaton, with the position to continue at when the automaton is matched. */
+    private static final class Frame
+    {
+      private final int automaton;
+      private final int state;
+      private final Frame parent;
+      private final int depth;
+
+      Frame(int automaton, int state, Frame parent)
+      {
+        this.automaton = automaton;
+        this.state = state;
+        this.parent = parent;
+        this.depth = parent == null ? 1 : parent.depth + 1;
+      }
+    }
+
+    private final List<FA<NodeType>> automata;
+    private final CharSets charSets;
+    private final Map<CharTransition<NodeType>, BitSet> transitionCharacters = new IdentityHashMap<>();
+    private final Set<String> prefixes = new LinkedHashSet<>();
+    private int steps = 0;
+
+    PrefixExtractor(List<FA<NodeType>> automata, CharSets charSets)
+    {
+      this.automata = automata;
+      this.charSets = charSets;
+    }
+
+    /**
+     * @return the prefixes, or null if some match may start without a literal prefix, or if there are too many prefixes.
+     */
+    Set<String> extract(int start)
+    {
+      return follow(new Frame(start, 0, null), "") ? prefixes : null;
+    }
+
+    /**
+     * Follow the automata from a frame, after a prefix has been matched.
+     * @return false if a match may have an empty prefix, or if a limit is exceeded.
+     */
+    private boolean follow(Frame frame, String prefix)
+    {
+      if (++steps > MAX_STEPS || frame.depth > MAX_DEPTH) {
+        return false;
+      }
+      if (prefix.length() >= MAX_PREFIX_LENGTH) {
+        return addPrefix(prefix);
+      }
+      State<NodeType> state = automata.get(frame.automaton).getStates().get(frame.state);
+      if (state.isMatch()) {
+        // The automaton may end here, and the parent automaton continues.
+        if (frame.parent == null) {
+          if (!addPrefix(prefix)) {
+            return false;
+          }
+        } else if (!follow(frame.parent, prefix)) {
+          return false;
+        }
+      }
+      for (Edge<NodeType> edge : state.getEdges()) {
+        ITransition<NodeType> transition = edge.getTrans();
+        Frame target = new Frame(frame.automaton, edge.getState(), frame.parent);
+        if (transition instanceof CharTransition) {
+          BitSet characters = transitionCharacters.computeIfAbsent((CharTransition<NodeType>)transition, charSets::characters);
+          if (characters.cardinality() > MAX_CHARACTERS_PER_TRANSITION) {
+            if (!addPrefix(prefix)) {
+              return false;
+            }
+          } else {
+            for (int c = characters.nextSetBit(0); c >= 0; c = characters.nextSetBit(c + 1)) {
+              if (!follow(target, prefix + (char)c)) {
+                return false;
+              }
+            }
+          }
+        } else if (transition instanceof AutomatonTransition) {
+          int index = ((AutomatonTransition<NodeType>)transition).getIndex();
+          NodeType type = automata.get(index).getType();
+          if (type == NodeType.POSITIVE || type == NodeType.NEGATIVE) {
+            // A predicate does not consume input. Ignoring it can only give more prefixes.
+            if (!follow(target, prefix)) {
+              return false;
+            }
+          } else if (!follow(new Frame(index, 0, target), prefix)) {
+            return false;
+          }
+        } else if (!addPrefix(prefix)) {
+          // A wildcard or a pre-parsed non-terminal ends the literal prefix.
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private boolean addPrefix(String prefix)
+    {
+      if (prefix.isEmpty()) {
+        return false;
+      }
+      prefixes.add(prefix);
+      return prefixes.size() <= MAX_PREFIXES;
+    }
+  }
+
+}
@@ -0,0 +1,84 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The non-terminals in the matches of a scan, with their start and end positions, in document order.
+ * A non-terminal comes before the non-terminals within it.
+ *<p>
+ * The positions are offsets in the text content, counted in UTF-16 characters from 0, and the end position is after the last character.
+ * The names are kept once, and the offsets are kept in one <code>int</code> array.
+ *<p>
+ * A parse error that is shown, when the 'parse-errors' option is true, has the name {@link #ERROR} and is empty, at the position where parsing failed.
+ */
+public final class MatchOffsets
+{
+
+  /**
+   * The name for a parse error, which is the name of the element that represents a parse error in the XML output.
+   * This can not be the name of a non-terminal, because it contains a colon.
+   */
+  public static final String ERROR = "fn:error";
+
+  private final List<String> names = new ArrayList<>();
+  private final Map<String, Integer> nameIndexes = new HashMap<>();
+  /* For each offset, the index of the name, the start and the end. */
+  private int[] offsets = new int[3 * 64];
+  private int size = 0;
+
+
+  /**
+   * Add a non-terminal.
+   * @param name the name of the non-terminal.
+   * @param start the start position.
+   * @param end the end position.
+   */
+  public void add(String name, int start, int end)
+  {
+    Integer nameIndex = nameIndexes.get(name);
+    if (nameIndex == null) {
+      nameIndex = names.size();
+      names.add(name);
+      nameIndexes.put(name, nameIndex);
+    }
+    if (3 * size == offsets.length) {
+      offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+    }
+    offsets[3 * size] = nameIndex;
+    offsets[3 * size + 1] = start;
+    offsets[3 * size + 2] = end;
+    ++size;
+  }
+
+
+  /**
+   * @return the number of non-terminals.
+   */
+  public int size()
+  {
+    return size;
+  }
+
+
+  public String name(int i)
+  {
+    return names.get(offsets[3 * i]);
+  }
+
+
+  public int start(int i)
+  {
+    return offsets[3 * i + 1];
+  }
+
+
+  public int end(int i)
+  {
+    return offsets[3 * i + 2];
+  }
+
+}
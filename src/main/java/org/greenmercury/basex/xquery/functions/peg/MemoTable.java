@@ -0,0 +1,417 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.util.Arrays;
+
+/**
+ * The memo table of the packrat parser in {@link AutomataParser}, with the results of matching automata at input positions.
+ *<p>
+ * This is a hash table with open addressing (linear probing), keyed by the automaton index and the start position packed into a <code>long</code>.
+ * The values are kept in parallel arrays, so storing a result does not allocate objects.
+ * Tables are re-used: {@link #acquire()} takes a table from a per-thread pool, and {@link #release()} returns it.
+ *<p>
+ * A memo table can be kept for a sequence of parses of the same input, which start at increasing positions,
+ * as when scanning a text for matches. Results that were found in an earlier parse at later positions are then re-used.
+ * When a parse starts, the results for positions before its start become stale,
+ * so the table only holds results for the part of the input that the parser has looked at beyond the start.
+ * Stale entries are treated as deleted, and are removed when the table is rehashed.
+ *<p>
+ * The number of entries can be {@link #setLimit(int, boolean) limited}, because the table can otherwise grow
+ * with the length of the input times the number of automata.
+ * Past the limit, the entries for the earliest positions are evicted, or no more results are stored.
+ *<p>
+ * The line and column numbers in the parse errors are counted from the start of the parse that made a result,
+ * so they may be wrong when results are re-used.
+ */
+public final class MemoTable
+{
+
+  private static final int INITIAL_CAPACITY = 1 << 10;
+  /* A table that has grown larger than this is not kept in the pool, because a pooled table lives as long as its thread. */
+  private static final int MAX_POOLED_CAPACITY = 1 << 16;
+
+  private static final ThreadLocal<MemoTable> pool = new ThreadLocal<>();
+
+  private static final byte LAST_CR = 1;
+  private static final byte START_CR = 2;
+
+  /* An entry is in use if its epoch is the current epoch. Incrementing the epoch empties the table. */
+  private int epoch = 1;
+  private int[] epochs;
+  private long[] keys;
+  private Object[] results;
+  private int[] endPositions;
+  private Object[] endExtendedData;
+  private int[] lines;
+  private int[] columns;
+  private byte[] flags;
+  private int[] generations;
+  private Object[] startExtendedData;
+  /* The slots that are in use, in the order in which they were taken. Only the first 'used' are valid. */
+  private int[] occupied;
+
+  private int mask;
+  /* The number of entries in use, including stale entries. */
+  private int used = 0;
+  private int windowStart = 0;
+  private int generation = 0;
+  /* The maximum number of entries, or 0 if there is no maximum. */
+  private int maxEntries = 0;
+  private boolean evictWhenFull = true;
+  private long evictions = 0;
+  private boolean full = false;
+
+
+  public MemoTable()
+  {
+    allocate(INITIAL_CAPACITY);
+  }
+
+
+  /**
+   * Take an empty memo table from the pool for the current thread, or make a new one.
+   * @return an empty memo table.
+   */
+  public static MemoTable acquire()
+  {
+    MemoTable table = pool.get();
+    if (table == null) {
+      return new MemoTable();
+    }
+    pool.remove();
+    return table;
+  }
+
+
+  /**
+   * Return this table to the pool for the current thread. The table must not be used after this.
+   */
+  public void release()
+  {
+    if (keys.length <= MAX_POOLED_CAPACITY) {
+      reset();
+      setLimit(0, true);
+      pool.set(this);
+    }
+  }
+
+
+  /**
+   * Limit the number of entries. The limit stays when the table is {@link #reset()}.
+   * @param maxEntries the maximum number of entries, or 0 for no maximum.
+   * @param evict if true, the entries for the earliest positions are evicted when the table is full;
+   *   if false, no more results are stored.
+   */
+  public void setLimit(int maxEntries, boolean evict)
+  {
+    this.maxEntries = Math.max(0, maxEntries);
+    this.evictWhenFull = evict;
+    this.evictions = 0;
+    this.full = false;
+  }
+
+
+  /**
+   * @return the number of entries that were evicted because the table was full, since the limit was set.
+   */
+  public long getEvictions()
+  {
+    return evictions;
+  }
+
+
+  /**
+   * @return true if results were not stored because the table was full, since the limit was set.
+   */
+  public boolean isFull()
+  {
+    return full;
+  }
+
+
+  /**
+   * Remove all entries.
+   * Only the slots that are in use are cleared, so that the table does not keep parse results alive.
+   */
+  public void reset()
+  {
+    ++epoch;
+    if (epoch == 0) {
+      // The epoch has wrapped around, and old entries could look like new ones.
+      Arrays.fill(epochs, 0);
+      epoch = 1;
+    }
+    for (int i = 0; i < used; ++i) {
+      int slot = occupied[i];
+      results[slot] = null;
+      endExtendedData[slot] = null;
+      startExtendedData[slot] = null;
+    }
+    used = 0;
+    windowStart = 0;
+    generation = 0;
+  }
+
+
+  /**
+   * Start a new parse at a position. The results for earlier positions become stale.
+   * @param position the start position of the parse.
+   */
+  void startParse(int position)
+  {
+    ++generation;
+    windowStart = Math.max(windowStart, position);
+  }
+
+
+  /**
+   * @return the number of the current parse.
+   */
+  int getGeneration()
+  {
+    return generation;
+  }
+
+
+  /**
+   * @return the number of entries, including stale entries that have not been removed yet.
+   */
+  public int size()
+  {
+    return used;
+  }
+
+
+  /**
+   * Find the entry for the result of an automaton at a position.
+   * @return the slot of the entry, or -1 if there is no result.
+   */
+  int find(int index, int position)
+  {
+    if (position < windowStart) {
+      return -1;
+    }
+    long key = key(index, position);
+    for (int slot = hash(key) & mask; epochs[slot] == epoch; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+
+  /**
+   * Store the result of an automaton at a position.
+   */
+  void put(int index, int position, Object result, int endPosition, Object endData, int line, int column, boolean lastCR, Object startData, boolean startCR)
+  {
+    if (position < windowStart) {
+      // Results for evicted positions are not stored again.
+      return;
+    }
+    if (maxEntries > 0 && used >= maxEntries && !makeRoom(position)) {
+      return;
+    }
+    if (2 * (used + 1) > keys.length) {
+      rehash();
+    }
+    long key = key(index, position);
+    int slot = hash(key) & mask;
+    int staleSlot = -1;
+    while (epochs[slot] == epoch && keys[slot] != key) {
+      if (staleSlot < 0 && position(keys[slot]) < windowStart) {
+        staleSlot = slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if (epochs[slot] != epoch) {
+      if (staleSlot >= 0) {
+        // Re-use a stale entry in the probe sequence, so the table does not fill up with stale entries.
+        slot = staleSlot;
+      } else {
+        occupied[used++] = slot;
+      }
+    }
+    epochs[slot] = epoch;
+    keys[slot] = key;
+    results[slot] = result;
+    endPositions[slot] = endPosition;
+    endExtendedData[slot] = endData;
+    lines[slot] = line;
+    columns[slot] = column;
+    flags[slot] = (byte)((lastCR ? LAST_CR : 0) | (startCR ? START_CR : 0));
+    generations[slot] = generation;
+    startExtendedData[slot] = startData;
+  }
+
+
+  Object result(int slot)
+  {
+    return results[slot];
+  }
+
+  int endPosition(int slot)
+  {
+    return endPositions[slot];
+  }
+
+  Object endExtendedData(int slot)
+  {
+    return endExtendedData[slot];
+  }
+
+  int line(int slot)
+  {
+    return lines[slot];
+  }
+
+  int column(int slot)
+  {
+    return columns[slot];
+  }
+
+  boolean lastCR(int slot)
+  {
+    return (flags[slot] & LAST_CR) != 0;
+  }
+
+  int generation(int slot)
+  {
+    return generations[slot];
+  }
+
+  Object startExtendedData(int slot)
+  {
+    return startExtendedData[slot];
+  }
+
+  boolean startCR(int slot)
+  {
+    return (flags[slot] & START_CR) != 0;
+  }
+
+
+  /**
+   * Remove entries when the table is full.
+   * @param position the position of the result that will be stored.
+   * @return true if the result can be stored.
+   */
+  private boolean makeRoom(int position)
+  {
+    rehash();
+    if (used < maxEntries) {
+      return true;
+    }
+    if (!evictWhenFull) {
+      full = true;
+      return false;
+    }
+    // Keep the entries for the latest positions, which are most likely to be used again, and remove about half of the entries.
+    int[] positions = new int[used];
+    int n = 0;
+    for (int slot = 0; slot < keys.length; ++slot) {
+      if (epochs[slot] == epoch) {
+        positions[n++] = position(keys[slot]);
+      }
+    }
+    Arrays.sort(positions);
+    int evictBelow = Math.min(positions[n - Math.max(1, maxEntries / 2)], position);
+    windowStart = Math.max(windowStart, evictBelow);
+    int before = used;
+    rehash();
+    evictions += before - used;
+    if (used < maxEntries) {
+      return true;
+    }
+    // All entries are at the position of the result, so it is not stored.
+    full = true;
+    return false;
+  }
+
+
+  private static long key(int index, int position)
+  {
+    return ((long)index << 32) | (position & 0xFFFFFFFFL);
+  }
+
+
+  private static int position(long key)
+  {
+    return (int)key;
+  }
+
+
+  private static int hash(long key)
+  {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32));
+  }
+
+
+  private void allocate(int capacity)
+  {
+    epochs = new int[capacity];
+    keys = new long[capacity];
+    results = new Object[capacity];
+    endPositions = new int[capacity];
+    endExtendedData = new Object[capacity];
+    lines = new int[capacity];
+    columns = new int[capacity];
+    flags = new byte[capacity];
+    generations = new int[capacity];
+    startExtendedData = new Object[capacity];
+    // The table is rehashed before it is more than half full.
+    occupied = new int[capacity / 2];
+    mask = capacity - 1;
+  }
+
+
+  /**
+   * Remove the stale entries, and make the table larger if it is still more than a quarter full.
+   */
+  private void rehash()
+  {
+    int[] oldEpochs = epochs;
+    long[] oldKeys = keys;
+    Object[] oldResults = results;
+    int[] oldEndPositions = endPositions;
+    Object[] oldEndExtendedData = endExtendedData;
+    int[] oldLines = lines;
+    int[] oldColumns = columns;
+    byte[] oldFlags = flags;
+    int[] oldGenerations = generations;
+    Object[] oldStartExtendedData = startExtendedData;
+    int live = 0;
+    for (int slot = 0; slot < oldKeys.length; ++slot) {
+      if (oldEpochs[slot] == epoch && position(oldKeys[slot]) >= windowStart) {
+        ++live;
+      }
+    }
+    int capacity = oldKeys.length;
+    while (4 * (live + 1) > capacity) {
+      capacity *= 2;
+    }
+    allocate(capacity);
+    used = 0;
+    for (int slot = 0; slot < oldKeys.length; ++slot) {
+      if (oldEpochs[slot] == epoch && position(oldKeys[slot]) >= windowStart) {
+        int newSlot = hash(oldKeys[slot]) & mask;
+        while (epochs[newSlot] == epoch) {
+          newSlot = (newSlot + 1) & mask;
+        }
+        epochs[newSlot] = epoch;
+        keys[newSlot] = oldKeys[slot];
+        results[newSlot] = oldResults[slot];
+        endPositions[newSlot] = oldEndPositions[slot];
+        endExtendedData[newSlot] = oldEndExtendedData[slot];
+        lines[newSlot] = oldLines[slot];
+        columns[newSlot] = oldColumns[slot];
+        flags[newSlot] = oldFlags[slot];
+        generations[newSlot] = oldGenerations[slot];
+        startExtendedData[newSlot] = oldStartExtendedData[slot];
+        occupied[used++] = newSlot;
+      }
+    }
+  }
+
+}
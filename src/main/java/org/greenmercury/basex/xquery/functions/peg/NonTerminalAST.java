@@ -0,0 +1,104 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.util.List;
+
+import org.greenmercury.basex.xquery.functions.peg.AutomataParser.NodeType;
+import org.greenmercury.basex.xquery.functions.peg.AutomataParser.NonTerminal;
+import org.waxeye.ast.IAST;
+import org.waxeye.ast.IASTVisitor;
+import org.waxeye.ast.IChar;
+import org.waxeye.ast.IPreParsedNonTerminal;
+import org.waxeye.ast.Position;
+
+/**
+ * A node in the parse tree for a non-terminal that was recognized by an {@link AutomataParser}.
+ * This takes the place of {@link org.waxeye.ast.AST}, which gets the non-terminal name from a generated enum type.
+ */
+public final class NonTerminalAST implements IAST<NodeType>
+{
+
+  private final NonTerminal nonTerminal;
+  private final List<IAST<NodeType>> children;
+  private final Position position;
+
+  public NonTerminalAST(NonTerminal nonTerminal, List<IAST<NodeType>> children, Position position)
+  {
+    this.nonTerminal = nonTerminal;
+    this.children = children;
+    this.position = position;
+  }
+
+  public NonTerminal getNonTerminal()
+  {
+    return nonTerminal;
+  }
+
+  @Override
+  public List<IAST<NodeType>> getChildren()
+  {
+    return children;
+  }
+
+  @Override
+  public Position getPosition()
+  {
+    return position;
+  }
+
+  @Override
+  public NodeType getType()
+  {
+    return NodeType.NON_TERMINAL;
+  }
+
+  @Override
+  public void acceptASTVisitor(IASTVisitor visitor)
+  {
+    visitor.visitAST(this);
+  }
+
+  @Override
+  public String childrenAsString()
+  {
+    StringBuilder sb = new StringBuilder();
+    for (IAST<NodeType> child : children) {
+      if (child instanceof IChar) {
+        sb.append(((IChar)child).getValue());
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Show the parse tree in the same format as the Waxeye {@link org.waxeye.ast.print.ArrowPrinter}.
+   */
+  @Override
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder();
+    appendTree(this, 0, sb);
+    return sb.toString();
+  }
+
+  private static void appendTree(IAST<?> tree, int indentLevel, StringBuilder sb)
+  {
+    for (int i = 1; i < indentLevel; ++i) {
+      sb.append("    ");
+    }
+    if (tree instanceof NonTerminalAST) {
+      if (indentLevel > 0) {
+        sb.append("->  ");
+      }
+      sb.append(((NonTerminalAST)tree).nonTerminal.getWaxeyeName());
+      for (IAST<?> child : tree.getChildren()) {
+        sb.append("\n");
+        appendTree(child, indentLevel + 1, sb);
+      }
+    } else if (tree instanceof IChar) {
+      sb.append(indentLevel > 0 ? "|   " : "").append(((IChar)tree).getValue());
+    } else if (tree instanceof IPreParsedNonTerminal<?>) {
+      sb.append(indentLevel > 0 ? "|   " : "").append('<').append(((IPreParsedNonTerminal<?>)tree).getName()).append('>');
+    }
+  }
+
+}
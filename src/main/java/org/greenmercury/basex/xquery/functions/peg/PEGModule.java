@@ -1,28 +1,48 @@
 package org.greenmercury.basex.xquery.functions.peg;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.net.URI;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.basex.query.CompileContext;
 import org.basex.query.QueryContext;
 import org.basex.query.QueryException;
 import org.basex.query.QueryModule;
+import org.basex.query.QueryResource;
 import org.basex.query.QueryString;
 import org.basex.query.expr.Arr;
 import org.basex.query.expr.Expr;
-import org.basex.query.func.java.JavaCall;
+import org.basex.query.iter.Iter;
 import org.basex.query.util.list.AnnList;
 import org.basex.query.value.Value;
+import org.basex.query.value.ValueBuilder;
 import org.basex.query.value.item.FuncItem;
+import org.basex.query.value.item.Item;
 import org.basex.query.value.item.QNm;
 import org.basex.query.value.item.Str;
-import org.basex.query.value.node.ANode;
+import org.basex.query.value.node.DBNode;
 import org.basex.query.value.type.FuncType;
 import org.basex.query.value.type.SeqType;
 import org.basex.query.var.Var;
 import org.basex.query.var.VarRef;
 import org.basex.query.var.VarScope;
+import org.basex.util.Token;
 import org.basex.util.hash.IntObjectMap;
 import org.basex.util.log.Log;
 import org.greenmercury.smax.SmaxDocument;
@@ -35,6 +55,9 @@ import org.w3c.dom.Element;
 public class PEGModule extends QueryModule
 {
 
+  /* The number of inputs of parse-all that are converted to SMAX documents and parsed together. */
+  private static final int PARSE_ALL_BATCH_SIZE = 1024;
+
   /**
    * A simple logger that can be used in the named entity recognition function.
    * @param qc the query context
@@ -81,6 +104,383 @@ public class PEGModule extends QueryModule
     return new FuncItem(null, parser, generatedFunctionParameters, AnnList.EMPTY, generatedFunctionType, generatedFunctionParameters.length, null);
 }
 
+  /**
+   * Parse a sequence of inputs with the same grammar, in parallel:
+   * parse-all($grammar as item(), $options as map(*)?, $inputs as item()*)  as  node()*
+   * The result is the same as <code>$inputs ! waxeye-peg-parser($grammar, $options)(.)</code>, in the order of the inputs.
+   * The inputs are converted to SMAX documents and back on the calling thread, in batches, and the documents in a batch are parsed in parallel.
+   */
+  @Requires(Permission.NONE)
+  @Deterministic
+  @ContextDependent
+  public Value parseAll(Object grammar, Map<String, String> options, Value inputs) throws QueryException {
+    WaxeyePEGParser parser = PEGParserFunction.newParser(grammar, options, logger(queryContext));
+    ValueBuilder results = new ValueBuilder(queryContext);
+    long size = inputs.size();
+    for (long batchStart = 0; batchStart < size; batchStart += PARSE_ALL_BATCH_SIZE) {
+      int batchSize = (int)Math.min(PARSE_ALL_BATCH_SIZE, size - batchStart);
+      Value[] batchInputs = new Value[batchSize];
+      List<SmaxDocument> smaxDocuments = new ArrayList<>(batchSize);
+      for (int i = 0; i < batchSize; ++i) {
+        batchInputs[i] = inputs.itemAt(batchStart + i);
+        smaxDocuments.add(PEGParserFunction.toSmax(batchInputs[i]));
+      }
+      parser.scanAll(smaxDocuments);
+      for (int i = 0; i < batchSize; ++i) {
+        results.add(PEGParserFunction.fromSmax(smaxDocuments.get(i), batchInputs[i], queryContext));
+      }
+    }
+    return results.value();
+  }
+
+  /**
+   * Test if there is a match in an input:
+   * contains($grammar as item(), $options as map(*)?, $input as item())  as  xs:boolean
+   * The input is a string, element or document, like for the generated function of waxeye-peg-parser.
+   * Scanning stops at the first match, and no result nodes are built.
+   * If the 'parse-errors' option is true, a parse error that would be shown also counts as a match.
+   */
+  @Requires(Permission.NONE)
+  @Deterministic
+  @ContextDependent
+  public boolean contains(Object grammar, Map<String, String> options, Value input) throws QueryException {
+    Map<String, String> firstMatchOptions = options == null ? new HashMap<>() : new HashMap<>(options);
+    firstMatchOptions.put("max-matches", "1");
+    WaxeyePEGParser parser = PEGParserFunction.newParser(grammar, firstMatchOptions, logger(queryContext));
+    return parser.scanOffsets(PEGParserFunction.toSmax(input)).size() > 0;
+  }
+
+  /**
+   * Find the positions of the non-terminals in the matches, without building the result nodes:
+   * match-offsets($grammar as item(), $options as map(*)?, $input as item())  as  map(xs:string, item())*
+   * The input is a string, element or document, like for the generated function of waxeye-peg-parser.
+   * For each non-terminal in the matches, in document order, there is a map with the 'name' of the non-terminal,
+   * and its 'start' and 'end' offsets in the text of the input, counted from 0, with the end after the last character.
+   * A parse error that is shown, when the 'parse-errors' option is true, has the name 'fn:error', and its start and end are where parsing failed.
+   */
+  @Requires(Permission.NONE)
+  @Deterministic
+  @ContextDependent
+  public Object[] matchOffsets(Object grammar, Map<String, String> options, Value input) throws QueryException {
+    WaxeyePEGParser parser = PEGParserFunction.newParser(grammar, options, logger(queryContext));
+    MatchOffsets matchOffsets = parser.scanOffsets(PEGParserFunction.toSmax(input));
+    Object[] results = new Object[matchOffsets.size()];
+    for (int i = 0; i < results.length; ++i) {
+      Map<String, Object> result = new LinkedHashMap<>();
+      result.put("name", matchOffsets.name(i));
+      result.put("start", (long)matchOffsets.start(i));
+      result.put("end", (long)matchOffsets.end(i));
+      results[i] = result;
+    }
+    return results;
+  }
+
+  /**
+   * The generator of a function that parses a text file, without reading all of it into memory:
+   * parse-file($grammar as item(), $options as map(*)?)  as  function(item()) as node()*
+   * The generated function takes a file, which is a path or a URI, and reads it through a charset decoder over a channel.
+   * Its result is the same as <code>waxeye-peg-parser($grammar, $options)(unparsed-text($file))</code>, but the text and matches are delivered by an iterator,
+   * and only the part of the text that the parser is looking at is kept in memory.
+   * The file is closed when the iterator is exhausted, and otherwise when the query ends.
+   * The 'encoding' option gives the encoding of the file. (Default is UTF-8.)
+   * This cannot be used with 'complete-match' or 'adjacent-matches'.
+   */
+  @Requires(Permission.CREATE)
+  @ContextDependent
+  public FuncItem parseFile(Object grammar, Map<String, String> options) throws QueryException {
+    WaxeyePEGParser parser = PEGParserFunction.newParser(grammar, options, logger(queryContext));
+    parser.checkStreamOptions();
+    String encoding = options == null || options.get("encoding") == null ? "UTF-8" : options.get("encoding");
+    try {
+      Charset.forName(encoding);
+    } catch (IllegalArgumentException e) {
+      throw new QueryException(e);
+    }
+    final Var[] generatedFunctionParameters = { new VarScope().addNew(new QNm("file"), SeqType.ITEM_O, queryContext, null) };
+    final Expr[] generatedFunctionParameterExprs = { new VarRef(null, generatedFunctionParameters[0]) };
+    final SeqType generatedFunctionResultType = SeqType.NODE_ZM;
+    final FuncType generatedFunctionType = FuncType.get(generatedFunctionResultType, generatedFunctionParameters[0].declType);
+    FileParserFunction fileParser = new FileParserFunction(parser, encoding, generatedFunctionResultType, generatedFunctionParameterExprs);
+    return new FuncItem(null, fileParser, generatedFunctionParameters, AnnList.EMPTY, generatedFunctionType, generatedFunctionParameters.length, null);
+  }
+
+  /**
+   * The generator of a function that parses a text that is given as a sequence of chunks, such as lines, without concatenating them:
+   * parse-chunks($grammar as item(), $options as map(*)?)  as  function(item()*) as node()*
+   * The result of the generated function is the same as <code>waxeye-peg-parser($grammar, $options)(string-join($chunks))</code>,
+   * and matches may cross the boundaries between chunks.
+   * Each chunk is taken by its string value, so it may be a string, a text node or another node, or an atomic value.
+   * The chunks are taken from an iterator one at a time, when the parser needs more text, and the text and matches are delivered by an iterator
+   * when the query asks for them, as soon as they are final.
+   * This cannot be used with 'complete-match' or 'adjacent-matches'.
+   */
+  @Requires(Permission.NONE)
+  @Deterministic
+  @ContextDependent
+  public FuncItem parseChunks(Object grammar, Map<String, String> options) throws QueryException {
+    WaxeyePEGParser parser = PEGParserFunction.newParser(grammar, options, logger(queryContext));
+    parser.checkStreamOptions();
+    final Var[] generatedFunctionParameters = { new VarScope().addNew(new QNm("chunks"), SeqType.ITEM_ZM, queryContext, null) };
+    final Expr[] generatedFunctionParameterExprs = { new VarRef(null, generatedFunctionParameters[0]) };
+    final SeqType generatedFunctionResultType = SeqType.NODE_ZM;
+    final FuncType generatedFunctionType = FuncType.get(generatedFunctionResultType, generatedFunctionParameters[0].declType);
+    ChunksParserFunction chunksParser = new ChunksParserFunction(parser, generatedFunctionResultType, generatedFunctionParameterExprs);
+    return new FuncItem(null, chunksParser, generatedFunctionParameters, AnnList.EMPTY, generatedFunctionType, generatedFunctionParameters.length, null);
+  }
+
+  /**
+   * Register a character mapping that can be used as the value of the 'normalize' option:
+   * register-normalization($name as xs:string, $base as xs:string, $mapping as map(xs:string, xs:string))  as  empty-sequence()
+   * The new mapping is the registered mapping named $base ('ascii', 'identity', or an earlier registered mapping),
+   * with the characters that are keys in $mapping mapped to their values. Keys and values must be single characters.
+   * Registered mappings are shared by all queries of all users, so this needs admin permission.
+   */
+  @Requires(Permission.ADMIN)
+  public void registerNormalization(String name, String base, Map<String, String> mapping) throws QueryException {
+    try {
+      CharMapping.register(name, CharMapping.forName(base).with(mapping));
+    } catch (IllegalArgumentException e) {
+      throw new QueryException(e);
+    }
+  }
+
+  /**
+   * Open a channel for a file, given as a path or as a URI.
+   */
+  private static ReadableByteChannel openChannel(Object file) throws IOException {
+    if (file instanceof URI && "file".equals(((URI)file).getScheme())) {
+      return FileChannel.open(Paths.get((URI)file), StandardOpenOption.READ);
+    } else if (file instanceof URI) {
+      return Channels.newChannel(((URI)file).toURL().openStream());
+    } else if (file instanceof URL) {
+      return Channels.newChannel(((URL)file).openStream());
+    } else if (file instanceof String && ((String)file).startsWith("file:")) {
+      return FileChannel.open(Paths.get(URI.create((String)file)), StandardOpenOption.READ);
+    } else if (file instanceof String) {
+      return FileChannel.open(Paths.get((String)file), StandardOpenOption.READ);
+    } else {
+      throw new IllegalArgumentException("The parameter ($file) of the function generated by parse-file can not be a "+file.getClass().getName());
+    }
+  }
+
+  /**
+   * Statistics of the cache for compiled grammars:
+   * parser-cache-statistics()  as  map(xs:string, xs:integer)
+   */
+  @Requires(Permission.NONE)
+  public Map<String, Long> parserCacheStatistics() {
+    ParserCache parserCache = ParserCache.shared();
+    Map<String, Long> statistics = new LinkedHashMap<>();
+    statistics.put("size", (long)parserCache.size());
+    statistics.put("weight", parserCache.getWeight());
+    statistics.put("hits", parserCache.getHits());
+    statistics.put("misses", parserCache.getMisses());
+    statistics.put("waits", parserCache.getWaits());
+    return statistics;
+  }
+
+  /**
+   * The channels of the files that are read by the functions generated by parse-file in a query.
+   * The channels that are still open when the query ends are closed then.
+   */
+  private static final class OpenChannels implements QueryResource {
+
+    private final Set<ReadableByteChannel> channels = new HashSet<>();
+
+    synchronized void add(ReadableByteChannel channel) {
+      channels.add(channel);
+    }
+
+    synchronized void close(ReadableByteChannel channel) throws IOException {
+      channels.remove(channel);
+      channel.close();
+    }
+
+    @Override
+    public synchronized void close() {
+      for (ReadableByteChannel channel : channels) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          // The query has ended, and there is nobody to report this to.
+        }
+      }
+      channels.clear();
+    }
+
+  }
+
+  /**
+   * Delivers the nodes for the parts of the result of a stream scanner, and pushes chunks to the scanner when it needs more text.
+   */
+  private static final class ScannerIter extends Iter {
+
+    private final WaxeyePEGParser.StreamScanner scanner;
+    private Iter chunks;
+    private final ReadableByteChannel channel;
+    private final QueryContext qc;
+    private Value part = null;
+    private long index = 0;
+
+    /**
+     * @param scanner the scanner.
+     * @param chunks the iterator over the chunks of text, or null if the scanner reads the text.
+     * @param channel the channel that the scanner reads from, which is closed at the end, or null.
+     * @param qc the query context.
+     */
+    ScannerIter(WaxeyePEGParser.StreamScanner scanner, Iter chunks, ReadableByteChannel channel, QueryContext qc)
+    {
+      this.scanner = scanner;
+      this.chunks = chunks;
+      this.channel = channel;
+      this.qc = qc;
+    }
+
+    @Override
+    public Item next() throws QueryException {
+      try {
+        while (part == null || index == part.size()) {
+          SmaxDocument smaxDocument = scanner.next();
+          if (smaxDocument != null) {
+            part = BaseXNodeBuilder.children(smaxDocument, qc);
+            index = 0;
+          } else if (scanner.isFinished()) {
+            close();
+            return null;
+          } else if (chunks != null) {
+            // A chunk may be a string, a text node or another item that has a string value.
+            Item chunk = chunks.next();
+            if (chunk == null) {
+              chunks = null;
+              scanner.end();
+            } else {
+              scanner.push(Token.string(chunk.string(null)));
+            }
+          } else {
+            scanner.end();
+          }
+        }
+        return part.itemAt(index++);
+      } catch (IOException e) {
+        try {
+          close();
+        } catch (IOException closeException) {
+          e.addSuppressed(closeException);
+        }
+        throw new QueryException(e);
+      }
+    }
+
+    private void close() throws IOException {
+      if (channel != null) {
+        qc.resources.index(OpenChannels.class, OpenChannels::new).close(channel);
+      }
+    }
+
+  }
+
+  /**
+   * The function generated by parse-chunks.
+   * The chunks are taken from the iterator of the argument while the result is iterated.
+   */
+  private static final class ChunksParserFunction extends Arr {
+
+    private final WaxeyePEGParser parser;
+
+    private ChunksParserFunction(WaxeyePEGParser parser, SeqType generatedFunctionResultType, Expr[] generatedFunctionParameterExprs)
+    {
+      super(null, generatedFunctionResultType, generatedFunctionParameterExprs);
+      this.parser = parser;
+    }
+
+    @Override
+    public Iter iter(final QueryContext qc)
+    throws QueryException
+    {
+      return new ScannerIter(parser.scanChunks(), arg(0).iter(qc), null, qc);
+    }
+
+    @Override
+    public Value value(final QueryContext qc)
+    throws QueryException
+    {
+      return iter(qc).value(qc, this);
+    }
+
+    @Override
+    public Expr copy(CompileContext cc, IntObjectMap<Var> vm)
+    {
+      Expr[] functionParameterExprs = copyAll(cc, vm, this.args());
+      return copyType(new ChunksParserFunction(this.parser, this.seqType(), functionParameterExprs));
+    }
+
+    @Override
+    public void toString(QueryString qs)
+    {
+      qs.token("generated-"+this.getClass().getName()).params(exprs);
+    }
+
+  }
+
+  /**
+   * The function generated by parse-file.
+   * The file is opened when the result is iterated, and the iterator delivers the nodes while the file is read.
+   */
+  private static final class FileParserFunction extends Arr {
+
+    private final WaxeyePEGParser parser;
+    private final String encoding;
+
+    private FileParserFunction(WaxeyePEGParser parser, String encoding,
+        SeqType generatedFunctionResultType, Expr[] generatedFunctionParameterExprs)
+    {
+      super(null, generatedFunctionResultType, generatedFunctionParameterExprs);
+      this.parser = parser;
+      this.encoding = encoding;
+    }
+
+    @Override
+    public Iter iter(final QueryContext qc)
+    throws QueryException
+    {
+      Object file = arg(0).item(qc, info).toJava();
+      OpenChannels openChannels = qc.resources.index(OpenChannels.class, OpenChannels::new);
+      ReadableByteChannel channel;
+      try {
+        channel = openChannel(file);
+      } catch (IOException | IllegalArgumentException e) {
+        throw new QueryException(e);
+      }
+      openChannels.add(channel);
+      CharsetDecoder decoder = Charset.forName(encoding).newDecoder()
+          .onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+      // Closing the channel closes the reader.
+      Reader reader = Channels.newReader(channel, decoder, -1);
+      return new ScannerIter(parser.scanStream(reader), null, channel, qc);
+    }
+
+    @Override
+    public Value value(final QueryContext qc)
+    throws QueryException
+    {
+      return iter(qc).value(qc, this);
+    }
+
+    @Override
+    public Expr copy(CompileContext cc, IntObjectMap<Var> vm)
+    {
+      Expr[] functionParameterExprs = copyAll(cc, vm, this.args());
+      return copyType(new FileParserFunction(this.parser, this.encoding, this.seqType(), functionParameterExprs));
+    }
+
+    @Override
+    public void toString(QueryString qs)
+    {
+      qs.token("generated-"+this.getClass().getName()).params(exprs);
+    }
+
+  }
+
   /**
    * The generated PEG parser function.
    */
@@ -95,13 +495,19 @@ public class PEGModule extends QueryModule
     {
       super(null, generatedFunctionResultType, generatedFunctionParameterExprs);
       this.logger = logger(queryContext);
+      this.parser = newParser(grammar, options, logger);
+    }
+
+    private static WaxeyePEGParser newParser(Object grammar, Map<String, String> options, Logger logger)
+    throws QueryException
+    {
       try {
         if (grammar instanceof URL) {
-          this.parser = new WaxeyePEGParser((URL)grammar, options, logger);
+          return new WaxeyePEGParser((URL)grammar, options, logger);
         } else if (grammar instanceof URI) {
-          this.parser = new WaxeyePEGParser(((URI)grammar).toURL(), options, logger);
+          return new WaxeyePEGParser(((URI)grammar).toURL(), options, logger);
         } else if (grammar instanceof String) {
-          this.parser = new WaxeyePEGParser((String)grammar, options, logger);
+          return new WaxeyePEGParser((String)grammar, options, logger);
         } else {
           throw new IllegalArgumentException("The first parameter ($grammar) of waxeye-peg-parser can not be a "+grammar.getClass().getName());
         }
@@ -126,15 +532,37 @@ public class PEGModule extends QueryModule
     throws QueryException
     {
       Value inputValue = arg(0).value(qc);
+      // Create a SMAX document from the input.
+      SmaxDocument smaxDocument = toSmax(inputValue);
+
+      // Parse the SMAX document's text content and insert new markup.
+      this.parser.scan(smaxDocument);
+
+      // Convert the SMAX document to something that BaseX can use.
+      return fromSmax(smaxDocument, inputValue, qc);
+    }
+
+    /**
+     * Create a SMAX document from an input of the generated function.
+     */
+    private static SmaxDocument toSmax(Value inputValue) throws QueryException
+    {
       boolean inputIsString = inputValue.seqType().instanceOf(SeqType.STRING_O);
       boolean inputIsElement = inputValue.seqType().instanceOf(SeqType.ELEMENT_O);
-      // Create a SMAX document from the input.
       SmaxDocument smaxDocument = null;
       if (inputIsString) {
         // Create a SMAX document with a <wrapper> root element around the input string.
-        final String inputString = ((Str)inputValue).toJava();
+        // A string that only contains ASCII characters is used as it is kept by BaseX, without decoding it.
+        final byte[] inputBytes = ((Str)inputValue).string();
+        CharSequence inputString = AsciiText.of(inputBytes);
+        if (inputString == null) {
+          inputString = Token.string(inputBytes);
+        }
         final SmaxElement wrapper = new SmaxElement("wrapper").setStartPos(0).setEndPos(inputString.length());
         smaxDocument = new SmaxDocument(wrapper, inputString);
+      } else if ((inputIsElement || inputValue.seqType().instanceOf(SeqType.DOCUMENT_NODE_O)) && inputValue instanceof DBNode
+          && (smaxDocument = SmaxNodeReader.read((DBNode)inputValue)) != null) {
+        // The SMAX document has been read directly from the database.
       } else if (inputIsElement) {
         // Create a SMAX document from this element.
         try {
@@ -152,28 +580,24 @@ public class PEGModule extends QueryModule
       } else {
         throw new QueryException("The generated function accepts a string or document-node or element, but not a "+inputValue.seqType().typeString());
       }
+      return smaxDocument;
+    }
 
-      // Parse the SMAX document's text content and insert new markup.
-      this.parser.scan(smaxDocument);
-
-      // Convert the SMAX document to something that BaseX can use.
-      Document outputDocument;
-      try {
-        outputDocument = Dom.documentFromSmax(smaxDocument, true);
-      } catch (Exception e) {
-        throw new QueryException(e);
-      }
-      ANode bxOutputDocument = (ANode)JavaCall.toValue(outputDocument, qc, null);
-      if (inputIsString) {
-        // Get the wrapper element and return its children.
-        ANode wrapper = bxOutputDocument.childIter().next();
-        return wrapper.childIter().value(qc, null);
-      } else if (inputIsElement) {
-        // Return the root element of the output document.
-        return bxOutputDocument.childIter().next();
+    /**
+     * Convert a parsed SMAX document to the result of the generated function, which depends on the type of the input.
+     * The BaseX nodes are built directly from the SMAX document.
+     */
+    private static Value fromSmax(SmaxDocument smaxDocument, Value inputValue, QueryContext qc)
+    {
+      if (inputValue.seqType().instanceOf(SeqType.STRING_O)) {
+        // Return the children of the wrapper element.
+        return BaseXNodeBuilder.children(smaxDocument, qc);
+      } else if (inputValue.seqType().instanceOf(SeqType.ELEMENT_O)) {
+        // Return the root element.
+        return BaseXNodeBuilder.element(smaxDocument);
       } else {
-        // Return the output document.
-        return bxOutputDocument;
+        // Return a document.
+        return BaseXNodeBuilder.document(smaxDocument);
       }
     }
 
@@ -0,0 +1,509 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.basex.query.QueryException;
+
+import org.waxeye.parser.FA;
+import org.waxeye.parser.State;
+
+/**
+ * A thread-safe cache for compiled grammars, with least-recently-used eviction.
+ *<p>
+ * A parser is cached under a key that is a digest of the grammar text and of the options that affect grammar compilation.
+ * Therefore, the same grammar text gets the same parser, whether it comes from a string, a <code>file:</code> URL or another URL.
+ * The modules of a modular grammar are not part of the key. Instead, the digest of their texts is kept with the parser,
+ * and checked when the parser is retrieved and a module may have changed.
+ * A module file may have changed when its modification time or size has changed.
+ * Modules that are not files are checked when they were last checked more than
+ * <code>org.greenmercury.peg.cache.module-check-interval</code> milliseconds ago (default 5000).
+ *<p>
+ * The cache is bounded by the number of parsers and by their total weight, which is the number of states and edges in their automata.
+ * The bounds can be set with the system properties <code>org.greenmercury.peg.cache.max-entries</code> (default 64)
+ * and <code>org.greenmercury.peg.cache.max-weight</code> (default 1000000).
+ *<p>
+ * A grammar that is requested by several threads at the same time is compiled only once; the other threads wait for the result.
+ * The number of grammars that are compiled at the same time is limited by the system property
+ * <code>org.greenmercury.peg.compile.max-concurrent</code> (default half the number of processors, at least 1),
+ * so that compiling many different grammars does not starve the threads that are parsing.
+ */
+public final class ParserCache
+{
+
+  public static final long DEFAULT_MAX_ENTRIES = 64;
+  public static final long DEFAULT_MAX_WEIGHT = 1_000_000;
+  public static final long DEFAULT_MODULE_CHECK_INTERVAL = 5000;
+
+  private static final long moduleCheckInterval = Long.getLong("org.greenmercury.peg.cache.module-check-interval", DEFAULT_MODULE_CHECK_INTERVAL);
+
+  private static final ParserCache sharedCache = new ParserCache(
+      Long.getLong("org.greenmercury.peg.cache.max-entries", DEFAULT_MAX_ENTRIES),
+      Long.getLong("org.greenmercury.peg.cache.max-weight", DEFAULT_MAX_WEIGHT),
+      Integer.getInteger("org.greenmercury.peg.compile.max-concurrent", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+
+  /**
+   * A compiled grammar, with the modules that it was read from, and the digest of the texts of the modules that were compiled.
+   */
+  public static final class Compiled
+  {
+    private final AutomataParser parser;
+    private final List<URL> modules;
+    private final String modulesDigest;
+
+    /**
+     * @param parser the parser for the compiled grammar.
+     * @param modules the modules of a modular grammar, see {@link Grammar#getModules()}.
+     * @param modulesDigest the digest of the modules, see {@link ParserCache#modulesDigest(List, List)}, or "" if there are no modules.
+     */
+    public Compiled(AutomataParser parser, List<URL> modules, String modulesDigest)
+    {
+      this.parser = parser;
+      this.modules = modules;
+      this.modulesDigest = modulesDigest;
+    }
+
+    /**
+     * @param parser the parser for the compiled grammar.
+     * @param grammar the grammar that was compiled, with the modules and their texts as they were read.
+     */
+    public Compiled(AutomataParser parser, Grammar grammar)
+    {
+      this(parser, grammar.getModules(), grammar.getModules().isEmpty() ? "" : modulesDigest(grammar.getModules(), grammar.getModuleTexts()));
+    }
+
+    public AutomataParser getParser()
+    {
+      return parser;
+    }
+
+    public List<URL> getModules()
+    {
+      return modules;
+    }
+
+    public String getModulesDigest()
+    {
+      return modulesDigest;
+    }
+  }
+
+  /**
+   * Compiles a grammar, or loads a compiled grammar, when it is not in the cache.
+   */
+  @FunctionalInterface
+  public interface Compiler
+  {
+    Compiled compile() throws IOException, QueryException;
+  }
+
+  private static final class Entry
+  {
+    private final AutomataParser parser;
+    private final List<URL> modules;
+    private final String modulesDigest;
+    private final long weight;
+    /* The modification times and sizes of the modules when their digest was last checked, and the time of that check.
+       The stamps are null before the first check. */
+    private volatile long[] moduleStamps;
+    private volatile long checkedAt;
+
+    Entry(AutomataParser parser, List<URL> modules, String modulesDigest, long[] moduleStamps)
+    {
+      this.parser = parser;
+      this.modules = modules;
+      this.modulesDigest = modulesDigest;
+      this.weight = weight(parser);
+      this.moduleStamps = moduleStamps;
+      this.checkedAt = System.currentTimeMillis();
+    }
+  }
+
+  private final long maxEntries;
+  private final long maxWeight;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalWeight = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long waits = 0;
+  private final Map<String, CompletableFuture<AutomataParser>> compilations = new ConcurrentHashMap<>();
+  private final Semaphore compilationPermits;
+
+
+  public ParserCache(long maxEntries, long maxWeight, int maxConcurrentCompilations)
+  {
+    this.maxEntries = maxEntries;
+    this.maxWeight = maxWeight;
+    this.compilationPermits = new Semaphore(Math.max(1, maxConcurrentCompilations), true);
+  }
+
+
+  /**
+   * @return the cache that is shared by all {@link WaxeyePEGParser}s.
+   */
+  public static ParserCache shared()
+  {
+    return sharedCache;
+  }
+
+
+  /**
+   * Make the cache key for a grammar.
+   * @param grammarText the text of the grammar.
+   * @param modular true if the grammar is modular.
+   * @param base the URL against which the modules of a modular grammar are resolved, or null.
+   * @param caseInsensitive true if the literals and character classes of the grammar are folded to lower case.
+   * @return the key.
+   */
+  public static String key(String grammarText, boolean modular, URL base, boolean caseInsensitive)
+  {
+    StringBuilder options = new StringBuilder("modular=").append(modular);
+    if (modular) {
+      // Modules are resolved against the base, so the same text may refer to different modules.
+      options.append(";base=").append(base);
+    }
+    if (caseInsensitive) {
+      options.append(";case-insensitive");
+    }
+    return digest(options.toString(), grammarText);
+  }
+
+
+  /**
+   * Get a parser from the cache.
+   * @param key the key made by {@link #key(String, boolean, URL, boolean)}.
+   * @return the cached parser, or null if there is no parser for the key, or if the modules of a cached modular grammar have changed.
+   * @throws IOException if a module of a cached modular grammar cannot be read.
+   */
+  public AutomataParser get(String key) throws IOException
+  {
+    AutomataParser parser = lookup(key);
+    synchronized (this) {
+      if (parser == null) {
+        ++misses;
+      } else {
+        ++hits;
+      }
+    }
+    return parser;
+  }
+
+
+  /**
+   * Get a parser from the cache, without counting a hit or miss.
+   * A cached modular grammar whose modules have changed is removed.
+   */
+  private AutomataParser lookup(String key) throws IOException
+  {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+    }
+    if (entry != null && !entry.modules.isEmpty() && !modulesUnchanged(entry)) {
+      synchronized (this) {
+        if (entries.get(key) == entry) {
+          entries.remove(key);
+          totalWeight -= entry.weight;
+        }
+      }
+      entry = null;
+    }
+    return entry == null ? null : entry.parser;
+  }
+
+
+  /**
+   * Get a parser from the cache, or compile it and put it into the cache.
+   * When another thread is already compiling the grammar for the same key, wait for its result instead of compiling again.
+   * Each call counts as one hit, miss or wait.
+   * @param key the key made by {@link #key(String, boolean, URL, boolean)}.
+   * @param compiler compiles the grammar if it is not in the cache.
+   * @return the parser.
+   * @throws IOException if the grammar or one of its modules cannot be read.
+   * @throws QueryException if the grammar cannot be compiled, or if the thread is interrupted while waiting.
+   */
+  public AutomataParser get(String key, Compiler compiler) throws IOException, QueryException
+  {
+    AutomataParser parser = lookup(key);
+    if (parser != null) {
+      synchronized (this) {
+        ++hits;
+      }
+      return parser;
+    }
+    CompletableFuture<AutomataParser> compilation = new CompletableFuture<>();
+    CompletableFuture<AutomataParser> running = compilations.putIfAbsent(key, compilation);
+    if (running != null) {
+      synchronized (this) {
+        ++waits;
+      }
+      return await(running);
+    }
+    try {
+      // Another thread may have put the parser into the cache after the first look.
+      synchronized (this) {
+        Entry entry = entries.get(key);
+        parser = entry == null ? null : entry.parser;
+        if (parser == null) {
+          ++misses;
+        } else {
+          ++hits;
+        }
+      }
+      if (parser == null) {
+        try {
+          compilationPermits.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new QueryException("Interrupted while waiting to compile a grammar.");
+        }
+        try {
+          Compiled compiled = compiler.compile();
+          parser = compiled.getParser();
+          put(key, compiled);
+        } finally {
+          compilationPermits.release();
+        }
+      }
+      compilation.complete(parser);
+      return parser;
+    } catch (IOException | QueryException | RuntimeException | Error e) {
+      compilation.completeExceptionally(e);
+      throw e;
+    } finally {
+      compilations.remove(key, compilation);
+    }
+  }
+
+
+  private static AutomataParser await(CompletableFuture<AutomataParser> compilation) throws IOException, QueryException
+  {
+    try {
+      return compilation.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new QueryException("Interrupted while waiting for a grammar to be compiled.");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      } else if (cause instanceof QueryException) {
+        throw (QueryException)cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new QueryException(cause);
+    }
+  }
+
+
+  /**
+   * Put a parser into the cache, evicting the least recently used parsers if the cache becomes too large.
+   * A parser that is heavier than the maximum weight is not cached.
+   * @param key the key made by {@link #key(String, boolean, URL, boolean)}.
+   * @param compiled the compiled grammar, with the digest of the module texts that it was compiled from.
+   */
+  public void put(String key, Compiled compiled)
+  {
+    // The modification times and sizes of the modules when they were read are not known, so the first check reads the modules.
+    Entry entry = new Entry(compiled.getParser(), List.copyOf(compiled.getModules()), compiled.getModulesDigest(), null);
+    synchronized (this) {
+      if (entry.weight > maxWeight || maxEntries <= 0) {
+        return;
+      }
+      Entry previous = entries.put(key, entry);
+      if (previous != null) {
+        totalWeight -= previous.weight;
+      }
+      totalWeight += entry.weight;
+      Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+      while (entries.size() > maxEntries || totalWeight > maxWeight) {
+        Entry evicted = eldest.next().getValue();
+        eldest.remove();
+        totalWeight -= evicted.weight;
+      }
+    }
+  }
+
+
+  public synchronized void clear()
+  {
+    entries.clear();
+    totalWeight = 0;
+  }
+
+
+  public synchronized int size()
+  {
+    return entries.size();
+  }
+
+
+  public synchronized long getWeight()
+  {
+    return totalWeight;
+  }
+
+
+  public synchronized long getHits()
+  {
+    return hits;
+  }
+
+
+  public synchronized long getMisses()
+  {
+    return misses;
+  }
+
+
+  /**
+   * @return the number of times that a thread waited for another thread to compile the same grammar.
+   */
+  public synchronized long getWaits()
+  {
+    return waits;
+  }
+
+
+  @Override
+  public synchronized String toString()
+  {
+    return "parser cache: "+entries.size()+" parsers, weight "+totalWeight+", "+hits+" hits, "+misses+" misses, "+waits+" waits";
+  }
+
+
+  private static long weight(AutomataParser parser)
+  {
+    long weight = 0;
+    for (FA<?> automaton : parser.getAutomata()) {
+      for (State<?> state : automaton.getStates()) {
+        weight += 1 + state.getEdges().size();
+      }
+    }
+    return weight;
+  }
+
+
+  /**
+   * Check if the modules of a cached modular grammar are the same as when the grammar was cached.
+   * The texts of the modules are only read when a module may have changed, see the description of this class.
+   */
+  private static boolean modulesUnchanged(Entry entry) throws IOException
+  {
+    long[] stamps = moduleStamps(entry.modules);
+    long now = System.currentTimeMillis();
+    boolean allFiles = true;
+    for (long stamp : stamps) {
+      allFiles &= stamp >= 0;
+    }
+    if (Arrays.equals(stamps, entry.moduleStamps) && (allFiles || now - entry.checkedAt < moduleCheckInterval)) {
+      return true;
+    }
+    if (!entry.modulesDigest.equals(modulesDigest(entry.modules))) {
+      return false;
+    }
+    entry.moduleStamps = stamps;
+    entry.checkedAt = now;
+    return true;
+  }
+
+
+  /**
+   * Get the modification time and size of each module, which change when a module file changes.
+   * These are -1 for a module that is not a file, or whose attributes cannot be read.
+   */
+  private static long[] moduleStamps(List<URL> modules)
+  {
+    long[] stamps = new long[2 * modules.size()];
+    Arrays.fill(stamps, -1);
+    for (int i = 0; i < modules.size(); ++i) {
+      URL module = modules.get(i);
+      if ("file".equals(module.getProtocol())) {
+        try {
+          BasicFileAttributes attributes = Files.readAttributes(Paths.get(module.toURI()), BasicFileAttributes.class);
+          stamps[2 * i] = attributes.lastModifiedTime().toMillis();
+          stamps[2 * i + 1] = attributes.size();
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+          // The module is checked by reading its text.
+        }
+      }
+    }
+    return stamps;
+  }
+
+
+  /**
+   * Make the digest of the current texts of the modules of a modular grammar.
+   * @throws IOException if a module cannot be read.
+   */
+  static String modulesDigest(List<URL> modules) throws IOException
+  {
+    List<String> texts = new ArrayList<>(modules.size());
+    for (URL module : modules) {
+      texts.add(GrammarReader.readText(module));
+    }
+    return modulesDigest(modules, texts);
+  }
+
+
+  /**
+   * Make the digest of the modules of a modular grammar.
+   * @param modules the modules.
+   * @param texts the texts of the modules, at the same index.
+   * @return the digest.
+   */
+  static String modulesDigest(List<URL> modules, List<String> texts)
+  {
+    String[] parts = new String[2 * modules.size()];
+    for (int i = 0; i < modules.size(); ++i) {
+      parts[2 * i] = modules.get(i).toString();
+      parts[2 * i + 1] = texts.get(i);
+    }
+    return digest(parts);
+  }
+
+
+  private static String digest(String... parts)
+  {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform must support SHA-256.
+      throw new IllegalStateException(e);
+    }
+    for (String part : parts) {
+      byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+      // The length separates the parts, so that ("ab", "c") and ("a", "bc") have different digests.
+      digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.US_ASCII));
+      digest.update((byte)':');
+      digest.update(bytes);
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+}
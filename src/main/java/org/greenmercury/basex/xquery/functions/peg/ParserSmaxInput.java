@@ -1,18 +1,30 @@
 package org.greenmercury.basex.xquery.functions.peg;
 
+import java.nio.CharBuffer;
+
 import org.greenmercury.smax.SmaxElement;
 import org.waxeye.input.IParserInput;
 
 /**
  * A class to represent the buffer to hold the input string, with support for extended data.
+ *<p>
+ * The input is a region of a text, which is not copied. The text can be a <code>char[]</code>, any <code>CharSequence</code>,
+ * or an {@link AsciiText} that holds the UTF-8 bytes of an ASCII text, such as a BaseX string.
+ * The input is also a <code>CharSequence</code> for the characters of the region.
+ *<p>
+ * An input can be normalized by a {@link CharMapping}. The mapping is applied when the parser looks at a character,
+ * so there is no normalized copy of the text, and characters that the parser does not look at are not mapped.
  *
  * @author Orlando Hill
  * @author Nico Verwer
  */
-public class ParserSmaxInput implements IParserInput<SmaxElement>
+public abstract class ParserSmaxInput implements IParserInput<SmaxElement>, CharSequence
 {
-  /** The internal buffer. */
-  private final char[] input;
+  /** The text that contains the input. */
+  private final Object text;
+
+  /** The start of the input in the text. */
+  protected final int start;
 
   /** The size of the buffer. */
   private final int inputSize;
@@ -43,19 +55,76 @@ public class ParserSmaxInput implements IParserInput<SmaxElement>
   };
 
   /**
-   * Creates a new ParserSmaxInput for the given char[]. The position starts at index 0, the extendedData at null.
+   * Creates a new ParserSmaxInput for a region of a text. The position starts at index 0, the extendedData at null.
    *
-   * @param input The char[] to use for our buffer.
+   * @param text The text.
+   * @param start The start of the region in the text.
+   * @param inputSize The length of the region.
    */
-  public ParserSmaxInput(final char[] input)
+  protected ParserSmaxInput(final Object text, final int start, final int inputSize)
   {
-    this.input = input;
+    this.text = text;
+    this.start = start;
     this.position = 0;
-    this.inputSize = input.length;
+    this.inputSize = inputSize;
     this.extendedData = null;
     assert invariants();
   }
 
+  /**
+   * Creates a new ParserSmaxInput for the given char[].
+   *
+   * @param input The char[] to use for our buffer.
+   * @return the input.
+   */
+  public static ParserSmaxInput of(final char[] input)
+  {
+    return new CharArrayInput(input, 0, input.length);
+  }
+
+  /**
+   * Creates a new ParserSmaxInput for a region of a text, without copying the text.
+   *
+   * @param text The text.
+   * @param start The start of the region in the text.
+   * @param end The end of the region in the text.
+   * @return the input.
+   */
+  public static ParserSmaxInput of(final CharSequence text, final int start, final int end)
+  {
+    if (text instanceof AsciiText) {
+      AsciiText asciiText = (AsciiText)text;
+      return new AsciiBytesInput(asciiText.getBytes(), asciiText.getOffset() + start, end - start);
+    }
+    return new CharSequenceInput(text, start, end - start);
+  }
+
+  /**
+   * Creates a new ParserSmaxInput for a region of a text, without copying the text, that shows the characters converted by a mapping.
+   *
+   * @param text The text.
+   * @param start The start of the region in the text.
+   * @param end The end of the region in the text.
+   * @param mapping The mapping of the characters, or null if the characters are not converted.
+   * @return the input.
+   */
+  public static ParserSmaxInput of(final CharSequence text, final int start, final int end, final CharMapping mapping)
+  {
+    ParserSmaxInput input = of(text, start, end);
+    return mapping == null ? input : new MappedInput(input, mapping);
+  }
+
+  /**
+   * Returns the characters of the input as they are in the text, without the conversion of a mapping.
+   * The positions are the same as in this input.
+   *
+   * @return the characters of the input.
+   */
+  public CharSequence unmapped()
+  {
+    return this;
+  }
+
   /**
    * Checks the invariants of the object.
    *
@@ -63,11 +132,20 @@ public class ParserSmaxInput implements IParserInput<SmaxElement>
    */
   private boolean invariants()
   {
-    assert input != null;
+    assert text != null;
     assert position >= 0 && position <= inputSize;
     return true;
   }
 
+  /**
+   * Returns the character at a position in the input.
+   *
+   * @param index The position, from 0 to the inputSize.
+   * @return the character.
+   */
+  @Override
+  public abstract char charAt(int index);
+
   /** {@inheritDoc} */
   @Override
   public int consume()
@@ -75,7 +153,7 @@ public class ParserSmaxInput implements IParserInput<SmaxElement>
       if (position < inputSize)
       {
           this.extendedData = null; // Reset the markup position.
-          return input[position++];
+          return charAt(position++);
       }
       return EOF;
   }
@@ -86,7 +164,7 @@ public class ParserSmaxInput implements IParserInput<SmaxElement>
   {
       if (position < inputSize)
       {
-          return input[position];
+          return charAt(position);
       }
       return EOF;
   }
@@ -108,6 +186,27 @@ public class ParserSmaxInput implements IParserInput<SmaxElement>
       return inputSize;
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public int length()
+  {
+      return inputSize;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CharSequence subSequence(final int start, final int end)
+  {
+      return CharBuffer.wrap(this, start, end);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString()
+  {
+      return new StringBuilder(inputSize).append(this, 0, inputSize).toString();
+  }
+
   /**
    * Sets the position of the input buffer to the given value. If the value
    * given is less than 0 then the position is set to 0.
@@ -142,7 +241,7 @@ public class ParserSmaxInput implements IParserInput<SmaxElement>
       if (object != null && object.getClass() == this.getClass())
       {
           final ParserSmaxInput b = (ParserSmaxInput) object;
-          if (input != b.input || position != b.position)
+          if (text != b.text || start != b.start || position != b.position)
           {
               return false;
           }
@@ -155,15 +254,12 @@ public class ParserSmaxInput implements IParserInput<SmaxElement>
   @Override
   public int hashCode()
   {
-      final int start = 17;
+      final int initial = 17;
       final int mult = 37;
-      int result = start;
-      if (input != null)
+      int result = initial;
+      for (int i = 0; i < inputSize; ++i)
       {
-          for (char c : input)
-          {
-              result = mult * (result + c);
-          }
+          result = mult * (result + charAt(i));
       }
       result = mult * result + position + (extendedData == null ? 0 : extendedData.hashCode());
       return Math.abs(result);
@@ -217,4 +313,92 @@ public class ParserSmaxInput implements IParserInput<SmaxElement>
     return nextElement;
   }
 
+  /**
+   * Input in a char[].
+   */
+  private static final class CharArrayInput extends ParserSmaxInput
+  {
+    private final char[] input;
+
+    CharArrayInput(final char[] input, final int start, final int inputSize)
+    {
+      super(input, start, inputSize);
+      this.input = input;
+    }
+
+    @Override
+    public char charAt(final int index)
+    {
+      return input[start + index];
+    }
+  }
+
+  /**
+   * Input in a CharSequence, such as the content of a SMAX document.
+   */
+  private static final class CharSequenceInput extends ParserSmaxInput
+  {
+    private final CharSequence input;
+
+    CharSequenceInput(final CharSequence input, final int start, final int inputSize)
+    {
+      super(input, start, inputSize);
+      this.input = input;
+    }
+
+    @Override
+    public char charAt(final int index)
+    {
+      return input.charAt(start + index);
+    }
+  }
+
+  /**
+   * Input in the bytes of an ASCII text. In UTF-8, each byte is one character.
+   */
+  private static final class AsciiBytesInput extends ParserSmaxInput
+  {
+    private final byte[] input;
+
+    AsciiBytesInput(final byte[] input, final int start, final int inputSize)
+    {
+      super(input, start, inputSize);
+      this.input = input;
+    }
+
+    @Override
+    public char charAt(final int index)
+    {
+      return (char)input[start + index];
+    }
+  }
+
+  /**
+   * Input that converts the characters of another input by a mapping, when they are used.
+   */
+  private static final class MappedInput extends ParserSmaxInput
+  {
+    private final ParserSmaxInput input;
+    private final CharMapping mapping;
+
+    MappedInput(final ParserSmaxInput input, final CharMapping mapping)
+    {
+      super(input, 0, input.length());
+      this.input = input;
+      this.mapping = mapping;
+    }
+
+    @Override
+    public char charAt(final int index)
+    {
+      return mapping.map(input.charAt(index));
+    }
+
+    @Override
+    public CharSequence unmapped()
+    {
+      return input;
+    }
+  }
+
 }
@@ -0,0 +1,459 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.greenmercury.basex.xquery.functions.peg.AutomataParser.NodeType;
+import org.greenmercury.basex.xquery.functions.peg.AutomataParser.NonTerminal;
+import org.waxeye.parser.AutomatonTransition;
+import org.waxeye.parser.CharTransition;
+import org.waxeye.parser.Edge;
+import org.waxeye.parser.FA;
+import org.waxeye.parser.ITransition;
+import org.waxeye.parser.PreParsedNonTerminalTransition;
+import org.waxeye.parser.State;
+import org.waxeye.parser.WildCardTransition;
+
+/**
+ * A persistent store for compiled grammars, so that grammars do not have to be compiled again after BaseX is restarted.
+ *<p>
+ * The store is a directory, which is set by the system property <code>org.greenmercury.peg.store</code>.
+ * If this property is not set, there is no persistent store.
+ * The automata of a compiled grammar are stored in a file that is named after the key made by {@link ParserCache#key(String, boolean, URL, boolean)}.
+ * These files are in a sub-directory for the version of the file format and the Waxeye runtime, so a new version never reads old files.
+ *<p>
+ * Each file ends with a checksum. A file that does not match its checksum or key, or that contains counts or indexes that are out of range,
+ * is deleted, and the grammar is compiled again.
+ * When the store is opened, files that have not been used for <code>org.greenmercury.peg.store.max-age-days</code> days (default 30) are deleted,
+ * also in the sub-directories for other versions, which are deleted when they are empty. Nothing else in the directory of the store is touched.
+ */
+public final class ParserStore
+{
+
+  private static final int MAGIC = 0x57584541; // "WXEA"
+  private static final int FORMAT_VERSION = 1;
+  private static final String SUFFIX = ".automata";
+  /* The name of a directory for a version, as made by open(), with the version of the file format and the Waxeye runtime. */
+  private static final Pattern VERSION_DIRECTORY = Pattern.compile("v[0-9]+-([0-9a-f]{16}|unknown)");
+
+  private static final byte AUTOMATON_TRANSITION = 0;
+  private static final byte CHAR_TRANSITION = 1;
+  private static final byte WILDCARD_TRANSITION = 2;
+  private static final byte PRE_PARSED_NON_TERMINAL_TRANSITION = 3;
+
+  private static ParserStore sharedStore;
+  private static boolean sharedStoreOpened = false;
+
+  private final Path directory;
+
+
+  private ParserStore(Path directory)
+  {
+    this.directory = directory;
+  }
+
+
+  /**
+   * Open a persistent store, and remove stale entries.
+   * @param root the directory of the store.
+   * @param maxAgeDays the number of days after which an unused compiled grammar is removed.
+   * @return the store.
+   * @throws IOException if the directory cannot be made.
+   */
+  public static ParserStore open(Path root, long maxAgeDays) throws IOException
+  {
+    Path directory = root.resolve("v" + FORMAT_VERSION + "-" + runtimeVersion());
+    Files.createDirectories(directory);
+    ParserStore store = new ParserStore(directory);
+    store.collectGarbage(root, maxAgeDays);
+    return store;
+  }
+
+
+  /**
+   * @return the store in the directory given by the system property <code>org.greenmercury.peg.store</code>, or null if that property is not set.
+   * @throws IOException if the store cannot be opened.
+   */
+  public static synchronized ParserStore shared() throws IOException
+  {
+    if (!sharedStoreOpened) {
+      String root = System.getProperty("org.greenmercury.peg.store");
+      if (root != null && !root.isEmpty()) {
+        sharedStore = open(Paths.get(root), Long.getLong("org.greenmercury.peg.store.max-age-days", 30));
+      }
+      sharedStoreOpened = true;
+    }
+    return sharedStore;
+  }
+
+
+  public Path getDirectory()
+  {
+    return directory;
+  }
+
+
+  /**
+   * Load a compiled grammar.
+   * @param key the key made by {@link ParserCache#key(String, boolean, URL, boolean)}.
+   * @return the compiled grammar, or null if the grammar is not in the store,
+   *   or if the modules of a modular grammar have changed since it was stored.
+   * @throws IOException if the stored grammar cannot be read or is corrupt. A corrupt file is removed.
+   */
+  public ParserCache.Compiled load(String key) throws IOException
+  {
+    Path file = directory.resolve(key + SUFFIX);
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(file);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+    StoredParser stored;
+    try {
+      stored = read(bytes, key);
+    } catch (IOException e) {
+      Files.deleteIfExists(file);
+      throw new IOException("The compiled grammar in "+file+" is corrupt and has been removed: "+e.getMessage(), e);
+    }
+    if (!stored.modules.isEmpty() && !stored.modulesDigest.equals(ParserCache.modulesDigest(stored.modules))) {
+      return null;
+    }
+    // The modification time tells the garbage collector that the file is still in use.
+    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+    return new ParserCache.Compiled(stored.parser, stored.modules, stored.modulesDigest);
+  }
+
+
+  /**
+   * Store a compiled grammar. The file is written under a temporary name and then renamed, so that other processes never read a partial file.
+   * @param key the key made by {@link ParserCache#key(String, boolean, URL, boolean)}.
+   * @param compiled the compiled grammar, with the digest of the module texts that it was compiled from.
+   * @throws IOException if the file cannot be written.
+   */
+  public void save(String key, ParserCache.Compiled compiled) throws IOException
+  {
+    byte[] bytes = write(key, compiled.getParser(), compiled.getModules(), compiled.getModulesDigest());
+    Path temporary = Files.createTempFile(directory, key, ".tmp");
+    try {
+      Files.write(temporary, bytes);
+      Files.move(temporary, directory.resolve(key + SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+
+  /**
+   * Remove files that have not been used for some time, from the directory of this version and from the directories of other versions.
+   * Directories of other versions are aged out like files, because other installations of BaseX may share the store.
+   * They are removed when they are empty. Files and directories that do not belong to the store are left alone.
+   */
+  private void collectGarbage(Path root, long maxAgeDays) throws IOException
+  {
+    long oldest = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(maxAgeDays);
+    try (DirectoryStream<Path> versions = Files.newDirectoryStream(root)) {
+      for (Path version : versions) {
+        if (Files.isDirectory(version, LinkOption.NOFOLLOW_LINKS) && VERSION_DIRECTORY.matcher(version.getFileName().toString()).matches()) {
+          removeUnused(version, oldest);
+          if (!version.equals(directory)) {
+            try {
+              Files.deleteIfExists(version);
+            } catch (DirectoryNotEmptyException e) {
+              // The directory is still in use.
+            }
+          }
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Remove the stored grammars and temporary files in a directory that were last modified before a given time.
+   * Other files and sub-directories are skipped.
+   */
+  private static void removeUnused(Path versionDirectory, long oldest) throws IOException
+  {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(versionDirectory)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if ((name.endsWith(SUFFIX) || name.endsWith(".tmp")) && Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS) &&
+            Files.getLastModifiedTime(file).toMillis() < oldest) {
+          Files.deleteIfExists(file);
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Identify the version of the Waxeye runtime by a digest of its jar file, because the jar does not have a version number.
+   */
+  private static String runtimeVersion() throws IOException
+  {
+    CodeSource codeSource = FA.class.getProtectionDomain().getCodeSource();
+    if (codeSource == null || codeSource.getLocation() == null) {
+      return "unknown";
+    }
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    try (InputStream stream = codeSource.getLocation().openStream()) {
+      digest.update(stream.readAllBytes());
+    } catch (IOException e) {
+      // The location may be a directory of classes.
+      return "unknown";
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : Arrays.copyOf(digest.digest(), 8)) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+
+  /* Serialization */
+
+
+  private static final class StoredParser
+  {
+    private final AutomataParser parser;
+    private final List<URL> modules;
+    private final String modulesDigest;
+
+    StoredParser(AutomataParser parser, List<URL> modules, String modulesDigest)
+    {
+      this.parser = parser;
+      this.modules = modules;
+      this.modulesDigest = modulesDigest;
+    }
+  }
+
+
+  private static byte[] write(String key, AutomataParser parser, List<URL> modules, String modulesDigest) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    out.writeUTF(key);
+    out.writeInt(modules.size());
+    for (URL module : modules) {
+      out.writeUTF(module.toString());
+    }
+    out.writeUTF(modulesDigest);
+    out.writeInt(parser.getStart());
+    List<FA<NodeType>> automata = parser.getAutomata();
+    out.writeInt(automata.size());
+    for (int index = 0; index < automata.size(); ++index) {
+      FA<NodeType> automaton = automata.get(index);
+      out.writeUTF(parser.getNonTerminals().get(index).getLabel());
+      out.writeByte(automaton.getType().ordinal());
+      out.writeByte(automaton.getMode());
+      out.writeInt(automaton.getStates().size());
+      for (State<NodeType> state : automaton.getStates()) {
+        out.writeBoolean(state.isMatch());
+        out.writeInt(state.getEdges().size());
+        for (Edge<NodeType> edge : state.getEdges()) {
+          out.writeInt(edge.getState());
+          out.writeBoolean(edge.isVoided());
+          writeTransition(edge.getTrans(), parser.getCharSets(), out);
+        }
+      }
+    }
+    out.flush();
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+    out.writeLong(crc.getValue());
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+
+  private static void writeTransition(ITransition<NodeType> transition, CharSets charSets, DataOutputStream out) throws IOException
+  {
+    if (transition instanceof AutomatonTransition) {
+      out.writeByte(AUTOMATON_TRANSITION);
+      out.writeInt(((AutomatonTransition<NodeType>)transition).getIndex());
+    } else if (transition instanceof CharTransition) {
+      char[][] ranges = charSets.ranges((CharTransition<NodeType>)transition);
+      out.writeByte(CHAR_TRANSITION);
+      out.writeInt(ranges[0].length);
+      for (int r = 0; r < ranges[0].length; ++r) {
+        out.writeChar(ranges[0][r]);
+        out.writeChar(ranges[1][r]);
+      }
+    } else if (transition instanceof WildCardTransition) {
+      out.writeByte(WILDCARD_TRANSITION);
+    } else if (transition instanceof PreParsedNonTerminalTransition) {
+      out.writeByte(PRE_PARSED_NON_TERMINAL_TRANSITION);
+      out.writeUTF(((PreParsedNonTerminalTransition<NodeType>)transition).getName());
+    } else {
+      throw new IOException("Cannot store a transition of type "+transition.getClass().getName());
+    }
+  }
+
+
+  /**
+   * Read a stored grammar. Every count and index in the file is checked, so that a corrupt file that has a valid checksum
+   * can not make automata that fail while parsing.
+   * @throws IOException if the file is corrupt or its key does not match.
+   */
+  private static StoredParser read(byte[] bytes, String key) throws IOException
+  {
+    try {
+      return readChecked(bytes, key);
+    } catch (RuntimeException e) {
+      // For example an invalid URL of a module.
+      throw new IOException("The file cannot be read: "+e, e);
+    }
+  }
+
+
+  private static StoredParser readChecked(byte[] bytes, String key) throws IOException
+  {
+    if (bytes.length < Long.BYTES) {
+      throw new IOException("The file is too short.");
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length - Long.BYTES);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    in.skipBytes(bytes.length - Long.BYTES);
+    if (in.readLong() != crc.getValue()) {
+      throw new IOException("The checksum does not match.");
+    }
+    in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - Long.BYTES));
+    if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+      throw new IOException("The file format is not recognized.");
+    }
+    if (!in.readUTF().equals(key)) {
+      throw new IOException("The key does not match.");
+    }
+    int nrModules = readCount(in, "modules");
+    List<URL> modules = new ArrayList<>(nrModules);
+    for (int i = 0; i < nrModules; ++i) {
+      modules.add(new URL(in.readUTF()));
+    }
+    String modulesDigest = in.readUTF();
+    int start = in.readInt();
+    int nrAutomata = readCount(in, "automata");
+    if (start < 0 || start >= nrAutomata) {
+      throw new IOException("The start automaton "+start+" does not exist.");
+    }
+    List<FA<NodeType>> automata = new ArrayList<>(nrAutomata);
+    List<NonTerminal> nonTerminals = new ArrayList<>(nrAutomata);
+    NodeType[] nodeTypes = NodeType.values();
+    CharSets charSets = new CharSets();
+    for (int index = 0; index < nrAutomata; ++index) {
+      nonTerminals.add(new NonTerminal(in.readUTF()));
+      NodeType type = nodeTypes[readIndex(in.readByte(), nodeTypes.length, "node type")];
+      int mode = readIndex(in.readByte(), FA.PRUNE + 1, "automaton mode");
+      int nrStates = readCount(in, "states");
+      if (nrStates == 0) {
+        throw new IOException("An automaton has no states.");
+      }
+      List<State<NodeType>> states = new ArrayList<>(nrStates);
+      for (int s = 0; s < nrStates; ++s) {
+        boolean match = in.readBoolean();
+        int nrEdges = readCount(in, "edges");
+        List<Edge<NodeType>> edges = new ArrayList<>(nrEdges);
+        for (int e = 0; e < nrEdges; ++e) {
+          int target = readIndex(in.readInt(), nrStates, "target state");
+          boolean voided = in.readBoolean();
+          edges.add(new Edge<NodeType>(readTransition(in, nrAutomata, charSets), target, voided));
+        }
+        states.add(new State<NodeType>(edges, match));
+      }
+      automata.add(new FA<NodeType>(type, mode, states));
+    }
+    if (in.available() > 0) {
+      throw new IOException("The file has "+in.available()+" bytes after the automata.");
+    }
+    return new StoredParser(new AutomataParser(automata, nonTerminals, start, charSets), modules, modulesDigest);
+  }
+
+
+  /**
+   * Read a number of items. Each item takes at least one byte, so there can not be more items than remaining bytes.
+   */
+  private static int readCount(DataInputStream in, String items) throws IOException
+  {
+    int count = in.readInt();
+    if (count < 0 || count > in.available()) {
+      throw new IOException("The number of "+items+" ("+count+") is out of range.");
+    }
+    return count;
+  }
+
+
+  /**
+   * Check an index that has been read.
+   */
+  private static int readIndex(int index, int size, String what) throws IOException
+  {
+    if (index < 0 || index >= size) {
+      throw new IOException("The "+what+" "+index+" is out of range.");
+    }
+    return index;
+  }
+
+
+  private static ITransition<NodeType> readTransition(DataInputStream in, int nrAutomata, CharSets charSets) throws IOException
+  {
+    byte kind = in.readByte();
+    switch (kind) {
+      case AUTOMATON_TRANSITION:
+        return new AutomatonTransition<NodeType>(readIndex(in.readInt(), nrAutomata, "automaton"));
+      case CHAR_TRANSITION:
+        int nrRanges = readCount(in, "character ranges");
+        StringBuilder single = new StringBuilder();
+        StringBuilder min = new StringBuilder();
+        StringBuilder max = new StringBuilder();
+        for (int i = 0; i < nrRanges; ++i) {
+          char from = in.readChar();
+          char to = in.readChar();
+          if (from == to) {
+            single.append(from);
+          } else {
+            min.append(from);
+            max.append(to);
+          }
+        }
+        return charSets.transition(single.toString().toCharArray(), min.toString().toCharArray(), max.toString().toCharArray());
+      case WILDCARD_TRANSITION:
+        return new WildCardTransition<NodeType>();
+      case PRE_PARSED_NON_TERMINAL_TRANSITION:
+        return new PreParsedNonTerminalTransition<NodeType>(in.readUTF());
+      default:
+        throw new IOException("Unknown transition type "+kind);
+    }
+  }
+
+}
@@ -0,0 +1,194 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.greenmercury.smax.SmaxDocument;
+import org.greenmercury.smax.SmaxElement;
+
+/**
+ * An index of the elements in a fragment of a SMAX document, used to find pre-parsed non-terminals.
+ * For each local name, the elements are kept in document order, which is also the order of their start positions.
+ * Finding an element with a given name at a given position is a binary search, instead of a walk through the document.
+ *<p>
+ * The index is made when it is first used, so fragments that are parsed with grammars without pre-parsed non-terminals do not pay for it.
+ * An index is used by one thread.
+ */
+public final class PreParsedElementIndex
+{
+
+  private final SmaxDocument smaxDocument;
+  private final int textStart;
+  private final int textEnd;
+
+  /* For each local name, the elements with that name, and their positions in document order and start positions relative to the fragment. */
+  private Map<String, Elements> elementsByName = null;
+  /* All indexed elements, in document order. */
+  private List<SmaxElement> documentOrder = null;
+
+
+  private static final class Elements
+  {
+    private final List<SmaxElement> elements = new ArrayList<>();
+    private int[] order = new int[8];
+    private int[] starts = new int[8];
+
+    void add(SmaxElement element, int documentPosition, int start)
+    {
+      int size = elements.size();
+      if (size == order.length) {
+        order = Arrays.copyOf(order, 2 * size);
+        starts = Arrays.copyOf(starts, 2 * size);
+      }
+      elements.add(element);
+      order[size] = documentPosition;
+      starts[size] = start;
+    }
+  }
+
+
+  /**
+   * Make an index for the elements that start within a fragment of a document.
+   * @param smaxDocument the document.
+   * @param textStart the start position of the fragment within the document.
+   * @param textEnd the end position of the fragment within the document.
+   */
+  public PreParsedElementIndex(SmaxDocument smaxDocument, int textStart, int textEnd)
+  {
+    this.smaxDocument = smaxDocument;
+    this.textStart = textStart;
+    this.textEnd = textEnd;
+  }
+
+
+  /**
+   * Find a pre-parsed non-terminal at the position of the input.
+   * This is the first element with the given name that starts at the position and follows the last visited element (the extended data of the input) in document order.
+   * As before the index was used, when the last visited element has no children and no following sibling, there is no such element.
+   * @param nonTerminalName the name of a pre-parsed non-terminal, as specified by the grammar.
+   * @param input the current input, with its position relative to the fragment, and extended data.
+   * @return the number of character positions within the pre-parsed non-terminal, or -1 if there is no pre-parsed non-terminal with the given name at the position.
+   */
+  public int lookup(String nonTerminalName, ParserSmaxInput input)
+  {
+    if (elementsByName == null) {
+      build();
+    }
+    Elements elements = elementsByName.get(nonTerminalName);
+    if (elements == null) {
+      return -1;
+    }
+    int position = input.getPosition();
+    // Find the first element that starts at the position.
+    int index = lowerBound(elements.starts, elements.elements.size(), position);
+    SmaxElement lastVisited = input.getExtendedData();
+    if (lastVisited != null) {
+      if (lastVisited == input.endElement || input.getNextChildOrSiblingElement(lastVisited) == input.endElement) {
+        return -1;
+      }
+      // Skip elements that do not follow the last visited element.
+      int lastVisitedOrder = documentPosition(lastVisited);
+      index = Math.max(index, lowerBound(elements.order, elements.elements.size(), lastVisitedOrder + 1));
+    }
+    if (index < elements.elements.size() && elements.starts[index] == position) {
+      SmaxElement element = elements.elements.get(index);
+      input.setExtendedData(element); // This is now the last visited element.
+      return element.getEndPos() - element.getStartPos();
+    }
+    return -1;
+  }
+
+
+  /**
+   * Index the elements that start within the fragment, skipping the elements that end before it.
+   */
+  private void build()
+  {
+    elementsByName = new HashMap<>();
+    documentOrder = new ArrayList<>();
+    SmaxElement element = smaxDocument.getMarkup();
+    while (element != null && element.getStartPos() <= textEnd) {
+      if (element.getEndPos() < textStart) {
+        element = nextSkippingDescendants(element);
+      } else {
+        if (element.getStartPos() >= textStart) {
+          elementsByName.computeIfAbsent(element.getLocalName(), name -> new Elements())
+            .add(element, documentOrder.size(), element.getStartPos() - textStart);
+          documentOrder.add(element);
+        }
+        element = element.getNextElement();
+      }
+    }
+  }
+
+
+  private static SmaxElement nextSkippingDescendants(SmaxElement element)
+  {
+    for (SmaxElement ancestorOrSelf = element; ancestorOrSelf != null; ancestorOrSelf = ancestorOrSelf.getParentNode()) {
+      SmaxElement sibling = ancestorOrSelf.getNextSiblingElement();
+      if (sibling != null) {
+        return sibling;
+      }
+    }
+    return null;
+  }
+
+
+  /**
+   * The position in document order of an element, or -1 if it is before the indexed elements.
+   * Elements that start at the same position are usually few, so they are searched linearly.
+   */
+  private int documentPosition(SmaxElement element)
+  {
+    int start = element.getStartPos();
+    int first = lowerBound(documentOrder, start);
+    for (int i = first; i < documentOrder.size() && documentOrder.get(i).getStartPos() == start; ++i) {
+      if (documentOrder.get(i) == element) {
+        return i;
+      }
+    }
+    return first - 1;
+  }
+
+
+  /**
+   * The first index in a sorted array where the value is not less than the key.
+   */
+  private static int lowerBound(int[] values, int size, int key)
+  {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (values[middle] < key) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+
+  /**
+   * The first index in the elements in document order where the start position is not less than the given start position.
+   */
+  private static int lowerBound(List<SmaxElement> elements, int start)
+  {
+    int low = 0;
+    int high = elements.size();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (elements.get(middle).getStartPos() < start) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+}
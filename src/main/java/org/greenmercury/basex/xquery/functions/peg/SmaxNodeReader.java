@@ -0,0 +1,150 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+
+import org.basex.data.Data;
+import org.basex.query.value.node.DBNode;
+import org.basex.util.Atts;
+import org.basex.util.Token;
+import org.greenmercury.smax.SmaxDocument;
+import org.greenmercury.smax.SmaxElement;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Reads a node that is stored in a BaseX database into a SMAX document,
+ * by going through the table of the database from the pre value of the node, instead of through a W3C DOM facade.
+ *<p>
+ * SMAX documents only have elements and text, so nodes that contain comments or processing instructions are not read;
+ * they must be converted in another way.
+ */
+public final class SmaxNodeReader
+{
+
+  private SmaxNodeReader()
+  {
+  }
+
+
+  /**
+   * Read an element or document node from a database.
+   * @param node the node.
+   * @return the SMAX document, or null if the node cannot be read by this reader.
+   *   This is the case if it contains comments or processing instructions, or if it is a document node that does not contain exactly one element.
+   */
+  public static SmaxDocument read(DBNode node)
+  {
+    Data data = node.data();
+    int pre = node.pre();
+    int kind = data.kind(pre);
+    int end = pre + data.size(pre, kind);
+    if (kind == Data.DOC) {
+      // The document must contain one element, which becomes the root of the SMAX document.
+      int elementPre = -1;
+      for (int p = pre + 1; p < end; p += data.size(p, data.kind(p))) {
+        if (data.kind(p) != Data.ELEM || elementPre >= 0) {
+          return null;
+        }
+        elementPre = p;
+      }
+      if (elementPre < 0) {
+        return null;
+      }
+      pre = elementPre;
+    } else if (kind != Data.ELEM) {
+      return null;
+    }
+    StringBuilder content = new StringBuilder();
+    // The open elements, with the pre value after their last descendant, and their children.
+    Deque<SmaxElement> elements = new ArrayDeque<>();
+    Deque<Integer> elementEnds = new ArrayDeque<>();
+    Deque<List<SmaxElement>> elementChildren = new ArrayDeque<>();
+    SmaxElement root = null;
+    end = pre + data.size(pre, Data.ELEM);
+    for (int p = pre; p < end; ) {
+      while (!elementEnds.isEmpty() && p >= elementEnds.peek()) {
+        close(elements, elementEnds, elementChildren, content);
+      }
+      int k = data.kind(p);
+      if (k == Data.ELEM) {
+        SmaxElement element = element(data, p);
+        element.setStartPos(content.length());
+        if (root == null) {
+          root = element;
+        } else {
+          elementChildren.peek().add(element);
+        }
+        elements.push(element);
+        elementEnds.push(p + data.size(p, k));
+        elementChildren.push(new ArrayList<>());
+        // Attributes follow the element in the table.
+        p += data.attSize(p, k);
+      } else if (k == Data.TEXT) {
+        content.append(Token.string(data.text(p, true)));
+        ++p;
+      } else {
+        // Comments and processing instructions cannot be represented.
+        return null;
+      }
+    }
+    while (!elements.isEmpty()) {
+      close(elements, elementEnds, elementChildren, content);
+    }
+    return new SmaxDocument(root, content);
+  }
+
+
+  private static void close(Deque<SmaxElement> elements, Deque<Integer> elementEnds, Deque<List<SmaxElement>> elementChildren, StringBuilder content)
+  {
+    SmaxElement element = elements.pop();
+    elementEnds.pop();
+    List<SmaxElement> children = elementChildren.pop();
+    element.setEndPos(content.length());
+    if (!children.isEmpty()) {
+      element.setChildren(children);
+    }
+  }
+
+
+  /**
+   * Make a SMAX element for the element at a pre value, with its attributes and namespace declarations.
+   */
+  private static SmaxElement element(Data data, int pre)
+  {
+    boolean namespaces = !data.nspaces.isEmpty();
+    String qualifiedName = Token.string(data.name(pre, Data.ELEM));
+    String uri = namespaces ? uri(data, pre, Data.ELEM) : "";
+    AttributesImpl attributes = new AttributesImpl();
+    if (namespaces) {
+      Atts declarations = data.namespaces(pre);
+      for (int i = 0; i < declarations.size(); ++i) {
+        String prefix = Token.string(declarations.name(i));
+        attributes.addAttribute(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, prefix, prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix, "CDATA", Token.string(declarations.value(i)));
+      }
+    }
+    int attributesEnd = pre + data.attSize(pre, Data.ELEM);
+    for (int p = pre + 1; p < attributesEnd; ++p) {
+      String attributeName = Token.string(data.name(p, Data.ATTR));
+      String attributeUri = namespaces && attributeName.indexOf(':') >= 0 ? uri(data, p, Data.ATTR) : "";
+      attributes.addAttribute(attributeUri, localName(attributeName), attributeName, "CDATA", Token.string(data.text(p, false)));
+    }
+    return new SmaxElement(uri, localName(qualifiedName), qualifiedName, attributes);
+  }
+
+
+  private static String uri(Data data, int pre, int kind)
+  {
+    return Token.string(new DBNode(data, pre, kind).qname().uri());
+  }
+
+
+  private static String localName(String qualifiedName)
+  {
+    return qualifiedName.substring(qualifiedName.indexOf(':') + 1);
+  }
+
+}
@@ -0,0 +1,296 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+
+import org.waxeye.input.IParserInput;
+
+/**
+ * Parser input that reads its characters from a reader, such as a charset decoder over a file channel,
+ * or that receives them in chunks, so a large text can be parsed without having all of it in memory.
+ *<p>
+ * The characters are kept in a window, which starts at the position given to {@link #release(int)}
+ * and ends at the furthest position that the parser has looked at.
+ * Positions are counted from the start of the text, so they are the same as when the text is in one buffer.
+ * The parser must not go back to a position before the start of the window.
+ *<p>
+ * When the characters are {@link #append(CharSequence) appended} in chunks, the parser sees the end of the characters so far as the end of the input.
+ * If it gets there before the input is {@link #end() ended}, the input is {@link #isExhausted() exhausted}, and the parse result may change when more characters are appended.
+ */
+public class StreamingParserInput implements IParserInput<Void>
+{
+
+  private static final int INITIAL_WINDOW_SIZE = 1 << 16;
+
+  /* The reader, or null if the characters are appended. */
+  private final Reader reader;
+  /* The mapping of the characters that the parser sees, or null. */
+  private final CharMapping normalization;
+
+  /* The characters in the window, as read. */
+  private char[] text;
+  /* The characters in the window, as seen by the parser. This is the same array as text if the input is not normalized. */
+  private char[] parserText;
+  /* The position of the first character in the window. */
+  private int windowStart = 0;
+  /* The number of characters in the window. */
+  private int windowLength = 0;
+  private boolean endOfInput = false;
+  /* Set when the end of the characters so far has been reached, before the end of the input. */
+  private boolean exhausted = false;
+
+  /** The current position of the parser. */
+  private int position = 0;
+
+
+  /**
+   * @param reader the reader for the text. It is not closed by this input.
+   * @param normalization if not null, the parser sees the characters converted by this mapping.
+   */
+  public StreamingParserInput(Reader reader, CharMapping normalization)
+  {
+    this.reader = reader;
+    this.normalization = normalization;
+    this.text = new char[INITIAL_WINDOW_SIZE];
+    this.parserText = normalization != null ? new char[INITIAL_WINDOW_SIZE] : text;
+  }
+
+
+  /**
+   * Make an input that receives its characters in chunks.
+   * @param normalization if not null, the parser sees the characters converted by this mapping.
+   */
+  public StreamingParserInput(CharMapping normalization)
+  {
+    this(null, normalization);
+  }
+
+
+  /**
+   * Add characters at the end of the input.
+   * @param chunk the characters.
+   */
+  public void append(CharSequence chunk)
+  {
+    if (reader != null || endOfInput) {
+      throw new IllegalStateException("Characters can only be appended to an input that receives chunks and has not ended.");
+    }
+    if ((long)windowStart + windowLength + chunk.length() > Integer.MAX_VALUE) {
+      throw new IllegalStateException("The input has more than "+Integer.MAX_VALUE+" characters.");
+    }
+    ensureCapacity(windowLength + chunk.length());
+    for (int i = 0; i < chunk.length(); ++i) {
+      text[windowLength + i] = chunk.charAt(i);
+    }
+    normalize(chunk.length());
+    windowLength += chunk.length();
+  }
+
+
+  /**
+   * Mark the end of an input that receives chunks.
+   */
+  public void end()
+  {
+    endOfInput = true;
+  }
+
+
+  /**
+   * @return true if all characters of the input are known.
+   */
+  public boolean isEnded()
+  {
+    return endOfInput;
+  }
+
+
+  /**
+   * @return true if the end of the characters so far was reached, before the end of the input, since {@link #resetExhausted()}.
+   */
+  public boolean isExhausted()
+  {
+    return exhausted;
+  }
+
+
+  public void resetExhausted()
+  {
+    exhausted = false;
+  }
+
+
+  /**
+   * Get a character of the text as read, reading more of the text if necessary.
+   * @param position a position that is not before the start of the window.
+   * @return the character at the position, or {@link IParserInput#EOF} if the position is at or after the end of the text or of the characters so far.
+   * @throws UncheckedIOException if the text cannot be read.
+   */
+  public int charAt(int position)
+  {
+    return fill(position) ? text[position - windowStart] : EOF;
+  }
+
+
+  /**
+   * Get a part of the text as read. The part must be within the window.
+   * @param start the start position.
+   * @param end the end position.
+   * @return the characters from start to end.
+   */
+  public String substring(int start, int end)
+  {
+    return new String(text, start - windowStart, end - start);
+  }
+
+
+  /**
+   * Let go of the characters before a position, which will not be used again.
+   * @param position the new start of the window.
+   */
+  public void release(int position)
+  {
+    int released = Math.min(position, windowStart + windowLength) - windowStart;
+    // Only move the characters when that frees at least half of the window, so each character is moved a few times at most.
+    if (released > 0 && 2 * released >= text.length) {
+      System.arraycopy(text, released, text, 0, windowLength - released);
+      if (normalization != null) {
+        System.arraycopy(parserText, released, parserText, 0, windowLength - released);
+      }
+      windowStart += released;
+      windowLength -= released;
+    }
+  }
+
+
+  /**
+   * Make sure that the character at a position is in the window.
+   * @param position a position that is not before the start of the window.
+   * @return false if the position is at or after the end of the text or of the characters so far.
+   */
+  private boolean fill(int position)
+  {
+    if (position < windowStart) {
+      throw new IllegalStateException("Position "+position+" is before the start of the input window at "+windowStart+".");
+    }
+    while (position >= windowStart + windowLength) {
+      if (endOfInput) {
+        return false;
+      }
+      if (reader == null) {
+        exhausted = true;
+        return false;
+      }
+      // The parser may need more characters than the window holds.
+      ensureCapacity(windowLength + 1);
+      int read;
+      try {
+        read = reader.read(text, windowLength, text.length - windowLength);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      if (read < 0) {
+        endOfInput = true;
+      } else {
+        if ((long)windowStart + windowLength + read > Integer.MAX_VALUE) {
+          throw new UncheckedIOException(new IOException("The input has more than "+Integer.MAX_VALUE+" characters."));
+        }
+        normalize(read);
+        windowLength += read;
+      }
+    }
+    return true;
+  }
+
+
+  private void ensureCapacity(int capacity)
+  {
+    if (capacity > text.length) {
+      char[] newText = new char[Math.max(capacity, 2 * text.length)];
+      System.arraycopy(text, 0, newText, 0, windowLength);
+      if (normalization != null) {
+        char[] newParserText = new char[newText.length];
+        System.arraycopy(parserText, 0, newParserText, 0, windowLength);
+        parserText = newParserText;
+      } else {
+        parserText = newText;
+      }
+      text = newText;
+    }
+  }
+
+
+  /**
+   * Normalize the characters that have been added after the window.
+   */
+  private void normalize(int length)
+  {
+    if (normalization != null) {
+      System.arraycopy(text, windowLength, parserText, windowLength, length);
+      normalization.map(parserText, windowLength, windowLength + length);
+    }
+  }
+
+
+  /** {@inheritDoc} */
+  @Override
+  public int consume()
+  {
+    if (fill(position)) {
+      return parserText[position++ - windowStart];
+    }
+    return EOF;
+  }
+
+
+  /** {@inheritDoc} */
+  @Override
+  public int peek()
+  {
+    return fill(position) ? parserText[position - windowStart] : EOF;
+  }
+
+
+  /**
+   * @param position a position in the text as seen by the parser.
+   * @return the character that the parser sees at the position, or {@link IParserInput#EOF} if the position is at or after the end of the text.
+   */
+  public int parserCharAt(int position)
+  {
+    return fill(position) ? parserText[position - windowStart] : EOF;
+  }
+
+
+  /** {@inheritDoc} */
+  @Override
+  public int getPosition()
+  {
+    return position;
+  }
+
+
+  /** {@inheritDoc} */
+  @Override
+  public void setPosition(final int position)
+  {
+    this.position = Math.max(0, position);
+  }
+
+
+  /**
+   * There are no pre-parsed non-terminals in a text that is read from a reader or received in chunks.
+   */
+  @Override
+  public Void getExtendedData()
+  {
+    return null;
+  }
+
+
+  @Override
+  public void setExtendedData(Void extendedData)
+  {
+  }
+
+}
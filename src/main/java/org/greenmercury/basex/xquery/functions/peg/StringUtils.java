@@ -126,23 +126,40 @@ public class StringUtils {
     int n = s.length();
     StringBuilder sb = new StringBuilder(n);
     for (int i = 0; i < n; i++) {
-      char c = s.charAt(i);
+      char c = LOW_ASCII_ONE_TO_ONE[s.charAt(i)];
+      sb.append(c == NO_LOW_ASCII ? defaultChar : c);
+    }
+    return sb;
+  }
+
+  /* The low ASCII character for each character, or NO_LOW_ASCII. This is computed once, so converting a character is one array access. */
+  private static final char NO_LOW_ASCII = '\u0080';
+  private static final char[] LOW_ASCII_ONE_TO_ONE = new char[Character.MAX_VALUE + 1];
+  static {
+    for (int i = Character.MIN_VALUE; i <= Character.MAX_VALUE; i++) {
+      char c = (char)i;
       int pos;
       if (Character.isWhitespace(c)) {
-        sb.append(' ');
+        LOW_ASCII_ONE_TO_ONE[i] = ' ';
       } else if ((pos = UNICODE_DIACRITICAL.indexOf(c)) >= 0) {
-        sb.append(PLAIN_ASCII_DIACRITICAL.charAt(pos));
+        LOW_ASCII_ONE_TO_ONE[i] = PLAIN_ASCII_DIACRITICAL.charAt(pos);
       } else if ((pos = UNICODE_PUNCTUATION.indexOf(c)) >= 0) {
-        sb.append(PLAIN_ASCII_PUNCTUATION.charAt(pos));
+        LOW_ASCII_ONE_TO_ONE[i] = PLAIN_ASCII_PUNCTUATION.charAt(pos);
       } else if ((pos = POST_NFKD_UNICODE.indexOf(c)) >= 0) {
-        sb.append(POST_NFKD_ASCII.charAt(pos));
+        LOW_ASCII_ONE_TO_ONE[i] = POST_NFKD_ASCII.charAt(pos);
       } else if (c >= 0x20 && c < 0x80) {
-        sb.append(c);
+        LOW_ASCII_ONE_TO_ONE[i] = c;
       } else {
-        sb.append(defaultChar);
+        LOW_ASCII_ONE_TO_ONE[i] = NO_LOW_ASCII;
       }
     }
-    return sb;
+  }
+
+  /**
+   * @return a copy of the table that {@link #normalizeOneToOne(char)} uses, with the normalized character for each character.
+   */
+  static char[] lowAsciiOneToOneTable() {
+    return LOW_ASCII_ONE_TO_ONE.clone();
   }
 
   /**
@@ -165,7 +182,7 @@ public class StringUtils {
    * @return the normalized character.
    */
   public static char normalizeOneToOne(char c) {
-    return normalizeOneToOne(Character.toString(c)).charAt(0);
+    return LOW_ASCII_ONE_TO_ONE[c];
   }
 
   /**
@@ -1,39 +1,28 @@
 package org.greenmercury.basex.xquery.functions.peg;
 
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.lang.reflect.InvocationTargetException;
-import java.net.MalformedURLException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.net.URL;
-import java.net.URLClassLoader;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.BiFunction;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
-
-import javax.tools.DiagnosticCollector;
-import javax.tools.JavaCompiler;
-import javax.tools.JavaFileObject;
-import javax.tools.StandardJavaFileManager;
-import javax.tools.ToolProvider;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.basex.query.QueryException;
+import org.greenmercury.basex.xquery.functions.peg.AutomataParser.NodeType;
+import org.greenmercury.basex.xquery.functions.peg.AutomataParser.NonTerminal;
 import org.greenmercury.smax.Balancing;
 import org.greenmercury.smax.SmaxDocument;
 import org.greenmercury.smax.SmaxElement;
@@ -42,12 +31,10 @@ import org.waxeye.ast.IASTVisitor;
 import org.waxeye.ast.IChar;
 import org.waxeye.ast.IEmpty;
 import org.waxeye.ast.IPreParsedNonTerminal;
-import org.waxeye.ast.Labeled;
 import org.waxeye.ast.Position;
 import org.waxeye.input.IParserInput;
 import org.waxeye.parser.ParseError;
 import org.waxeye.parser.ParseResult;
-import org.waxeye.parser.Parser;
 
 /**
  * A SMAX document transformer that uses a Parsing ExpressionGrammar to insert markup around non-terminals specified by a grammar.
@@ -62,18 +49,35 @@ import org.waxeye.parser.Parser;
  *       <li>modular Set to true if the grammar is modular [https://waxeye.org/manual#_modular_grammars]. (Default is false.)</li>
  *       <li>parse-within-element If set to the local name (without namespace prefix) of an element, only text within elements with this name will be parsed.</li>
  *       <li>parse-within-namespace If 'parse-within-element' is set, this may be set to the namespace URI of elements within which the parser will work.</li>
+ *       <li>parallel If 'parse-within-element' is set, set to true to parse the text within the elements in parallel. (Default is false.)</li>
+ *       <li>split-pattern A regular expression for the points where the text can be split into chunks that are parsed in parallel.
+ *           A match must never span such a split point. This cannot be used with 'complete-match' or 'adjacent-matches'.</li>
+ *       <li>split-min-length The minimum length of a chunk when 'split-pattern' is used. (Default is 65536.)</li>
  *       <li>complete-match Set to true if the complete input text must be parsed as one matched fragment. (Default is false.)</li>
  *       <li>adjacent-matches Set to true if the complete input must be consumed as adjacent matched fragments. (Default is false.)</li>
  *       <li>match-whole-words Set to true to only match whole words. (Default is false.)</li>
- *       <li>cache Set to true to cache the generated parser. Only parsers generated from grammars stored on the file system can be cached.</li>
+ *       <li>word-characters A regular expression for one character, such as <code>[\p{L}\p{N}_]</code>, that matches the characters of words,
+ *           when 'match-whole-words' is true. (Default is letters and digits.)</li>
+ *       <li>case-insensitive Set to true to match literals and character classes regardless of case.
+ *           The input is converted to lower case one character at a time, and the grammar is compiled with lower case literals and character classes.
+ *           The output contains the original characters. (Default is false.)</li>
+ *       <li>cache Set to true to use a cached parser for the same grammar text and options, instead of always compiling the grammar. (Default is false.)</li>
  *       <li>parse-errors Set to true to include errors in the output and not trigger an exception. (Default is false.)</li>
- *       <li>normalize Set to true if characters in the input must be converted to low ASCII characters, removing diacritics and ligatures. (Default is false.)</li>
+ *       <li>normalize Set to true if characters in the input must be converted to low ASCII characters, removing diacritics and ligatures. (Default is false.)
+ *           This may also be the name of a character mapping that has been registered with {@link CharMapping#register(String, CharMapping)}.</li>
  *       <li>use-waxeye-names Set to true to capitalize non-terminal names. This is what older versions of Waxeye do. (Default is false).  Before version 1.1.0, only capitalized Waxeye names could be used.</li>
  *       <li>show-parse-tree Not yet implemented. Set to true to show the parse tree in an XML comment in the output. (Default is false.)</li>
  *       <li>namespace-prefix The namespace prefix used for elements that are inserted for non-terminals. Default is empty (no prefix).</li>
  *       <li>namespace-uri The namespace URI used for elements that are inserted for non-terminals. Default is empty (no namespace).
  *           This option must be present if the 'namespace-prefix' option is defined.</li>
  *       <li>debug Set to true to enable debugging in the Waxeye parser. Default is false.</li>
+ *       <li>memoize Which non-terminals have their results stored in the memo table of the parser: 'all' (the default),
+ *           'auto' to let the parser choose them from the memo table hits in earlier parses, or a space or comma separated list of non-terminal names.</li>
+ *       <li>memo-max-entries The maximum number of results in the memo table for parsing one text fragment. Default is 0, which means no maximum.</li>
+ *       <li>memo-overflow What to do when the memo table is full: 'evict' to remove the results for the earliest positions (the default),
+ *           or 'disable' to stop storing results, with a warning in the log.</li>
+ *       <li>max-matches The maximum number of matches. Scanning stops when this number of matches has been found,
+ *           and the rest of the text is left unparsed. Default is 0, which means no maximum.</li>
  *     </ul>
  *   </li>
  * </ul>
@@ -91,43 +95,34 @@ public class WaxeyePEGParser
 
   private Logger logger;
 
-  // Work directory for all waxeye parsers.
-  private static Path workDir;
-
-  // Path to the Waxeye executable. Waxeye MUST be installed on the host system.
-  private static String waxeyePath = "waxeye";
-
-  // Cache for parsers, to prevent repeated grammar compilation.
-  class ParserCacheEntry {
-    public long modified;
-    public Parser<?> parser;
-    public ParserCacheEntry(Parser<?> parser) {
-      this.modified = new Date().getTime();
-      this.parser = parser;
-    }
-  }
-  private static Map<String, ParserCacheEntry> parserCache = new HashMap<String, ParserCacheEntry>();
-
-  // An internal name for the grammar, used for a copy of the grammar in a local file.
-  private String internalName;
-
   private boolean modular;
   private String parseWithinElement;
   private String parseWithinNamespace;
+  private boolean parallel;
+  private Pattern splitPattern;
+  private int splitMinLength;
   private boolean completeMatch;
   private boolean adjacentMatches;
   private boolean allowUnmatchedText;
   private boolean matchWholeWords;
+  private WordCharacters wordCharacters;
+  private boolean caseInsensitive;
   private boolean cache;
   private boolean showParseErrors;
   private boolean showParseTree;
-  private boolean normalize;
+  /* The mapping of the characters that the parser sees, or null if the input is not normalized. */
+  private CharMapping normalization;
   private boolean useWaxeyeNames;
   private String namespacePrefix;
   private String namespaceUri;
   private boolean debug;
+  private String memoize;
+  private int memoMaxEntries;
+  private boolean memoEvict;
+  private int maxMatches;
 
-  private Parser<?> parser;
+  private AutomataParser parser;
+  private AutomataParser.Settings parseSettings;
   private String grammarURL;
   private boolean grammarIsURL;
 
@@ -140,7 +135,7 @@ public class WaxeyePEGParser
     try {
       readGrammar(grammarURL);
     } catch (IOException | QueryException e) {
-      logger.error("Grammar from URL ["+grammarURL+"] cannot be read, written or processed: "+e.getMessage());
+      logger.error("Grammar from URL ["+grammarURL+"] cannot be read or processed: "+e.getMessage());
       throw new RuntimeException(e);
     }
   }
@@ -154,7 +149,7 @@ public class WaxeyePEGParser
     try {
       readGrammar(grammarURL);
     } catch (IOException | QueryException e) {
-      logger.error("Grammar in string cannot be read, written or processed: "+e.getMessage());
+      logger.error("Grammar in string cannot be read or processed: "+e.getMessage());
       throw new RuntimeException(e);
     }
   }
@@ -171,39 +166,76 @@ public class WaxeyePEGParser
     this.modular = getOption(options, "modular", false);
     this.parseWithinElement = getOption(options, "parse-within-element", null);
     this.parseWithinNamespace = getOption(options, "parse-within-namespace", null);
+    this.parallel = getOption(options, "parallel", false);
+    String splitRegex = getOption(options, "split-pattern", null);
+    this.splitPattern = splitRegex == null ? null : Pattern.compile(splitRegex);
+    this.splitMinLength = getOption(options, "split-min-length", 65536);
     this.completeMatch = getOption(options, "complete-match", false);
     this.adjacentMatches = getOption(options, "adjacent-matches", false);
     this.allowUnmatchedText = !(completeMatch || adjacentMatches);
     this.matchWholeWords = getOption(options, "match-whole-words", false);
+    this.wordCharacters = WordCharacters.of(getOption(options, "word-characters", null));
+    this.caseInsensitive = getOption(options, "case-insensitive", false);
     this.cache = getOption(options, "cache", false);
     this.showParseErrors = getOption(options, "parse-errors", false);
     this.showParseTree = getOption(options, "show-parse-tree", false);
-    this.normalize = getOption(options, "normalize", false);
+    String normalize = getOption(options, "normalize", "false");
+    this.normalization = normalize.equals("false") ? null : CharMapping.forName(normalize.equals("true") ? CharMapping.ASCII : normalize);
+    if (caseInsensitive) {
+      CharMapping lowerCase = CharMapping.forName(CharMapping.LOWER_CASE);
+      this.normalization = normalization == null ? lowerCase : normalization.andThen(lowerCase);
+    }
     this.useWaxeyeNames = getOption(options, "use-waxeye-names", false);
     this.namespacePrefix = getOption(options, "namespace-prefix", null);
     this.namespaceUri = getOption(options, "namespace-uri", null);
     this.debug = getOption(options, "debug", false);
-    // Make a random internal name, used in the filename for a local copy of the grammar.
-    Random random = new Random();
-    this.internalName = "G" + random.ints(48, 123)
-        .filter(i -> (i <= 57 || i >= 65) && (i <= 90 || i >= 97))
-        .limit(8)
-        .collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append)
-        .toString();
-    // Create a temporary directory, if that has not yet been done.
-    synchronized (this.getClass()) {
-      if (workDir == null) {
-        try
-        {
-          workDir = Files.createTempDirectory("waxeye");
-          logger.info("WaxeyePEGParser: Created work directory for "+this.getClass().getName()+" : "+workDir);
+    this.memoize = getOption(options, "memoize", "all");
+    this.memoMaxEntries = getOption(options, "memo-max-entries", 0);
+    String memoOverflow = getOption(options, "memo-overflow", "evict");
+    if (!memoOverflow.equals("evict") && !memoOverflow.equals("disable")) {
+      throw new IllegalArgumentException("The memo-overflow option must be 'evict' or 'disable', not '"+memoOverflow+"'.");
+    }
+    this.memoEvict = memoOverflow.equals("evict");
+    this.maxMatches = getOption(options, "max-matches", 0);
+    if (splitPattern != null && !allowUnmatchedText) {
+      throw new IllegalArgumentException("The split-pattern option cannot be used with complete-match or adjacent-matches.");
+    }
+  }
+
+
+  /**
+   * Initialization actions that need the parser, after the grammar has been read.
+   * @throws QueryException if the memoize option contains a name that is not a non-terminal of the grammar.
+   */
+  private void initParseSettings() throws QueryException
+  {
+    if (memoize.equals("all")) {
+      this.parseSettings = new AutomataParser.Settings(completeMatch, debug);
+    } else if (memoize.equals("auto")) {
+      this.parseSettings = new AutomataParser.Settings(completeMatch, debug, null, true);
+    } else {
+      // Predicates do not have a name in the grammar, and are always memoized.
+      List<NonTerminal> nonTerminals = parser.getNonTerminals();
+      BitSet memoized = new BitSet(nonTerminals.size());
+      for (int i = 0; i < nonTerminals.size(); ++i) {
+        NodeType type = parser.getAutomata().get(i).getType();
+        if (type == NodeType.POSITIVE || type == NodeType.NEGATIVE) {
+          memoized.set(i);
         }
-        catch (IOException e)
-        {
-          logger.error("WaxeyePEGParser: Work directory for "+this.getClass().getName()+" cannot be created: "+e.getMessage());
-          throw new RuntimeException(e);
+      }
+      for (String name : memoize.trim().split("[\\s,]+")) {
+        boolean found = false;
+        for (int i = 0; i < nonTerminals.size(); ++i) {
+          if (name.equals(nonTerminals.get(i).getLabel()) || name.equals(nonTerminals.get(i).getWaxeyeName())) {
+            memoized.set(i);
+            found = true;
+          }
+        }
+        if (!found && !name.isEmpty()) {
+          throw new QueryException("The memoize option contains '"+name+"', which is not a non-terminal in the grammar.");
         }
       }
+      this.parseSettings = new AutomataParser.Settings(completeMatch, debug, memoized, false);
     }
   }
 
@@ -218,189 +250,253 @@ public class WaxeyePEGParser
   }
 
 
-  private synchronized void readGrammar(String grammar) throws IOException, QueryException
+  private int getOption(Map<String, String> options, String key, int defaultValue) {
+    return Optional.ofNullable(options.get(key)).map(v -> Integer.parseInt(v.trim())).orElse(defaultValue);
+  }
+
+
+  private void readGrammar(String grammar) throws IOException, QueryException
   {
-    // A string grammar is never cached, so write it to a file and compile.
-    File grammarFile = workDir.resolve(this.internalName+".waxeye").toFile();
-    try (
-      PrintWriter grammarWriter = new PrintWriter(grammarFile.getAbsolutePath());
-    ) {
-      grammarWriter.print(grammar);
+    // The modules of a modular grammar are relative to the current directory.
+    compileGrammar(grammar, null, "grammar from string");
+    initParseSettings();
+  }
+
+
+  private void readGrammar(URL grammar) throws IOException, QueryException
+  {
+    // The modules of a modular grammar are relative to the URL of the modular grammar.
+    compileGrammar(GrammarReader.readText(grammar), grammar, "["+grammar+"]");
+    initParseSettings();
+  }
+
+
+  /**
+   * Compile a grammar into automata, or get the compiled grammar from the parser cache or the persistent store.
+   * @param grammarText the text of the grammar.
+   * @param grammarURL the URL of the grammar, or null if the grammar is a string.
+   * @param description describes the grammar in log messages.
+   * @throws IOException
+   * @throws QueryException
+   */
+  private void compileGrammar(String grammarText, URL grammarURL, String description) throws IOException, QueryException
+  {
+    if (!cache) {
+      this.parser = compileGrammarText(grammarText, grammarURL, description).getParser();
+      return;
     }
-    readCompileLoadGrammarFile(grammarFile);
+    ParserCache parserCache = ParserCache.shared();
+    String cacheKey = ParserCache.key(grammarText, modular, grammarURL, caseInsensitive);
+    this.parser = parserCache.get(cacheKey, () -> {
+      ParserCache.Compiled stored = loadStoredGrammar(cacheKey, description);
+      if (stored != null) {
+        return stored;
+      }
+      ParserCache.Compiled compiled = compileGrammarText(grammarText, grammarURL, description);
+      storeGrammar(cacheKey, compiled, description);
+      return compiled;
+    });
+    logger.info("WaxeyePEGParser: Using parser for "+description+"; "+parserCache+".");
   }
 
 
-  private synchronized void readGrammar(URL grammar) throws IOException, QueryException
+  private ParserCache.Compiled compileGrammarText(String grammarText, URL grammarURL, String description) throws IOException, QueryException
   {
-    String grammarFilePath = grammar.toString();
-    if (grammarFilePath.startsWith("file:/")) {
-      // A file: URL points to a local file.
-      if (grammarFilePath.matches("^file:/+[A-Za-z]:/.*")) {
-        // Windows: file:///C:/path => C:/path
-        grammarFilePath = grammarFilePath.replaceAll("^file:/+", "");
-      } else {
-        // Unix: file:///path => /path
-        grammarFilePath = grammarFilePath.replaceAll("^file:/+", "/");
-      }
-      // Try to get the parser from the cache.
-      File grammarFile = new File(grammarFilePath);
-      ParserCacheEntry cached = parserCache.get(grammarFilePath);
-      if (cached != null && cached.modified > grammarFile.lastModified()) {
-        logger.info("WaxeyePEGParser: Parser for ["+grammarFilePath+"] retrieved from cache.");
-        this.parser = cached.parser;
-      } else {
-        readCompileLoadGrammarFile(grammarFile);
-        if (cache) {
-          parserCache.put(grammarFilePath, new ParserCacheEntry(this.parser));
-          logger.info("WaxeyePEGParser: Parser for ["+grammarFilePath+"] entered into cache.");
+    long startTime = System.currentTimeMillis();
+    Grammar parsedGrammar = modular ? GrammarReader.readModularGrammar(grammarText, grammarURL)
+        : GrammarReader.readGrammar(grammarText, grammarURL == null ? "grammar from string" : grammarURL.toString());
+    if (caseInsensitive) {
+      parsedGrammar = parsedGrammar.foldCase();
+    }
+    AutomataParser compiledParser = AutomataBuilder.build(parsedGrammar);
+    logger.info("WaxeyePEGParser: Compiling "+description+" took "+(System.currentTimeMillis()-startTime)+" ms.");
+    return new ParserCache.Compiled(compiledParser, parsedGrammar);
+  }
+
+
+  /**
+   * Try to load a compiled grammar from the persistent store.
+   * @return the compiled grammar, or null if it is not in the store.
+   */
+  private ParserCache.Compiled loadStoredGrammar(String cacheKey, String description)
+  {
+    try {
+      ParserStore parserStore = ParserStore.shared();
+      if (parserStore != null) {
+        ParserCache.Compiled stored = parserStore.load(cacheKey);
+        if (stored != null) {
+          logger.info("WaxeyePEGParser: Parser for "+description+" loaded from "+parserStore.getDirectory()+".");
+          return stored;
         }
       }
-    } else {
-      // A non-file: URL will be read and copied into the workDir. It is not cached.
-      File grammarFile = workDir.resolve(this.internalName+".waxeye").toFile();
-      try (
-        InputStream grammarStream = grammar.openStream();
-        OutputStream grammarFileStream = new FileOutputStream(grammarFile.getAbsolutePath());
-      ) {
-        grammarStream.transferTo(grammarFileStream);
-      }
-      readCompileLoadGrammarFile(grammarFile);
+    } catch (IOException e) {
+      logger.warning("WaxeyePEGParser: Parser for "+description+" cannot be loaded from the persistent store: "+e.getMessage());
     }
+    return null;
   }
 
 
-  private synchronized void readCompileLoadGrammarFile(File grammar) throws IOException, QueryException
+  /**
+   * Save a compiled grammar in the persistent store. Failure to save is not an error.
+   */
+  private void storeGrammar(String cacheKey, ParserCache.Compiled compiled, String description)
   {
-    String grammarFilePath = grammar.getAbsolutePath();
-    // Make a Java directory name by removing the extension from the filename.
-    String javaDirName = grammar.getName().replaceFirst("\\.[^./]*$", "");
-    File javaCodeDir = workDir.resolve(javaDirName).toFile();
-    javaCodeDir.mkdirs();
-    compileGrammar(grammarFilePath, javaCodeDir);
-    this.parser = loadParser(javaCodeDir);
+    try {
+      ParserStore parserStore = ParserStore.shared();
+      if (parserStore != null) {
+        parserStore.save(cacheKey, compiled);
+      }
+    } catch (IOException e) {
+      logger.warning("WaxeyePEGParser: Parser for "+description+" cannot be saved in the persistent store: "+e.getMessage());
+    }
   }
 
 
   /**
-   * Compile the Waxeye grammar into Java code using the Waxeye executable.
-   * This produces .java source-code files.
-   * @param grammarFilePath
-   * @param javaCodeDir
-   * @throws IOException
-   * @throws MalformedURLException
+   * Scan a SMAX document for parsing matches.
+   * @param smaxDocument
    * @throws QueryException
    */
-  private void compileGrammar(String grammarFilePath, File javaCodeDir)
-      throws IOException, MalformedURLException, QueryException {
-    String javaCodeDirPath = javaCodeDir.getAbsolutePath();
-    if (!javaCodeDir.mkdirs() && !javaCodeDir.exists()) {
-      throw new IOException("Unable to create directory ["+javaCodeDirPath+"] for Waxeye java files.");
-    }
-    /* Compile the grammar into Java code. */
-    // The String[] waxeyeCommand must not contain empty strings, which will give an empty argument on OSX.
-    String[] waxeyeCommand =
-        modular ? new String[]{waxeyePath, "-g", "java", javaCodeDirPath, "-m", grammarFilePath}
-                : new String[]{waxeyePath, "-g", "java", javaCodeDirPath,       grammarFilePath};
-    logger.info("WaxeyePEGParser: Compiling waxeye grammar; "+String.join(" ", waxeyeCommand));
-    // String that collects output from the waxeye process.
-    StringBuilder waxeyeOutput = new StringBuilder();
-    BufferedReader waxeyeOutputReader = null;
-    Process waxeyeProcess = null;
-    try {
-      waxeyeProcess = new ProcessBuilder(waxeyeCommand).redirectErrorStream(true).start();
-      waxeyeOutputReader = new BufferedReader(new InputStreamReader(waxeyeProcess.getInputStream()));
-      waxeyeProcess.waitFor();
-      for (String line = waxeyeOutputReader.readLine(); line != null; line = waxeyeOutputReader.readLine()) {
-        waxeyeOutput.append(line + "\n");
-      }
-      if (waxeyeProcess.exitValue() != 0) {
-        throw new QueryException("Waxeye process exited with error code: "+waxeyeProcess.exitValue()+"\n"+waxeyeOutput.toString());
-      }
-    } catch (Throwable ex) {
-      logger.error("Error compiling waxeye grammar ["+grammarFilePath+"]:\n"+ex.getMessage()+"\n"+waxeyeOutput.toString());
-      throw new QueryException("Error compiling waxeye grammar ["+grammarFilePath+"]: "+ex.getMessage()+". See the log file for details.");
-    } finally {
-        if (waxeyeProcess != null) {
-          waxeyeProcess.destroyForcibly();
-        }
-        if (waxeyeOutputReader != null) {
-          waxeyeOutputReader.close();
-        }
-    }
-    logger.info("WaxeyePEGParser: "+waxeyeOutput.toString());
+  public void scan(SmaxDocument smaxDocument) throws QueryException
+  {
+    long startTime = System.currentTimeMillis();
+    long nrScans = scanDocument(smaxDocument, markupInserter(smaxDocument));
+    long elapsedTime = System.currentTimeMillis()-startTime;
+    logger.info("WaxeyePEGParser: Parsing with "+(grammarIsURL ? grammarURL : "grammar from string")+" took "+elapsedTime+" ms, for "+nrScans+" scans.");
   }
 
+  /**
+   * Scan several SMAX documents for parsing matches, in parallel on a ForkJoinPool.
+   * The result is the same as when each document is scanned by {@link #scan(SmaxDocument)}, but only one message is logged.
+   * @param smaxDocuments the documents.
+   * @throws QueryException the exception for the first document, in the order of the list, that cannot be scanned.
+   */
+  public void scanAll(List<SmaxDocument> smaxDocuments) throws QueryException
+  {
+    long startTime = System.currentTimeMillis();
+    long[] nrScans = new long[smaxDocuments.size()];
+    QueryException[] errors = new QueryException[smaxDocuments.size()];
+    inParallel(smaxDocuments.size(), i -> nrScans[i] = scanDocument(smaxDocuments.get(i), markupInserter(smaxDocuments.get(i))), errors);
+    for (QueryException error : errors) {
+      if (error != null) {
+        throw error;
+      }
+    }
+    long elapsedTime = System.currentTimeMillis()-startTime;
+    logger.info("WaxeyePEGParser: Parsing "+smaxDocuments.size()+" inputs with "+(grammarIsURL ? grammarURL : "grammar from string")+" took "+elapsedTime+" ms, for "+
+        Arrays.stream(nrScans).sum()+" scans.");
+  }
 
   /**
-   * Compile the Java files for the grammar and loads the class-files.
-   * It then returns an instance of the Parser class.
-   * @param javaCodeDir
-   * @return a Parser<?> instance.
+   * Scan a SMAX document for parsing matches, and return the positions of the non-terminals in the matches, instead of inserting markup.
+   * The document is not changed.
+   * @param smaxDocument
+   * @return the non-terminals in the matches, with their start and end positions in the content of the document.
    * @throws QueryException
-   * @throws MalformedURLException
-   * @throws IOException
    */
-  private Parser<?> loadParser(File javaCodeDir)
-    throws QueryException, MalformedURLException, IOException
-  {
-    /* Compile the Java files into a class. */
-    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
-    try (
-      StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
-    )
+  public MatchOffsets scanOffsets(SmaxDocument smaxDocument) throws QueryException
+  {
+    long startTime = System.currentTimeMillis();
+    MatchOffsets matchOffsets = new MatchOffsets();
+    long nrScans = scanDocument(smaxDocument, (parseResult, withinElement, textStart) -> {
+      new OffsetVisitor(parseResult, textStart, matchOffsets);
+      return true;
+    });
+    long elapsedTime = System.currentTimeMillis()-startTime;
+    logger.info("WaxeyePEGParser: Parsing with "+(grammarIsURL ? grammarURL : "grammar from string")+" took "+elapsedTime+" ms, for "+nrScans+" scans, giving "+matchOffsets.size()+" offsets.");
+    return matchOffsets;
+  }
+
+  /**
+   * Handles the parse results of a fragment of a document, after the fragment has been scanned.
+   */
+  @FunctionalInterface
+  private interface ResultHandler
+  {
+    /**
+     * @param parseResult a match or a parse error that must be shown.
+     * @param withinElement the element that contains the fragment.
+     * @param textStart the start position of the fragment within the document.
+     * @return false if scanning must stop, because no more matches are needed.
+     */
+    boolean handle(ParseResult<?> parseResult, SmaxElement withinElement, int textStart) throws QueryException;
+
+    /**
+     * @return true if no more matches are needed.
+     */
+    default boolean isDone()
+    {
+      return false;
+    }
+  }
+
+  /**
+   * A result handler that passes at most maxMatches parse results to another handler.
+   */
+  private static final class LimitedResultHandler implements ResultHandler
+  {
+    private final ResultHandler resultHandler;
+    private final int maxMatches;
+    private int nrMatches = 0;
+
+    LimitedResultHandler(ResultHandler resultHandler, int maxMatches)
     {
-      Iterable<? extends JavaFileObject> compilationUnits = fileManager.getJavaFileObjects(javaCodeDir.toPath().resolve("Parser.java"), javaCodeDir.toPath().resolve("Type.java"));
-      List<String> options = new ArrayList<>();
-      //List<String> classpathEntries;
-      //options.add("-classpath");
-      //options.add(String.join(System.getProperty("path.separator"), classpathEntries));
-      StringWriter compilerOutput = new StringWriter();
-      JavaCompiler.CompilationTask task = compiler.getTask(compilerOutput, fileManager, diagnostics, options, null, compilationUnits);
-      boolean success = task.call(); // see https://34codefactory.medium.com/java-how-to-dynamically-compile-and-load-external-java-classes-code-factory-dd517eec9b3
-      fileManager.close();
-      if (!success) {
-    	String javaSources =  StreamSupport.stream(compilationUnits.spliterator(), false).map((JavaFileObject file) -> file.getName()).collect(Collectors.joining(", "));
-    	String diagnosticsOutput = diagnostics.getDiagnostics().stream().
-    			map(diagnostic -> diagnostic.getSource().getName()+" l."+diagnostic.getLineNumber()+": "+diagnostic.getMessage(null)).
-    			collect(Collectors.joining(", "));
-        throw new QueryException("Some generated Java files had compilation errors. The Java sources are "+javaSources+".\n"+diagnosticsOutput+"\n"+compilerOutput.toString());
-      }
-      URLClassLoader urlClassLoader = URLClassLoader.newInstance(new URL[] {javaCodeDir.toURI().toURL()});
-      Parser<?> parser = (Parser<?>) urlClassLoader.loadClass("Parser").getConstructor().newInstance();
-      //Parser<?> parser = (Parser<?>) Class.forName("Parser").getConstructor().newInstance();
-      return parser;
-    }
-    catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException
-        | NoSuchMethodException | SecurityException | ClassNotFoundException e)
+      this.resultHandler = resultHandler;
+      this.maxMatches = maxMatches;
+    }
+
+    @Override
+    public boolean handle(ParseResult<?> parseResult, SmaxElement withinElement, int textStart) throws QueryException
     {
-      throw new QueryException("Cannot load PEG parser ("+e.getClass().getName()+"): "+e.getMessage());
+      if (isDone()) {
+        return false;
+      }
+      ++nrMatches;
+      return resultHandler.handle(parseResult, withinElement, textStart) && !isDone();
+    }
+
+    @Override
+    public boolean isDone()
+    {
+      return nrMatches >= maxMatches;
     }
   }
 
+  /**
+   * @return a result handler that inserts markup for the parse results into a document.
+   */
+  private ResultHandler markupInserter(SmaxDocument smaxDocument)
+  {
+    return (parseResult, withinElement, textStart) -> {
+      new XmlVisitor(parseResult, withinElement, textStart, smaxDocument);
+      return true;
+    };
+  }
 
   /**
    * Scan a SMAX document for parsing matches.
    * @param smaxDocument
+   * @param documentResultHandler handles the parse results, in document order.
+   * @return the number of scans (parsing attempts)
    * @throws QueryException
    */
-  public void scan(SmaxDocument smaxDocument) throws QueryException
+  private long scanDocument(SmaxDocument smaxDocument, ResultHandler documentResultHandler) throws QueryException
   {
-    long startTime = System.currentTimeMillis();
+    final ResultHandler resultHandler = maxMatches > 0 ? new LimitedResultHandler(documentResultHandler, maxMatches) : documentResultHandler;
     CharSequence textFragment = smaxDocument.getContent();
-    parser.setEofCheck(completeMatch);
-    parser.setDebug(debug);
     long nrScans;
-    if (parseWithinElement != null) {
+    if (parallel && parseWithinElement != null || splitPattern != null) {
+      // Scan within the elements indicated by parseWithinElement and parseWithinNamespace, or within the root element, in parallel.
+      nrScans = scanInParallel(smaxDocument, textFragment, resultHandler);
+    } else if (parseWithinElement != null) {
       // Traverse the DOM tree and only scan within the elements indicated by parseWithinElement and parseWithinNamespace.
-      nrScans = traverseAndScan(smaxDocument, textFragment, smaxDocument.getMarkup());
+      nrScans = traverseAndScan(smaxDocument, textFragment, smaxDocument.getMarkup(), resultHandler);
     } else {
       // Scan within the root element.
-      nrScans = scanFragment(smaxDocument, smaxDocument.getMarkup(), textFragment, 0);
+      SmaxElement root = smaxDocument.getMarkup();
+      nrScans = scanFragment(smaxDocument, 0, textFragment.length(), parseResult -> resultHandler.handle(parseResult, root, 0));
     }
-    long elapsedTime = System.currentTimeMillis()-startTime;
-    logger.info("WaxeyePEGParser: Parsing with "+(grammarIsURL ? grammarURL : "grammar from string")+" took "+elapsedTime+" ms, for "+nrScans+" scans.");
+    return nrScans;
   }
 
   /**
@@ -408,66 +504,313 @@ public class WaxeyePEGParser
    * @param smaxDocument the document that is being parsed / matched.
    * @param textFragment the complete content of the document.
    * @param element the current element that is being traversed.
+   * @param resultHandler handles the parse results.
    * @return the number of scans (parsing attempts)
    * @throws QueryException
    */
-  private long traverseAndScan(SmaxDocument smaxDocument, CharSequence textFragment, SmaxElement element) throws QueryException
+  private long traverseAndScan(SmaxDocument smaxDocument, CharSequence textFragment, SmaxElement element, ResultHandler resultHandler) throws QueryException
   {
     long nrScans = 0L;
-    String elementNsURI = element.getNamespaceURI();
-    if ( parseWithinElement.equals(element.getLocalName()) &&
-         ( (parseWithinNamespace == null || parseWithinNamespace.isEmpty()) && (elementNsURI == null || elementNsURI.isEmpty()) ||
-           parseWithinNamespace.equals(elementNsURI)
-         )) {
+    if (isParseWithinElement(element)) {
       // Parse / match within this element.
       int textStart = element.getStartPos();
       int textEnd = element.getEndPos();
-      nrScans = scanFragment(smaxDocument, element, textFragment.subSequence(textStart, textEnd), textStart);
+      nrScans = scanFragment(smaxDocument, textStart, textEnd,
+          parseResult -> resultHandler.handle(parseResult, element, textStart));
     } else if (element.hasChildNodes()) {
       List <SmaxElement> children = element.getChildren();
       for (SmaxElement child : children) {
-        nrScans += traverseAndScan(smaxDocument, textFragment, child);
+        if (resultHandler.isDone()) {
+          break;
+        }
+        nrScans += traverseAndScan(smaxDocument, textFragment, child, resultHandler);
+      }
+    }
+    return nrScans;
+  }
+
+  /**
+   * @return true if the text within the element must be parsed, as indicated by parseWithinElement and parseWithinNamespace.
+   */
+  private boolean isParseWithinElement(SmaxElement element)
+  {
+    String elementNsURI = element.getNamespaceURI();
+    return parseWithinElement.equals(element.getLocalName()) &&
+           ( (parseWithinNamespace == null || parseWithinNamespace.isEmpty()) && (elementNsURI == null || elementNsURI.isEmpty()) ||
+             parseWithinNamespace.equals(elementNsURI)
+           );
+  }
+
+  /**
+   * Collect the elements within which the text must be parsed, in document order, like traverseAndScan visits them.
+   */
+  private void collectParseWithinElements(SmaxElement element, List<SmaxElement> elements)
+  {
+    if (isParseWithinElement(element)) {
+      elements.add(element);
+    } else if (element.hasChildNodes()) {
+      for (SmaxElement child : element.getChildren()) {
+        collectParseWithinElements(child, elements);
+      }
+    }
+  }
+
+  /**
+   * Add the fragment for the text within an element. If there is a split pattern, the text is split into chunks,
+   * at the ends of matches of the pattern, which are at least splitMinLength characters long (except the last chunk).
+   * @param element the element that contains the text.
+   * @param textFragment the complete content of the document.
+   * @param fragments the list of fragments to which the fragment or chunks are added.
+   */
+  private void addFragments(SmaxElement element, CharSequence textFragment, List<ScannedFragment> fragments)
+  {
+    int chunkStart = element.getStartPos();
+    int textEnd = element.getEndPos();
+    if (splitPattern != null) {
+      Matcher splitPoints = splitPattern.matcher(textFragment).region(chunkStart, textEnd).useTransparentBounds(true);
+      while (splitPoints.find()) {
+        int splitPoint = splitPoints.end();
+        if (splitPoint - chunkStart >= splitMinLength && splitPoint < textEnd) {
+          fragments.add(new ScannedFragment(element, chunkStart, splitPoint));
+          chunkStart = splitPoint;
+        }
+      }
+    }
+    fragments.add(new ScannedFragment(element, chunkStart, textEnd));
+  }
+
+  /**
+   * Scan within the elements indicated by parseWithinElement and parseWithinNamespace, or within the root element, in parallel.
+   * The fragments are scanned on a ForkJoinPool, without changing the document, and the parse results of each fragment are collected.
+   * Then the parse results are handled for the fragments in document order, so the result is the same as for sequential scanning.
+   * If there is a split pattern, the text in each element is split into chunks, which are scanned in parallel.
+   * @param smaxDocument the document that is being parsed / matched.
+   * @param textFragment the complete content of the document.
+   * @param resultHandler handles the parse results.
+   * @return the number of scans (parsing attempts)
+   * @throws QueryException
+   */
+  private long scanInParallel(SmaxDocument smaxDocument, CharSequence textFragment, ResultHandler resultHandler) throws QueryException
+  {
+    List<SmaxElement> elements = new ArrayList<>();
+    if (parseWithinElement != null) {
+      collectParseWithinElements(smaxDocument.getMarkup(), elements);
+    } else {
+      elements.add(smaxDocument.getMarkup());
+    }
+    List<ScannedFragment> fragmentList = new ArrayList<>();
+    for (SmaxElement element : elements) {
+      addFragments(element, textFragment, fragmentList);
+    }
+    ScannedFragment[] fragments = fragmentList.toArray(new ScannedFragment[0]);
+    QueryException[] errors = new QueryException[fragments.length];
+    inParallel(fragments.length, i -> {
+      ScannedFragment fragment = fragments[i];
+      // A fragment never needs more than maxMatches results.
+      fragment.nrScans = scanFragment(smaxDocument, fragment.textStart, fragment.textEnd,
+          parseResult -> fragment.parseResults.add(parseResult) && (maxMatches == 0 || fragment.parseResults.size() < maxMatches));
+    }, errors);
+    long nrScans = 0L;
+    for (int i = 0; i < fragments.length; ++i) {
+      nrScans += fragments[i].nrScans;
+      for (ParseResult<?> parseResult : fragments[i].parseResults) {
+        if (!resultHandler.handle(parseResult, fragments[i].element, fragments[i].textStart)) {
+          // Sequential scanning would have stopped here, before an error in this fragment or the next fragments.
+          return nrScans;
+        }
+      }
+      if (errors[i] != null) {
+        throw errors[i];
       }
     }
     return nrScans;
   }
 
+  /**
+   * The parse results within an element, or a chunk of its text, which are collected when scanning in parallel.
+   */
+  private static final class ScannedFragment
+  {
+    private final SmaxElement element;
+    private final int textStart;
+    private final int textEnd;
+    private final List<ParseResult<?>> parseResults = new ArrayList<>();
+    private long nrScans = 0L;
+
+    ScannedFragment(SmaxElement element, int textStart, int textEnd)
+    {
+      this.element = element;
+      this.textStart = textStart;
+      this.textEnd = textEnd;
+    }
+  }
+
+  /**
+   * Run a scan for each index from 0 to n (exclusive) on a ForkJoinPool, and wait until they are done.
+   * @param n the number of scans.
+   * @param scan the scan for an index.
+   * @param errors receives the exception of each scan that fails, at its index.
+   */
+  private static void inParallel(int n, IndexedScan scan, QueryException[] errors)
+  {
+    if (n > 0) {
+      ForkJoinPool.commonPool().invoke(new ScanTask(scan, errors, 0, n));
+    }
+  }
+
+  /**
+   * A scan of one of several fragments or documents, identified by its index.
+   */
+  @FunctionalInterface
+  private interface IndexedScan
+  {
+    void scan(int index) throws QueryException;
+  }
+
+  /**
+   * Runs the scans for a range of indexes, by splitting the range until it contains one index.
+   */
+  private static final class ScanTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+    private final IndexedScan scan;
+    private final QueryException[] errors;
+    private final int from;
+    private final int to;
+
+    ScanTask(IndexedScan scan, QueryException[] errors, int from, int to)
+    {
+      this.scan = scan;
+      this.errors = errors;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (to - from > 1) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new ScanTask(scan, errors, from, middle), new ScanTask(scan, errors, middle, to));
+        return;
+      }
+      try {
+        scan.scan(from);
+      } catch (QueryException e) {
+        errors[from] = e;
+      }
+    }
+  }
+
+  /**
+   * Receives the parse results of a scan, which are either a match or a parse error that must be shown.
+   */
+  @FunctionalInterface
+  private interface MatchHandler
+  {
+    /**
+     * @return false if scanning must stop, because no more matches are needed.
+     */
+    boolean handle(ParseResult<?> parseResult) throws QueryException;
+  }
+
   /**
    * Scan a SMAX document or a fragment of it.
    * @param smaxDocument the document that is being parsed / scanned.
-   * @param withinElement the element within which the textFragment is located.
-   * @param textFragment the text of the fragment to scan.
    * @param textStart the start position of the fragment within the document.
+   * @param textEnd the end position of the fragment within the document.
+   * @param matchHandler handles the parse results.
    * @return the number of scans (parsing attempts)
    * @throws QueryException
    */
-  private long scanFragment(SmaxDocument smaxDocument, SmaxElement withinElement, CharSequence textFragment, int textStart) throws QueryException
+  private long scanFragment(SmaxDocument smaxDocument, int textStart, int textEnd, MatchHandler matchHandler) throws QueryException
   {
-    long nrScans = 0L;
-    // Make an ParserSmaxInput for the textFragment.
-    final ParserSmaxInput input;
-    if (normalize) {
-      // The character positions in fragment and input must be the same.
-      input = new ParserSmaxInput(StringUtils.charSequenceToCharArray(StringUtils.normalizeOneToOne(textFragment)));
-    } else {
-      input = new ParserSmaxInput(StringUtils.charSequenceToCharArray(textFragment));
+    // Make an ParserSmaxInput for the fragment. The content of the document is not copied.
+    // If it must be normalized, the parser sees the characters through the mapping, at the same positions as in the fragment.
+    final ParserSmaxInput input = ParserSmaxInput.of(smaxDocument.getContent(), textStart, textEnd, normalization);
+    final CharSequence textFragment = input.unmapped();
+    // If unmatched text is allowed, parse errors are ignored, and the results of earlier parses are re-used in later parses.
+    // The memo table is taken from the pool for this thread, so scanning does not allocate a new table for each fragment.
+    final MemoTable memo = MemoTable.acquire();
+    memo.setLimit(memoMaxEntries, memoEvict);
+    try {
+      return scanFragment(smaxDocument, textFragment, textStart, input, memo, matchHandler);
+    } finally {
+      logMemoLimit(memo);
+      memo.release();
     }
+  }
+
+  /**
+   * Log if the memo table has been full while scanning.
+   */
+  private void logMemoLimit(MemoTable memo)
+  {
+    if (memo.isFull()) {
+      logger.warning("WaxeyePEGParser: The memo table is full, with "+memoMaxEntries+" results; parsing continued without storing more results.");
+    } else if (memo.getEvictions() > 0) {
+      logger.info("WaxeyePEGParser: The memo table is full, with "+memoMaxEntries+" results; "+memo.getEvictions()+" results were evicted.");
+    }
+  }
+
+  /**
+   * Scan a fragment, with its input and a memo table.
+   */
+  private long scanFragment(SmaxDocument smaxDocument, CharSequence textFragment, int textStart,
+      ParserSmaxInput input, MemoTable memo, MatchHandler matchHandler) throws QueryException
+  {
+    long nrScans = 0L;
+    // If unmatched text is allowed, positions where the grammar cannot start a match are skipped without parsing.
+    // When all matches start with literal strings, the positions where these occur are found as the scan advances.
+    final FirstSet firstSet = parser.getFirstSet();
+    final boolean skipByFirstSet = allowUnmatchedText && firstSet.isSelective();
+    final LiteralPrefixMatcher literalPrefixMatcher = skipByFirstSet ? parser.getLiteralPrefixMatcher() : null;
+    final LiteralPrefixMatcher.Candidates candidates = literalPrefixMatcher == null ? null : literalPrefixMatcher.candidates(input);
+    // If only whole words are matched, parsing starts only at the start of a word, or at a character that is not in a word and not white space.
+    // These positions are found beforehand, so the scan can go directly from one to the next.
+    final BitSet startPositions = (allowUnmatchedText && matchWholeWords) ? wordCharacters.wordStarts(textFragment) : null;
     // Scan the text fragment.
     int textPosition = 0;
     int textEnd = textFragment.length();
     int previousTextPosition = -1;
     StringBuilder unmatched = new StringBuilder(); // Collects unmatched characters, up to the next match.
     // A function that checks if a pre-parsed non-terminal is present at the current position in the input.
+    // The elements in the fragment are indexed by name and start position, once for the fragment, when the function is first used.
+    final PreParsedElementIndex preParsedElementIndex = new PreParsedElementIndex(smaxDocument, textStart, textStart + textEnd);
     final BiFunction<String, IParserInput<SmaxElement>,Integer> preparsedNonTerminalAt =
-        (String nonTerminalName, IParserInput<SmaxElement> smaxInput) -> this.preparsedNonTerminalAt(smaxDocument, nonTerminalName, (ParserSmaxInput)smaxInput, textStart);
+        (String nonTerminalName, IParserInput<SmaxElement> smaxInput) -> preParsedElementIndex.lookup(nonTerminalName, (ParserSmaxInput)smaxInput);
     // Allow textPosition to go up to textEnd (textPosition <= textEnd), to allow zero-length pre-parsed non-terminal matches at the end of the input.
     // Stop if textPosition does not advance, to prevent infinite loops.
     while (textPosition <= textEnd && textPosition > previousTextPosition) {
-      // Skip spaces if unmatched text is allowed and only whole words are matched.
-      if (allowUnmatchedText && matchWholeWords) {
-        while (textPosition < textEnd && Character.isWhitespace(textFragment.charAt(textPosition))) {
-          unmatched.append(textFragment.charAt(textPosition++));
+      // Skip characters that cannot start a match. This skips the same text as failed parses would, including spaces and whole words.
+      if (startPositions != null || skipByFirstSet) {
+        int nextStart = textPosition;
+        while (nextStart < textEnd) {
+          if (candidates != null) {
+            nextStart = candidates.next(nextStart);
+            if (nextStart < 0) {
+              nextStart = textEnd;
+              break;
+            }
+          }
+          if (startPositions != null) {
+            int wordStart = startPositions.nextSetBit(nextStart);
+            if (wordStart < 0) {
+              nextStart = textEnd;
+              break;
+            } else if (wordStart > nextStart) {
+              // Look for the next candidate from the start of the word.
+              nextStart = wordStart;
+              continue;
+            }
+          }
+          if (candidates != null || !skipByFirstSet || firstSet.contains(input.charAt(nextStart))) {
+            break;
+          }
+          ++nextStart;
         }
+        unmatched.append(textFragment, textPosition, nextStart);
+        textPosition = nextStart;
       }
       // The previous text position is where we start parsing.
       previousTextPosition = textPosition;
@@ -478,7 +821,10 @@ public class WaxeyePEGParser
         // Try parsing from the current position.
         ++nrScans;
         long startTime = System.currentTimeMillis();
-        final ParseResult<?> parseResult = parser.parse(input, preparsedNonTerminalAt);
+        if (!allowUnmatchedText) {
+          memo.reset();
+        }
+        final ParseResult<?> parseResult = parser.parse(input, preparsedNonTerminalAt, parseSettings, memo);
         long milliSecondsUsed = System.currentTimeMillis() - startTime;
         // Parse errors are significant if there is unmatched text, and it is not allowed.
         ParseError parseError = parseResult.getError();
@@ -486,7 +832,9 @@ public class WaxeyePEGParser
         if (parseError != null && unmatchedTextExists && !allowUnmatchedText) {
           // There was a parse error.
           if (showParseErrors) {
-            new XmlVisitor(parseResult, withinElement, textStart, smaxDocument);
+            if (!matchHandler.handle(parseResult)) {
+              break;
+            }
           } else {
             int line = parseError.getLine();
             int column = parseError.getColumn();
@@ -497,14 +845,14 @@ public class WaxeyePEGParser
             throw new QueryException(message);
           }
         } else {
-          boolean hasNonEmptyParseTree = parseResult.getAST() != null && !( parseResult.getAST().getType().toString().equals("_Empty") );
+          boolean hasNonEmptyParseTree = parseResult.getAST() != null && !( parseResult.getAST() instanceof IEmpty );
           // If there was a match, the next position is after the match. If the match is empty, the text position has not advanced.
           int nextPosition = hasNonEmptyParseTree ? parseResult.getAST().getPosition().getEndIndex() : textPosition;
           // If there was an empty match, the text position has not advanced, and we do that explicitly.
           if (nextPosition == previousTextPosition) {
             nextPosition++;
           }
-          boolean nextCharacterInWord = nextPosition < textEnd && Character.isLetterOrDigit(textFragment.charAt(nextPosition));
+          boolean nextCharacterInWord = nextPosition < textEnd && wordCharacters.isWordCharacter(textFragment.charAt(nextPosition));
           if (hasNonEmptyParseTree && (!matchWholeWords || !nextCharacterInWord)) {
             // Insert XML elements for a non-empty match.
             handleText(unmatched);
@@ -512,18 +860,14 @@ public class WaxeyePEGParser
               String parseTree = parseResult.toString();
               insertComment("Parsing took " + milliSecondsUsed + " ms.\n" + parseTree);
             }
-            new XmlVisitor(parseResult, withinElement, textStart, smaxDocument);
+            if (!matchHandler.handle(parseResult)) {
+              break;
+            }
             textPosition = nextPosition;
           } else if (allowUnmatchedText && textPosition < textEnd) {
             // Skip one character if there is an ignored error or empty match, and more text is available.
-            char unmatchedChar = textFragment.charAt(textPosition++);
-            unmatched.append(unmatchedChar);
-            // If only whole words are matched, and the current character was part of a word, skip the rest of the word.
-            if (matchWholeWords && Character.isLetterOrDigit(unmatchedChar)) {
-              while (textPosition < textEnd && Character.isLetterOrDigit(textFragment.charAt(textPosition))) {
-                unmatched.append(textFragment.charAt(textPosition++));
-              }
-            }
+            // If only whole words are matched, and the current character was part of a word, the rest of the word is skipped before the next parse.
+            unmatched.append(textFragment.charAt(textPosition++));
           } else {
             // There is no good match possible, skip to the end.
             textPosition = textEnd;
@@ -535,6 +879,267 @@ public class WaxeyePEGParser
     return nrScans;
   }
 
+  /**
+   * Scan a text that is read from a reader, such as a large file, without reading all of it into memory.
+   * The result is the same as when the text is scanned as a string, but it is delivered in parts by the returned scanner.
+   * Only the characters from the start of the current parse to the furthest position that the parser has looked at are kept in memory,
+   * as well as the results in the memo table for these positions.
+   * This cannot be used with 'complete-match' or 'adjacent-matches', which need all of the text to know if there is a result,
+   * and 'parse-within-element' is ignored, because the text has no markup.
+   * @param reader the reader for the text. It is not closed by the scanner.
+   * @return the scanner, which delivers the unmatched text and the matches.
+   * @throws QueryException if unmatched text is not allowed.
+   */
+  public StreamScanner scanStream(Reader reader) throws QueryException
+  {
+    checkStreamOptions();
+    return new StreamScanner(new StreamingParserInput(reader, normalization));
+  }
+
+  /**
+   * Scan a text that is given in chunks, such as lines or pages, which are {@link StreamScanner#push(CharSequence) pushed} to the returned scanner.
+   * Matches may cross the boundaries between chunks. The scanner delivers the parts of the result as soon as they are final,
+   * and keeps the text after the last final part.
+   * The result is the same as when the concatenated chunks are scanned as a string, with the same limitations as {@link #scanStream(Reader)}.
+   * @return the scanner.
+   * @throws QueryException if unmatched text is not allowed.
+   */
+  public StreamScanner scanChunks() throws QueryException
+  {
+    checkStreamOptions();
+    return new StreamScanner(new StreamingParserInput(normalization));
+  }
+
+  /**
+   * Check that the options allow scanning a text from a stream.
+   * @throws QueryException if unmatched text is not allowed.
+   */
+  void checkStreamOptions() throws QueryException
+  {
+    if (!allowUnmatchedText) {
+      throw new QueryException("A text from a stream cannot be parsed with complete-match or adjacent-matches.");
+    }
+  }
+
+  /**
+   * Scans a text from a reader or from chunks, and delivers the parts of the result one at a time, as soon as they are known.
+   * Each part is a SMAX document with a <code>wrapper</code> root element around either a piece of unmatched text or a match.
+   * The concatenation of the contents of the wrapper elements is the complete text.
+   *<p>
+   * When the text is given in chunks, a parse that reaches the end of the chunks so far is not final, because more text may change its result.
+   * Its result is dropped, together with the memo table, and the parse is done again when there are more chunks.
+   */
+  public class StreamScanner
+  {
+    /* Unmatched text is delivered in pieces of at most this length. */
+    private static final int MAX_UNMATCHED_LENGTH = 8192;
+
+    private final StreamingParserInput input;
+    private final MemoTable memo;
+    private final FirstSet firstSet = parser.getFirstSet();
+    private final boolean skipByFirstSet = firstSet.isSelective();
+    private final ArrayDeque<SmaxDocument> parts = new ArrayDeque<>();
+    private final StringBuilder unmatched = new StringBuilder();
+    private final long startTime = System.currentTimeMillis();
+    private int textPosition = 0;
+    private int nrMatches = 0;
+    /* Set when the rest of a word must be skipped, but the chunks so far end within the word. */
+    private boolean inUnmatchedWord = false;
+    private long nrScans = 0L;
+    private boolean finished = false;
+
+    private StreamScanner(StreamingParserInput input)
+    {
+      this.input = input;
+      this.memo = MemoTable.acquire();
+      memo.setLimit(memoMaxEntries, memoEvict);
+    }
+
+    /**
+     * Add a chunk of text, after the previous chunks.
+     * @param chunk the text.
+     */
+    public void push(CharSequence chunk)
+    {
+      input.append(chunk);
+    }
+
+    /**
+     * Mark the end of the text, after the last chunk.
+     */
+    public void end()
+    {
+      input.end();
+    }
+
+    /**
+     * @return the next part of the result, or null if the whole text has been scanned,
+     *   or if no part is final until more chunks are {@link #push(CharSequence) pushed} or the text is {@link #end() ended}.
+     * @throws IOException if the text cannot be read.
+     */
+    public SmaxDocument next() throws IOException
+    {
+      try {
+        while (parts.isEmpty() && !finished && scanNext()) {
+          // Scan until there is a part of the result.
+        }
+      } catch (UncheckedIOException e) {
+        finish();
+        throw e.getCause();
+      }
+      return parts.poll();
+    }
+
+    /**
+     * @return true if the whole text has been scanned.
+     */
+    public boolean isFinished()
+    {
+      return finished;
+    }
+
+    /**
+     * Skip the text that cannot start a match, and try to parse from the next position.
+     * This follows the scan loop for a text fragment when unmatched text is allowed.
+     * @return false if more chunks are needed to continue.
+     */
+    private boolean scanNext()
+    {
+      // The text before the current position is no longer needed by the parser.
+      input.release(textPosition);
+      if (maxMatches > 0 && nrMatches >= maxMatches) {
+        // The rest of the text is not parsed, and is delivered as unmatched text.
+        inUnmatchedWord = false;
+        while (parts.isEmpty() && input.charAt(textPosition) != IParserInput.EOF) {
+          addUnmatched(textPosition++);
+        }
+        if (!parts.isEmpty()) {
+          return true;
+        }
+      } else {
+        if (inUnmatchedWord) {
+          skipRestOfWord();
+        }
+        if (matchWholeWords) {
+          while (isWhitespace(input.charAt(textPosition))) {
+            addUnmatched(textPosition++);
+          }
+        }
+        if (skipByFirstSet) {
+          int c;
+          while ((c = input.parserCharAt(textPosition)) != IParserInput.EOF) {
+            if (firstSet.contains((char)c) && !(matchWholeWords && isWhitespace(input.charAt(textPosition)))) {
+              break;
+            }
+            skipUnmatched();
+          }
+        }
+      }
+      if (inUnmatchedWord || input.charAt(textPosition) == IParserInput.EOF) {
+        if (!input.isEnded()) {
+          return false;
+        }
+        addUnmatchedPart();
+        finish();
+        return true;
+      }
+      input.setPosition(textPosition);
+      input.resetExhausted();
+      ++nrScans;
+      final ParseResult<?> parseResult = parser.parse(input, null, parseSettings, memo);
+      boolean hasNonEmptyParseTree = parseResult.getAST() != null && !( parseResult.getAST() instanceof IEmpty );
+      int nextPosition = hasNonEmptyParseTree ? parseResult.getAST().getPosition().getEndIndex() : textPosition;
+      if (nextPosition == textPosition) {
+        nextPosition++;
+      }
+      // The character after the match only matters if whole words are matched.
+      int nextCharacter = matchWholeWords ? input.charAt(nextPosition) : IParserInput.EOF;
+      if (input.isExhausted()) {
+        // The parser has seen the end of the chunks so far, so the memo table may contain results that change with more text.
+        input.resetExhausted();
+        memo.reset();
+        return false;
+      }
+      boolean nextCharacterInWord = isWordCharacter(nextCharacter);
+      if (hasNonEmptyParseTree && (!matchWholeWords || !nextCharacterInWord)) {
+        addUnmatchedPart();
+        // The match becomes a document of its own, so its positions are shifted to the start of the match.
+        SmaxElement wrapper = new SmaxElement("wrapper").setStartPos(0).setEndPos(nextPosition - textPosition);
+        SmaxDocument matchDocument = new SmaxDocument(wrapper, input.substring(textPosition, nextPosition));
+        try {
+          new XmlVisitor(parseResult, wrapper, -textPosition, matchDocument);
+        } catch (QueryException e) {
+          throw new IllegalStateException(e);
+        }
+        parts.add(matchDocument);
+        ++nrMatches;
+        textPosition = nextPosition;
+      } else {
+        skipUnmatched();
+      }
+      return true;
+    }
+
+    /**
+     * Skip one character, or a word if only whole words are matched.
+     */
+    private void skipUnmatched()
+    {
+      int c = input.charAt(textPosition);
+      addUnmatched(textPosition++);
+      if (matchWholeWords && isWordCharacter(c)) {
+        skipRestOfWord();
+      }
+    }
+
+    private void skipRestOfWord()
+    {
+      int c;
+      while (isWordCharacter(c = input.charAt(textPosition))) {
+        addUnmatched(textPosition++);
+      }
+      inUnmatchedWord = c == IParserInput.EOF && !input.isEnded();
+    }
+
+    private void addUnmatched(int position)
+    {
+      unmatched.append((char)input.charAt(position));
+      if (unmatched.length() >= MAX_UNMATCHED_LENGTH) {
+        addUnmatchedPart();
+      }
+    }
+
+    private void addUnmatchedPart()
+    {
+      if (unmatched.length() > 0) {
+        SmaxElement wrapper = new SmaxElement("wrapper").setStartPos(0).setEndPos(unmatched.length());
+        parts.add(new SmaxDocument(wrapper, unmatched.toString()));
+        unmatched.setLength(0);
+      }
+    }
+
+    private void finish()
+    {
+      if (!finished) {
+        finished = true;
+        logMemoLimit(memo);
+        memo.release();
+        long elapsedTime = System.currentTimeMillis()-startTime;
+        logger.info("WaxeyePEGParser: Parsing a stream with "+(grammarIsURL ? grammarURL : "grammar from string")+" took "+elapsedTime+" ms, for "+nrScans+" scans.");
+      }
+    }
+
+    private boolean isWhitespace(int c)
+    {
+      return c != IParserInput.EOF && Character.isWhitespace((char)c);
+    }
+
+    private boolean isWordCharacter(int c)
+    {
+      return c != IParserInput.EOF && wordCharacters.isWordCharacter((char)c);
+    }
+  }
+
   private String nthLine(CharSequence text, int n) {
     BufferedReader reader = new BufferedReader(new InputStreamReader(new java.io.ByteArrayInputStream(text.toString().getBytes())));
     try {
@@ -564,43 +1169,6 @@ public class WaxeyePEGParser
 
 
   /**
-   * Check if a pre-parsed non-terminal is present at the given position in the document.
-   * @param smaxDocument the document that is being parsed / scanned.
-   * @param nonTerminalName the name of a pre-parsed non-terminal, as specified by the grammar.
-   * @param input the current input, with its position and extended data.
-   * @param positionOffset the offset of the input position within the document.
-   * @return the number of character positions within the pre-parsed non-terminal, or -1 if there is no pre-parsed non-terminal with the given name at the given position.
-   */
-  private int preparsedNonTerminalAt(SmaxDocument smaxDocument, String nonTerminalName, ParserSmaxInput input, int positionOffset)
-  {
-    int startPos = input.getPosition();
-    // The last visited element. One of the elements following it can be the pre-parsed non-terminal.
-    SmaxElement element = input.getExtendedData();
-    // The next element that may contain the pre-parsed non-terminal.
-    if (element == null) {
-      element = smaxDocument.getMarkup(); // Start at the root element
-    } else {
-      element = input.getNextChildOrSiblingElement(element);
-    }
-    // Find the first element at the required start position.
-    while (element != input.endElement && element.getStartPos() < startPos + positionOffset) {
-      // Skip this element.
-      element = input.getNextElement(element);
-    }
-    // Search for the pre-parsed non-terminal at the required start position.
-    while (element != input.endElement && element.getStartPos() == startPos + positionOffset) {
-      if (nonTerminalName.equals(element.getLocalName())) {
-        // The pre-parsed non-terminal has been found.
-        input.setExtendedData(element); // This is now the last visited element.
-        return element.getEndPos() - element.getStartPos();
-      }
-      element = input.getNextElement(element);
-    }
-    return -1;
-  }
-
-
-  /**
    * The XmlVisitor processes the parse result, handling errors or inserting XML markup.
    */
   private class XmlVisitor implements IASTVisitor {
@@ -641,7 +1209,8 @@ public class WaxeyePEGParser
     @Override
     public void visitAST(IAST<?> node) {
       Position pos = node.getPosition();
-      String localName = useWaxeyeNames ? node.getType().toString() : ((Labeled)node.getType()).getLabel();
+      NonTerminal nonTerminal = ((NonTerminalAST)node).getNonTerminal();
+      String localName = useWaxeyeNames ? nonTerminal.getWaxeyeName() : nonTerminal.getLabel();
       SmaxElement nonTerminalElement =
         ( namespaceUri == null )
         ? new SmaxElement(localName)
@@ -713,4 +1282,51 @@ public class WaxeyePEGParser
 
   }
 
+  /**
+   * The OffsetVisitor adds the non-terminals in a parse result to match offsets, without changing the document.
+   */
+  private class OffsetVisitor implements IASTVisitor {
+
+    private final int startPosition;
+    private final MatchOffsets matchOffsets;
+
+    public OffsetVisitor(ParseResult<?> parseResult, int startPosition, MatchOffsets matchOffsets) throws QueryException
+    {
+      this.startPosition = startPosition;
+      this.matchOffsets = matchOffsets;
+      if (parseResult.getAST() != null) {
+        parseResult.getAST().acceptASTVisitor(this);
+      } else if (parseResult.getError() != null) {
+        // A parse error that must be shown is at the position where parsing failed.
+        int errorPosition = startPosition + parseResult.getError().getPosition();
+        matchOffsets.add(MatchOffsets.ERROR, errorPosition, errorPosition);
+      } else {
+        throw new QueryException("Unknown error occurred during parsing. There is no parse result and no error.");
+      }
+    }
+
+    @Override
+    public void visitAST(IAST<?> node) {
+      Position pos = node.getPosition();
+      NonTerminal nonTerminal = ((NonTerminalAST)node).getNonTerminal();
+      matchOffsets.add(useWaxeyeNames ? nonTerminal.getWaxeyeName() : nonTerminal.getLabel(), startPosition + pos.getStartIndex(), startPosition + pos.getEndIndex());
+      for (IAST<?> child : node.getChildren()) {
+        child.acceptASTVisitor(this);
+      }
+    }
+
+    @Override
+    public void visitEmpty(IEmpty tree) {
+    }
+
+    @Override
+    public void visitChar(IChar tree) {
+    }
+
+    @Override
+    public void visitPreParsedNonTerminal(IPreParsedNonTerminal tree) {
+    }
+
+  }
+
 }
@@ -0,0 +1,123 @@
+package org.greenmercury.basex.xquery.functions.peg;
+
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The characters that words consist of, for the option <code>match-whole-words</code>.
+ * The characters are kept in a table with an entry for each of the 65536 <code>char</code> values, so testing a character is one lookup.
+ *<p>
+ * The default word characters are letters and digits, see {@link Character#isLetterOrDigit(char)}.
+ * Other word characters are given by a regular expression for one character, usually a character class like <code>[\p{L}\p{N}_]</code>.
+ * The table for a regular expression is made once, and shared by all parsers that use the same expression.
+ * The tables for the most recently used expressions are kept; their number is set by the system property
+ * <code>org.greenmercury.peg.word-characters.max-entries</code> (default 16).
+ */
+public final class WordCharacters
+{
+
+  /** Letters and digits. */
+  public static final WordCharacters LETTERS_AND_DIGITS;
+
+  public static final int DEFAULT_MAX_ENTRIES = 16;
+
+  private static final int maxEntries = Integer.getInteger("org.greenmercury.peg.word-characters.max-entries", DEFAULT_MAX_ENTRIES);
+
+  /* The tables for regular expressions, with least-recently-used eviction. */
+  private static final LinkedHashMap<String, WordCharacters> cache = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, WordCharacters> eldest)
+    {
+      return size() > maxEntries;
+    }
+  };
+
+  static {
+    BitSet letterOrDigit = new BitSet(Character.MAX_VALUE + 1);
+    for (int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; ++c) {
+      if (Character.isLetterOrDigit((char)c)) {
+        letterOrDigit.set(c);
+      }
+    }
+    LETTERS_AND_DIGITS = new WordCharacters(letterOrDigit);
+  }
+
+  private final BitSet wordCharacters;
+
+
+  private WordCharacters(BitSet wordCharacters)
+  {
+    this.wordCharacters = wordCharacters;
+  }
+
+
+  /**
+   * Get the word characters for a regular expression.
+   * @param characterClass a regular expression that matches one word character, or null for letters and digits.
+   * @return the word characters.
+   * @throws IllegalArgumentException if the regular expression is not valid.
+   */
+  public static WordCharacters of(String characterClass)
+  {
+    if (characterClass == null) {
+      return LETTERS_AND_DIGITS;
+    }
+    WordCharacters wordCharacters;
+    synchronized (cache) {
+      wordCharacters = cache.get(characterClass);
+    }
+    if (wordCharacters == null) {
+      // The table is made outside the lock, so other expressions are not held up. Two threads may make the same table.
+      Matcher matcher = Pattern.compile(characterClass).matcher("");
+      BitSet matching = new BitSet(Character.MAX_VALUE + 1);
+      for (int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; ++c) {
+        if (matcher.reset(String.valueOf((char)c)).matches()) {
+          matching.set(c);
+        }
+      }
+      wordCharacters = new WordCharacters(matching);
+      synchronized (cache) {
+        cache.put(characterClass, wordCharacters);
+      }
+    }
+    return wordCharacters;
+  }
+
+
+  /**
+   * @param c a character.
+   * @return true if the character is a word character.
+   */
+  public boolean isWordCharacter(char c)
+  {
+    return wordCharacters.get(c);
+  }
+
+
+  /**
+   * Find the positions in a text where a match of whole words may start.
+   * These are the positions of characters that are not white space, and are not a word character that follows a word character.
+   * So a position is at the start of a word, or at a character like punctuation that is not part of a word.
+   * @param text the text.
+   * @return the positions.
+   */
+  public BitSet wordStarts(CharSequence text)
+  {
+    int length = text.length();
+    BitSet starts = new BitSet(length);
+    boolean previousInWord = false;
+    for (int i = 0; i < length; ++i) {
+      char c = text.charAt(i);
+      boolean inWord = wordCharacters.get(c);
+      if (!(inWord ? previousInWord : Character.isWhitespace(c))) {
+        starts.set(i);
+      }
+      previousInWord = inWord;
+    }
+    return starts;
+  }
+
+}
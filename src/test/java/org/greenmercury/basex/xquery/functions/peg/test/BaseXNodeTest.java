@@ -0,0 +1,303 @@
+package org.greenmercury.basex.xquery.functions.peg.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+
+import org.basex.core.Context;
+import org.basex.core.MainOptions;
+import org.basex.core.cmd.CreateDB;
+import org.basex.core.cmd.DropDB;
+import org.basex.query.QueryContext;
+import org.basex.query.QueryProcessor;
+import org.basex.query.func.java.JavaCall;
+import org.basex.query.value.Value;
+import org.basex.query.value.item.Item;
+import org.basex.query.value.node.DBNode;
+import org.greenmercury.basex.xquery.functions.peg.BaseXNodeBuilder;
+import org.greenmercury.basex.xquery.functions.peg.Logger;
+import org.greenmercury.basex.xquery.functions.peg.SmaxNodeReader;
+import org.greenmercury.basex.xquery.functions.peg.WaxeyePEGParser;
+import org.greenmercury.smax.SmaxDocument;
+import org.greenmercury.smax.SmaxElement;
+import org.greenmercury.smax.convert.Dom;
+import org.greenmercury.smax.convert.XmlString;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Tests of the conversion between BaseX nodes and SMAX documents, by BaseXNodeBuilder and SmaxNodeReader.
+ * The results are compared with the conversion through a W3C DOM document, which was used before.
+ */
+public class BaseXNodeTest
+{
+
+  private static final Logger logger = new Logger() {
+    @Override
+    public void info(String message)
+    {
+    }
+    @Override
+    public void warning(String message)
+    {
+    }
+    @Override
+    public void error(String message)
+    {
+    }
+  };
+
+  /* True if the nodes selected by a path from $old and the nodes in $new are deep-equal, and have the same namespaces. */
+  private static final String SAME_NODES =
+    "declare variable $old external;\n" +
+    "declare variable $new external;\n" +
+    "declare variable $in-scope external;\n" +
+    "declare function local:namespaces($nodes as node()*) as xs:string* {\n" +
+    "  for $element in $nodes/descendant-or-self::*\n" +
+    "  return if ($in-scope)\n" +
+    "    then string-join(sort(in-scope-prefixes($element) ! (. || '=' || namespace-uri-for-prefix(., $element))), ' ')\n" +
+    "    else ($element, $element/@*) ! (name(.) || '=' || namespace-uri(.))\n" +
+    "};\n" +
+    "let $selected := $old";
+
+  private static final String PROLOG = "import module namespace peg='org.greenmercury.basex.xquery.functions.peg.PEGModule';\n";
+
+  private static final String numberGrammar = "Num <- +[0-9]";
+
+  private static Context context;
+
+
+  @BeforeAll
+  static void createContext()
+  {
+    context = new Context();
+    // Databases that are made by the tests are kept in memory.
+    context.options.set(MainOptions.MAINMEM, true);
+  }
+
+  @AfterAll
+  static void closeContext()
+  {
+    context.close();
+  }
+
+
+  /**
+   * Check that two node sequences are the same, including the in-scope namespaces of their elements.
+   * @param expected the nodes from the conversion through a W3C DOM document.
+   * @param path a path that selects the expected nodes from <code>expected</code>, or an empty string.
+   * @param actual the nodes from the conversion into BaseX nodes.
+   */
+  private static void assertSameNodes(Value expected, String path, Value actual) throws Exception
+  {
+    assertSameNodes(expected, path, actual, true);
+  }
+
+  /**
+   * Check that two node sequences are the same.
+   * @param inScope if true, the in-scope namespaces of the elements must be the same.
+   *   Otherwise only the prefixes and namespaces of the element and attribute names must be the same,
+   *   because namespaces that are declared on ancestors of an element are not always carried over.
+   */
+  private static void assertSameNodes(Value expected, String path, Value actual, boolean inScope) throws Exception
+  {
+    String query = SAME_NODES + path + "\n" +
+      "return deep-equal($selected, $new) and deep-equal(local:namespaces($selected), local:namespaces($new))";
+    try (QueryProcessor processor = new QueryProcessor(query, context)) {
+      processor.variable("old", expected);
+      processor.variable("new", actual);
+      processor.variable("in-scope", inScope);
+      assertEquals(Boolean.TRUE, processor.value().toJava());
+    }
+  }
+
+  /**
+   * Run a query with an external variable <code>$doc</code>, and return its result as a string.
+   */
+  private static String query(String query, Value doc) throws Exception
+  {
+    try (QueryProcessor processor = new QueryProcessor("declare variable $doc external; string-join((" + query + "), ' ')", context)) {
+      processor.variable("doc", doc);
+      return (String)processor.value().toJava();
+    }
+  }
+
+  /**
+   * Convert a SMAX document into a BaseX document node through a W3C DOM document.
+   */
+  private static Value domDocument(SmaxDocument smaxDocument, QueryContext qc) throws Exception
+  {
+    return JavaCall.toValue(Dom.documentFromSmax(smaxDocument, true), qc, null);
+  }
+
+  private static SmaxDocument parse(String xml, Map<String, String> options) throws Exception
+  {
+    SmaxDocument document = XmlString.toSmax(xml);
+    new WaxeyePEGParser(numberGrammar, options, logger).scan(document);
+    return document;
+  }
+
+  private static SmaxDocument parse(SmaxDocument document) throws Exception
+  {
+    new WaxeyePEGParser(numberGrammar, new HashMap<>(), logger).scan(document);
+    return document;
+  }
+
+
+  @Test
+  void test_Builder_Namespaces_1() throws Exception
+  {
+    // Namespaces are declared where they come into scope, for the elements of the input and for the inserted elements.
+    String xml = "<doc xmlns='urn:a' xmlns:b='urn:b'><b:p b:att='1' plain='2'>x 12 y <c xmlns='urn:c'>34 <b:d>5</b:d></c></b:p><e>6</e></doc>";
+    Map<String, String> options = new HashMap<>();
+    try (QueryContext qc = new QueryContext(context)) {
+      SmaxDocument document = parse(xml, options);
+      assertSameNodes(domDocument(document, qc), "", BaseXNodeBuilder.document(document));
+      options.put("namespace-prefix", "n");
+      options.put("namespace-uri", "urn:n");
+      document = parse(xml, options);
+      assertSameNodes(domDocument(document, qc), "", BaseXNodeBuilder.document(document));
+    }
+  }
+
+  @Test
+  void test_Builder_Namespaces_2() throws Exception
+  {
+    // The inserted elements have no namespace, within an element with a default namespace.
+    SmaxDocument document = parse("<doc xmlns='urn:a'>x 12</doc>", new HashMap<>());
+    try (QueryContext qc = new QueryContext(context)) {
+      assertSameNodes(domDocument(document, qc), "", BaseXNodeBuilder.document(document));
+      assertSameNodes(domDocument(document, qc), "/*", BaseXNodeBuilder.element(document));
+    }
+    assertEquals("|urn:a", query("$doc/*:doc/*:Num ! (namespace-uri(.) || '|' || namespace-uri(..))", BaseXNodeBuilder.document(document)));
+  }
+
+  @Test
+  void test_Builder_Xmlns_1() throws Exception
+  {
+    // Attributes named xmlns and xmlns:* become namespace declarations.
+    AttributesImpl attributes = new AttributesImpl();
+    attributes.addAttribute(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "", "xmlns", "CDATA", "urn:a");
+    attributes.addAttribute(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "x", "xmlns:x", "CDATA", "urn:x");
+    attributes.addAttribute("urn:x", "att", "x:att", "CDATA", "x:value");
+    SmaxElement root = new SmaxElement("urn:a", "doc", "doc", attributes).setStartPos(0).setEndPos(8);
+    AttributesImpl childAttributes = new AttributesImpl();
+    childAttributes.addAttribute(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "x", "xmlns:x", "CDATA", "urn:y");
+    SmaxElement child = new SmaxElement("urn:y", "child", "x:child", childAttributes).setStartPos(4).setEndPos(8);
+    root.setChildren(List.of(child));
+    SmaxDocument document = new SmaxDocument(root, "abc defg");
+    try (QueryContext qc = new QueryContext(context)) {
+      assertSameNodes(domDocument(document, qc), "", BaseXNodeBuilder.document(document));
+    }
+    String namespaces = "let $child := $doc/*/*:child return " +
+      "(namespace-uri-for-prefix('x', $doc/*), namespace-uri-for-prefix('x', $child), namespace-uri-for-prefix('', $child), $doc/*/@*:att)";
+    assertEquals("urn:x urn:y urn:a x:value", query(namespaces, BaseXNodeBuilder.document(document)));
+  }
+
+  @Test
+  void test_Builder_Children_1() throws Exception
+  {
+    // The children of the wrapper element for a string input.
+    String text = "a 12 b 345";
+    SmaxDocument document = new SmaxDocument(new SmaxElement("wrapper").setStartPos(0).setEndPos(text.length()), text);
+    new WaxeyePEGParser(numberGrammar, new HashMap<>(), logger).scan(document);
+    try (QueryContext qc = new QueryContext(context)) {
+      Value children = BaseXNodeBuilder.children(document, qc);
+      assertEquals(4, children.size());
+      assertSameNodes(domDocument(document, qc), "/*/node()", children);
+    }
+  }
+
+
+  @Test
+  void test_Reader_Document_1() throws Exception
+  {
+    // Attributes and namespace declarations are read from the database.
+    new CreateDB("peg-reader", "<doc xmlns='urn:a' xmlns:b='urn:b'><b:p b:att='1' plain='2'>x 12 y <c xmlns='urn:c'>34 <b:d>5</b:d></c></b:p><e>6</e></doc>").execute(context);
+    try (QueryContext qc = new QueryContext(context)) {
+      DBNode node = new DBNode(context.data());
+      SmaxDocument document = SmaxNodeReader.read(node);
+      assertNotNull(document);
+      assertSameNodes(node, "", BaseXNodeBuilder.document(document));
+      SmaxDocument domDocument = Dom.toSmax((Document)node.toJava());
+      assertSameNodes(domDocument(parse(domDocument), qc), "", BaseXNodeBuilder.document(parse(document)));
+    } finally {
+      new DropDB("peg-reader").execute(context);
+    }
+  }
+
+  @Test
+  void test_Reader_Element_1() throws Exception
+  {
+    // An element within a database document, that uses namespaces that are declared on its ancestor.
+    new CreateDB("peg-reader", "<doc xmlns='urn:a' xmlns:b='urn:b'><b:p b:att='1' plain='2'>x 12 y <c>34 <b:d>5</b:d></c></b:p></doc>").execute(context);
+    try (QueryContext qc = new QueryContext(context)) {
+      DBNode node = new DBNode(context.data(), 2);
+      assertEquals("b:p", query("name($doc)", node));
+      SmaxDocument document = SmaxNodeReader.read(node);
+      assertNotNull(document);
+      assertSameNodes(node, "", BaseXNodeBuilder.element(document), false);
+      SmaxDocument domDocument = Dom.toSmax((Element)node.toJava());
+      assertSameNodes(domDocument(parse(domDocument), qc), "/*", BaseXNodeBuilder.element(parse(document)), false);
+      assertEquals("b:p b:att Num c Num b:d Num", query("$doc/descendant-or-self::*/(., @*:att) ! name(.)", BaseXNodeBuilder.element(parse(SmaxNodeReader.read(node)))));
+    } finally {
+      new DropDB("peg-reader").execute(context);
+    }
+  }
+
+  @Test
+  void test_Reader_Null_1() throws Exception
+  {
+    // Nodes that contain comments or processing instructions are not read, and are parsed as before.
+    String[] documents = {
+      "<doc>a 12 <!-- 3 --> b 4</doc>",
+      "<doc>a 12 <?pi 3?> b <p>4</p></doc>",
+      "<!-- 3 --><doc>a 12 b 4</doc>"
+    };
+    for (String xml : documents) {
+      new CreateDB("peg-reader", xml).execute(context);
+      try {
+        DBNode node = new DBNode(context.data());
+        assertNull(SmaxNodeReader.read(node));
+        String parse = "serialize(peg:waxeye-peg-parser('" + numberGrammar + "', map{})(";
+        String query = PROLOG + "let $db := db:get('peg-reader') return " +
+          parse + "$db)) eq " + parse + "document { $db/node() }))";
+        try (QueryProcessor processor = new QueryProcessor(query, context)) {
+          assertEquals(Boolean.TRUE, processor.value().toJava());
+        }
+      } finally {
+        new DropDB("peg-reader").execute(context);
+      }
+    }
+  }
+
+  @Test
+  void test_Reader_Null_2() throws Exception
+  {
+    // Document nodes that do not contain exactly one element are not read.
+    String create = "db:create('peg-reader', (document { 'a 12' }, document { <a>1</a>, <b>2</b> }), ('text.xml', 'two.xml'))";
+    try (QueryProcessor processor = new QueryProcessor(create, context)) {
+      processor.value();
+    }
+    try (QueryProcessor processor = new QueryProcessor("db:get('peg-reader')", context)) {
+      Value documents = processor.value();
+      assertEquals(2, documents.size());
+      for (Item document : documents) {
+        assertNull(SmaxNodeReader.read((DBNode)document));
+      }
+      // The elements in the document are read.
+      assertNotNull(SmaxNodeReader.read(new DBNode(((DBNode)documents.itemAt(1)).data(), ((DBNode)documents.itemAt(1)).pre() + 1)));
+    } finally {
+      new DropDB("peg-reader").execute(context);
+    }
+  }
+
+}
@@ -0,0 +1,268 @@
+package org.greenmercury.basex.xquery.functions.peg.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.basex.core.Context;
+import org.basex.core.MainOptions;
+import org.basex.core.cmd.CreateDB;
+import org.basex.core.cmd.CreateUser;
+import org.basex.core.cmd.DropDB;
+import org.basex.core.cmd.DropUser;
+import org.basex.query.QueryException;
+import org.basex.query.QueryProcessor;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+/**
+ * Tests of the XQuery functions in the PEGModule, run as queries in BaseX.
+ */
+public class PEGModuleTest
+{
+
+  private static final String PROLOG = "import module namespace peg='org.greenmercury.basex.xquery.functions.peg.PEGModule';\n";
+
+  private static final String numberGrammar = "Num <- +[0-9]";
+
+  private static Context context;
+
+
+  @BeforeAll
+  static void createContext()
+  {
+    context = new Context();
+    // Databases that are made by the tests are kept in memory.
+    context.options.set(MainOptions.MAINMEM, true);
+  }
+
+  @AfterAll
+  static void closeContext()
+  {
+    context.close();
+  }
+
+
+  /**
+   * Run a query, and return its result as a string.
+   * Nodes are serialized, and a sequence is serialized without separators.
+   */
+  private static String query(String query) throws Exception
+  {
+    return query(query, context);
+  }
+
+  /**
+   * Run a query in a given context, for example for another user, and return its result as a string.
+   */
+  private static String query(String query, Context queryContext) throws Exception
+  {
+    try (QueryProcessor processor = new QueryProcessor(PROLOG + "serialize((" + query + "), map { 'item-separator': '' })", queryContext)) {
+      return (String)processor.value().toJava();
+    }
+  }
+
+  /**
+   * @return an XQuery string literal for a string.
+   */
+  private static String literal(String string)
+  {
+    return "\"" + string.replace("&", "&amp;").replace("\"", "\"\"") + "\"";
+  }
+
+
+  @Test
+  void test_ParseAll_1() throws Exception
+  {
+    // Strings, elements and documents give the same results, in the same order, as the parser function applied to each input.
+    String inputs = "let $inputs := ('a 1', <p>b 22</p>, document { <d>3 c</d> }, 'no numbers', <p>4</p>) return ";
+    String expected = query(inputs + "$inputs ! peg:waxeye-peg-parser(" + literal(numberGrammar) + ", map{})(.)");
+    assertEquals("a <Num>1</Num><p>b <Num>22</Num></p><d><Num>3</Num> c</d>no numbers<p><Num>4</Num></p>", expected);
+    assertEquals(expected, query(inputs + "peg:parse-all(" + literal(numberGrammar) + ", map{}, $inputs)"));
+  }
+
+  @Test
+  void test_ParseAll_2() throws Exception
+  {
+    // More inputs than fit in one batch.
+    String inputs = "let $inputs := (1 to 2500) ! ('x' || . || ' y') return ";
+    String expected = query(inputs + "$inputs ! peg:waxeye-peg-parser(" + literal(numberGrammar) + ", map{})(.)");
+    assertTrue(expected.startsWith("x<Num>1</Num> yx<Num>2</Num> y"));
+    assertTrue(expected.endsWith("x<Num>2500</Num> y"));
+    assertEquals(expected, query(inputs + "peg:parse-all(" + literal(numberGrammar) + ", map{}, $inputs)"));
+    assertEquals("7500", query("count(peg:parse-all(" + literal(numberGrammar) + ", map{}, (1 to 2500) ! ('x' || . || ' y')))"));
+  }
+
+  @Test
+  void test_ParseAll_3() throws Exception
+  {
+    // When inputs cannot be parsed, the error for the first of them in the order of the inputs is reported.
+    String parseAll = "peg:parse-all(" + literal(numberGrammar) + ", map{'complete-match': 'true'}, ";
+    QueryException e = assertThrows(QueryException.class, () -> query(parseAll + "('1', '1a', '2', '2b'))"));
+    assertTrue(e.getMessage().contains("'a'"), e.getMessage());
+    // Also when the inputs are in different batches.
+    String inputs = "(1 to 1500) ! (if (. = 1200) then '1b' else if (. = 100) then '1a' else string(.))";
+    e = assertThrows(QueryException.class, () -> query(parseAll + inputs + ")"));
+    assertTrue(e.getMessage().contains("'a'"), e.getMessage());
+    assertEquals("<Num>1</Num><Num>2</Num>", query(parseAll + "('1', '2'))"));
+  }
+
+  @Test
+  void test_Contains_1() throws Exception
+  {
+    String contains = "peg:contains(" + literal(numberGrammar) + ", map{}, ";
+    assertEquals("true", query(contains + "'a 12 b')"));
+    assertEquals("false", query(contains + "'no numbers')"));
+    assertEquals("true", query(contains + "<doc><p>a</p><p>b 3</p></doc>)"));
+    assertEquals("false", query(contains + "document { <doc/> })"));
+  }
+
+  @Test
+  void test_Contains_2() throws Exception
+  {
+    // Scanning stops at the first match, so the error that the second 'p' element would give is not raised.
+    String options = "map{'parse-within-element': 'p', 'complete-match': 'true'}";
+    String input = "<doc><q>x</q><p>1</p><p>x</p></doc>";
+    assertThrows(QueryException.class, () -> query("peg:waxeye-peg-parser(" + literal(numberGrammar) + ", " + options + ")(" + input + ")"));
+    assertEquals("true", query("peg:contains(" + literal(numberGrammar) + ", " + options + ", " + input + ")"));
+    assertEquals("false", query("peg:contains(" + literal(numberGrammar) + ", map{'parse-within-element': 'p'}, <doc><q>1</q><p>x</p></doc>)"));
+  }
+
+  @Test
+  void test_MatchOffsets_1() throws Exception
+  {
+    String offsets = "peg:match-offsets(" + literal(numberGrammar) + ", map{}, 'a 12 b 3')";
+    assertEquals("Num:2-4 Num:7-8 ", query(offsets + " ! (?name || ':' || ?start || '-' || ?end || ' ')"));
+    assertEquals("true", query("every $offset in " + offsets + " satisfies string-join(sort(map:keys($offset)), ',') = 'end,name,start'"));
+    assertEquals("true", query("every $offset in " + offsets + " satisfies " +
+        "($offset?name instance of xs:string and $offset?start instance of xs:integer and $offset?end instance of xs:integer)"));
+  }
+
+  @Test
+  void test_MatchOffsets_2() throws Exception
+  {
+    // A parse error that is shown is named fn:error, which is different from a non-terminal named 'error'.
+    String options = "map{'complete-match': 'true', 'parse-errors': 'true'}";
+    assertEquals("fn:error:2-2 ", query("peg:match-offsets(" + literal(numberGrammar) + ", " + options + ", '12x')" +
+        " ! (?name || ':' || ?start || '-' || ?end || ' ')"));
+    assertEquals("error:0-2 ", query("peg:match-offsets(" + literal("error <- +[0-9]") + ", " + options + ", '12')" +
+        " ! (?name || ':' || ?start || '-' || ?end || ' ')"));
+  }
+
+  @Test
+  void test_ParseFile_1() throws Exception
+  {
+    Path file = Files.createTempFile("peg-test", ".txt");
+    try {
+      Files.writeString(file, "a 12 b\n3 c 456", StandardCharsets.UTF_8);
+      String path = literal(file.toString());
+      String expected = query("peg:waxeye-peg-parser(" + literal(numberGrammar) + ", map{})(unparsed-text(" + path + "))");
+      assertEquals("a <Num>12</Num> b\n<Num>3</Num> c <Num>456</Num>", expected);
+      assertEquals(expected, query("peg:parse-file(" + literal(numberGrammar) + ", map{})(" + path + ")"));
+      assertEquals("a ", query("head(peg:parse-file(" + literal(numberGrammar) + ", map{})(" + path + "))"));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  void test_ParseFile_2() throws Exception
+  {
+    // The file is read lazily, and it is closed when the query only uses the first nodes, and when it cannot be decoded.
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    assumeTrue(os instanceof UnixOperatingSystemMXBean);
+    Path goodFile = Files.createTempFile("peg-test", ".txt");
+    Path badFile = Files.createTempFile("peg-test", ".txt");
+    try {
+      ByteArrayOutputStream text = new ByteArrayOutputStream();
+      for (int i = 0; i < 10000; ++i) {
+        text.write(("line " + i + "\n").getBytes(StandardCharsets.UTF_8));
+      }
+      Files.write(goodFile, text.toByteArray());
+      text.write(new byte[] {(byte)0xFF, (byte)0xFE});
+      Files.write(badFile, text.toByteArray());
+      String goodQuery = "head(peg:parse-file(" + literal(numberGrammar) + ", map{})(" + literal(goodFile.toString()) + "))";
+      String badQuery = "peg:parse-file(" + literal(numberGrammar) + ", map{})(" + literal(badFile.toString()) + ")";
+      String badHeadQuery = "head(peg:parse-file(" + literal(numberGrammar) + ", map{})(" + literal(badFile.toString()) + "))";
+      // Warm up, so that the files that BaseX opens itself are open.
+      query(goodQuery);
+      assertThrows(QueryException.class, () -> query(badQuery));
+      long openFiles = ((UnixOperatingSystemMXBean)os).getOpenFileDescriptorCount();
+      for (int i = 0; i < 50; ++i) {
+        assertEquals("line ", query(goodQuery));
+        assertThrows(QueryException.class, () -> query(badQuery));
+        // The bytes that cannot be decoded are at the end of the file, which is not read.
+        assertEquals("line ", query(badHeadQuery));
+      }
+      assertTrue(((UnixOperatingSystemMXBean)os).getOpenFileDescriptorCount() < openFiles + 10);
+    } finally {
+      Files.delete(goodFile);
+      Files.delete(badFile);
+    }
+  }
+
+  @Test
+  void test_ParseChunks_1() throws Exception
+  {
+    // Chunks may be strings, text nodes, or other items that have a string value. Matches cross the boundaries between chunks.
+    String parseChunks = "peg:parse-chunks(" + literal(numberGrammar) + ", map{})(";
+    String expected = "a <Num>123</Num> b <Num>45</Num>";
+    assertEquals(expected, query(parseChunks + "('a 1', '23 b ', '45'))"));
+    assertEquals(expected, query(parseChunks + "<lines><l>a 1</l><l>23 b </l><l>45</l></lines>/l/text())"));
+    assertEquals(expected, query(parseChunks + "(xs:untypedAtomic('a 1'), <l>23 b </l>, 45))"));
+    // The first node is final before the last chunk.
+    assertEquals("a ", query("head(" + parseChunks + "('a 1', '23 b ', '45')))"));
+  }
+
+  @Test
+  void test_ParseChunks_2() throws Exception
+  {
+    // Text nodes that are stored in a database.
+    new CreateDB("peg-chunks", "<lines><l>a 1</l><l>23 b </l><l>45</l></lines>").execute(context);
+    try {
+      String result = query("peg:parse-chunks(" + literal(numberGrammar) + ", map{})(db:get('peg-chunks')/lines/l/text())");
+      assertEquals("a <Num>123</Num> b <Num>45</Num>", result);
+    } finally {
+      new DropDB("peg-chunks").execute(context);
+    }
+  }
+
+  @Test
+  void test_RegisterNormalization_1() throws Exception
+  {
+    // A registered mapping can be used as the value of the 'normalize' option. The output contains the original characters.
+    assertEquals("", query("peg:register-normalization('test-module-x-is-a', 'ascii', map{'x': 'a'})"));
+    String parser = "peg:waxeye-peg-parser(" + literal("Word <- 'ab'") + ", map{'normalize': 'test-module-x-is-a'})";
+    assertEquals("<Word>xb</Word> and <Word>\u00e1b</Word> and cb", query(parser + "('xb and \u00e1b and cb')"));
+    assertThrows(QueryException.class, () -> query("peg:register-normalization('test-module-unknown', 'no-such-mapping', map{})"));
+    assertThrows(QueryException.class, () -> query("peg:register-normalization('test-module-xy', 'ascii', map{'xy': 'a'})"));
+  }
+
+  @Test
+  void test_RegisterNormalization_2() throws Exception
+  {
+    // Registered mappings are shared by all users, so registering needs admin permission. Parsing does not need any permission.
+    new CreateUser("peg-test-user", "peg-test-password").execute(context);
+    try {
+      Context userContext = new Context(context, null);
+      userContext.user(context.users.get("peg-test-user"));
+      assertThrows(QueryException.class,
+          () -> query("peg:register-normalization('test-module-denied', 'ascii', map{'x': 'a'})", userContext));
+      assertEquals("<Num>1</Num>", query("peg:waxeye-peg-parser(" + literal(numberGrammar) + ", map{})('1')", userContext));
+      assertThrows(QueryException.class,
+          () -> query("peg:waxeye-peg-parser(" + literal(numberGrammar) + ", map{'normalize': 'test-module-denied'})('1')"));
+    } finally {
+      new DropUser("peg-test-user").execute(context);
+    }
+  }
+
+}
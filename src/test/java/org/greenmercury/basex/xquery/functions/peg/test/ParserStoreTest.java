@@ -0,0 +1,167 @@
+package org.greenmercury.basex.xquery.functions.peg.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.greenmercury.basex.xquery.functions.peg.AutomataBuilder;
+import org.greenmercury.basex.xquery.functions.peg.AutomataParser;
+import org.greenmercury.basex.xquery.functions.peg.Grammar;
+import org.greenmercury.basex.xquery.functions.peg.GrammarReader;
+import org.greenmercury.basex.xquery.functions.peg.ParserCache;
+import org.greenmercury.basex.xquery.functions.peg.ParserStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the persistent store for compiled grammars, in a temporary directory.
+ */
+public class ParserStoreTest
+{
+
+  /* Character classes, literals, a wildcard and predicates, so that all kinds of transitions are stored. */
+  private static final String grammar =
+    "Sum   <- Num *(ws [+-] ws Num) !.\n" +
+    "Num   <- +[0-9] ?('.' +[0-9]) | 'pi' | &'e' .\n" +
+    "ws    <: *[ \\t]";
+
+  private static final String[] inputs = {"1 + 2.5 - pi", "e", "12 +", "x"};
+
+  @TempDir
+  Path root;
+
+
+  private static ParserCache.Compiled compile(String grammarText) throws Exception
+  {
+    Grammar parsedGrammar = GrammarReader.readGrammar(grammarText, "test grammar");
+    return new ParserCache.Compiled(AutomataBuilder.build(parsedGrammar), parsedGrammar);
+  }
+
+  private static String key(String grammarText)
+  {
+    return ParserCache.key(grammarText, false, null, false);
+  }
+
+  private Path file(ParserStore store, String key)
+  {
+    return store.getDirectory().resolve(key + ".automata");
+  }
+
+  private static void age(Path file, long days) throws IOException
+  {
+    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days)));
+  }
+
+
+  @Test
+  void test_RoundTrip_1() throws Exception
+  {
+    ParserStore store = ParserStore.open(root, 30);
+    ParserCache.Compiled compiled = compile(grammar);
+    AutomataParser parser = compiled.getParser();
+    store.save(key(grammar), compiled);
+    ParserCache.Compiled loaded = store.load(key(grammar));
+    assertNotNull(loaded);
+    assertTrue(loaded.getModules().isEmpty());
+    AutomataParser loadedParser = loaded.getParser();
+    assertEquals(parser.getAutomata().size(), loadedParser.getAutomata().size());
+    assertEquals(parser.getStart(), loadedParser.getStart());
+    for (String input : inputs) {
+      assertEquals(String.valueOf(parser.parse(input).getAST()), String.valueOf(loadedParser.parse(input).getAST()), input);
+    }
+    // The first set depends on the characters of the stored transitions.
+    assertEquals(parser.getFirstSet().isSelective(), loadedParser.getFirstSet().isSelective());
+    for (char c = 0; c < 128; ++c) {
+      assertEquals(parser.getFirstSet().contains(c), loadedParser.getFirstSet().contains(c));
+    }
+    assertNull(store.load(key("Num <- +[0-9]")));
+  }
+
+  @Test
+  void test_Corrupt_1() throws Exception
+  {
+    // A file that does not match its checksum is removed.
+    ParserStore store = ParserStore.open(root, 30);
+    String key = key(grammar);
+    store.save(key, compile(grammar));
+    byte[] bytes = Files.readAllBytes(file(store, key));
+    bytes[bytes.length / 2] ^= 0x55;
+    Files.write(file(store, key), bytes);
+    IOException e = assertThrows(IOException.class, () -> store.load(key));
+    assertTrue(e.getMessage().contains("checksum"), e.getMessage());
+    assertFalse(Files.exists(file(store, key)));
+    assertNull(store.load(key));
+  }
+
+  @Test
+  void test_Corrupt_2() throws Exception
+  {
+    // A file with a valid checksum and an impossible count is removed, instead of failing with a runtime exception.
+    ParserStore store = ParserStore.open(root, 30);
+    String key = key(grammar);
+    store.save(key, compile(grammar));
+    byte[] bytes = Files.readAllBytes(file(store, key));
+    // The number of modules follows the magic number, the format version, and the key.
+    ByteBuffer.wrap(bytes).putInt(4 + 4 + 2 + key.length(), -1);
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length - Long.BYTES);
+    ByteBuffer.wrap(bytes).putLong(bytes.length - Long.BYTES, crc.getValue());
+    Files.write(file(store, key), bytes);
+    IOException e = assertThrows(IOException.class, () -> store.load(key));
+    assertTrue(e.getMessage().contains("out of range"), e.getMessage());
+    assertFalse(Files.exists(file(store, key)));
+  }
+
+  @Test
+  void test_KeyMismatch_1() throws Exception
+  {
+    // A file under the name of another key is not used, and is removed.
+    ParserStore store = ParserStore.open(root, 30);
+    String key = key(grammar);
+    String otherKey = key("Num <- +[0-9]");
+    store.save(key, compile(grammar));
+    Files.copy(file(store, key), file(store, otherKey));
+    IOException e = assertThrows(IOException.class, () -> store.load(otherKey));
+    assertTrue(e.getMessage().contains("key"), e.getMessage());
+    assertFalse(Files.exists(file(store, otherKey)));
+    assertNotNull(store.load(key));
+  }
+
+  @Test
+  void test_Cleanup_1() throws Exception
+  {
+    ParserStore store = ParserStore.open(root, 30);
+    String key = key(grammar);
+    String oldKey = key("Num <- +[0-9]");
+    store.save(key, compile(grammar));
+    store.save(oldKey, compile("Num <- +[0-9]"));
+    age(file(store, oldKey), 60);
+    Path unrelatedFile = Files.writeString(store.getDirectory().resolve("notes.txt"), "not part of the store");
+    age(unrelatedFile, 60);
+    // The directory of another version, with only old files.
+    Path otherVersion = Files.createDirectory(root.resolve("v0-0123456789abcdef"));
+    Path otherVersionFile = Files.writeString(otherVersion.resolve(key + ".automata"), "old format");
+    age(otherVersionFile, 60);
+    // The directory of another version that is still used.
+    Path usedVersion = Files.createDirectory(root.resolve("v0-fedcba9876543210"));
+    Path usedVersionFile = Files.writeString(usedVersion.resolve(key + ".automata"), "old format");
+    // A directory that does not belong to the store.
+    Path unrelatedDirectory = Files.createDirectory(root.resolve("other"));
+    age(Files.writeString(unrelatedDirectory.resolve(key + ".automata"), "not part of the store"), 60);
+    ParserStore reopened = ParserStore.open(root, 30);
+    assertEquals(store.getDirectory(), reopened.getDirectory());
+    assertTrue(Files.exists(file(reopened, key)));
+    assertFalse(Files.exists(file(reopened, oldKey)));
+    assertTrue(Files.exists(unrelatedFile));
+    assertFalse(Files.exists(otherVersion));
+    assertTrue(Files.exists(usedVersionFile));
+    assertTrue(Files.exists(unrelatedDirectory.resolve(key + ".automata")));
+  }
+
+}
@@ -2,13 +2,30 @@ package org.greenmercury.basex.xquery.functions.peg.test;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.StringReader;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.basex.query.QueryException;
+import org.greenmercury.basex.xquery.functions.peg.AsciiText;
+import org.greenmercury.basex.xquery.functions.peg.AutomataBuilder;
+import org.greenmercury.basex.xquery.functions.peg.AutomataParser;
+import org.greenmercury.basex.xquery.functions.peg.CharMapping;
+import org.greenmercury.basex.xquery.functions.peg.Grammar;
+import org.greenmercury.basex.xquery.functions.peg.GrammarReader;
 import org.greenmercury.basex.xquery.functions.peg.Logger;
+import org.greenmercury.basex.xquery.functions.peg.MatchOffsets;
+import org.greenmercury.basex.xquery.functions.peg.ParserCache;
 import org.greenmercury.basex.xquery.functions.peg.WaxeyePEGParser;
 import org.greenmercury.smax.SmaxDocument;
+import org.greenmercury.smax.SmaxElement;
 import org.greenmercury.smax.convert.XmlString;
 import org.junit.jupiter.api.Test;
 
@@ -258,4 +275,399 @@ public class WaxeyePEGParserTest
     assertEquals(expectedOutput, output);
   }
 
+  @Test
+  void test_Grammar_Caseless_1() throws Exception
+  {
+    Map<String, String> options = new HashMap<String, String>();
+    String grammar = "article <- \"art.\" ws +[0-9]\nws <: +' '";
+    WaxeyePEGParser parser = new WaxeyePEGParser(grammar, options, logger);
+    SmaxDocument document = XmlString.toSmax("<p>See art. 5 and Art. 6.</p>");
+    parser.scan(document);
+    String output = simplify(document);
+    String expectedOutput = "<p>See <article>art. 5</article> and <article>Art. 6</article>.</p>";
+    assertEquals(expectedOutput, output);
+  }
+
+  @Test
+  void test_Grammar_Error_1() throws Exception
+  {
+    Map<String, String> options = new HashMap<String, String>();
+    String grammar = "A <- B 'x'";
+    Exception exception = assertThrows(RuntimeException.class, () -> new WaxeyePEGParser(grammar, options, logger));
+    assertTrue(exception.getMessage().contains("'B', which is not defined"));
+  }
+
+  @Test
+  void test_Grammar_Cache_1() throws Exception
+  {
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("cache", "true");
+    // The comment makes the grammar text different from the grammars in other tests.
+    String grammar = abcPalindromeGrammar + "# test_Grammar_Cache_1 " + System.nanoTime();
+    ParserCache parserCache = ParserCache.shared();
+    long misses = parserCache.getMisses();
+    new WaxeyePEGParser(grammar, options, logger);
+    assertTrue(parserCache.getMisses() > misses);
+    long hits = parserCache.getHits();
+    WaxeyePEGParser parser = new WaxeyePEGParser(grammar, options, logger);
+    assertTrue(parserCache.getHits() > hits);
+    SmaxDocument document = XmlString.toSmax("<p>[abcbaabba]</p>");
+    parser.scan(document);
+    String output = simplify(document);
+    String expectedOutput = "<p>[<palindrome>abcba</palindrome><palindrome>abba</palindrome>]</p>";
+    assertEquals(expectedOutput, output);
+  }
+
+  @Test
+  void test_Grammar_Cache_2() throws Exception
+  {
+    // Each request counts as one hit, miss or wait, also when requests wait for a grammar that is being compiled.
+    ParserCache parserCache = new ParserCache(10, 1_000_000, 1);
+    String key = ParserCache.key(abcPalindromeGrammar, false, null, false);
+    CountDownLatch compiling = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ParserCache.Compiler compiler = () -> {
+      compiling.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new QueryException("Interrupted");
+      }
+      Grammar grammar = GrammarReader.readGrammar(abcPalindromeGrammar, "test_Grammar_Cache_2");
+      return new ParserCache.Compiled(AutomataBuilder.build(grammar), grammar);
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<AutomataParser>> parsers = new ArrayList<>();
+      parsers.add(executor.submit(() -> parserCache.get(key, compiler)));
+      compiling.await();
+      for (int i = 0; i < 3; ++i) {
+        parsers.add(executor.submit(() -> parserCache.get(key, compiler)));
+      }
+      Thread.sleep(100);
+      release.countDown();
+      for (Future<AutomataParser> parser : parsers) {
+        assertSame(parsers.get(0).get(), parser.get());
+      }
+      assertSame(parsers.get(0).get(), parserCache.get(key, compiler));
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(1, parserCache.getMisses());
+    assertEquals(5, parserCache.getHits() + parserCache.getMisses() + parserCache.getWaits());
+  }
+
+  @Test
+  void test_Grammar_Concurrent_1() throws Exception
+  {
+    // Parsers with different options share the same cached grammar, and are used by several threads at the same time.
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("cache", "true");
+    Map<String, String> completeMatchOptions = new HashMap<String, String>();
+    completeMatchOptions.put("cache", "true");
+    completeMatchOptions.put("complete-match", "true");
+    completeMatchOptions.put("parse-errors", "true");
+    WaxeyePEGParser parser = new WaxeyePEGParser(abcPalindromeGrammar, options, logger);
+    WaxeyePEGParser completeMatchParser = new WaxeyePEGParser(abcPalindromeGrammar, completeMatchOptions, logger);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> outputs = new ArrayList<>();
+      for (int i = 0; i < 40; ++i) {
+        WaxeyePEGParser p = (i % 2 == 0) ? parser : completeMatchParser;
+        outputs.add(executor.submit(() -> {
+          SmaxDocument document = XmlString.toSmax("<p>abcbaabba</p>");
+          p.scan(document);
+          return simplify(document);
+        }));
+      }
+      for (int i = 0; i < outputs.size(); ++i) {
+        String output = outputs.get(i).get();
+        if (i % 2 == 0) {
+          assertEquals("<p><palindrome>abcba</palindrome><palindrome>abba</palindrome></p>", output);
+        } else {
+          assertTrue(output.contains("error"), output);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void test_Memoize_1() throws Exception
+  {
+    // Selective and bounded memoization give the same result as memoizing everything.
+    String text = "<c>1 + 2*3  +  (1 + 2) * 3</c>";
+    String expectedOutput = "<c><Sum><Prod><Num>1</Num></Prod> + <Prod><Num>2</Num>*<Num>3</Num></Prod>  +  "+
+      "<Prod>(<Sum><Prod><Num>1</Num></Prod> + <Prod><Num>2</Num></Prod></Sum>) * <Num>3</Num></Prod></Sum></c>";
+    String[][] memoOptions = { {"memoize", "Sum, Prod"}, {"memoize", "auto"}, {"memo-max-entries", "4"}, {"memo-max-entries", "4", "memo-overflow", "disable"} };
+    for (String[] memoOption : memoOptions) {
+      Map<String, String> options = new HashMap<String, String>();
+      for (int i = 0; i < memoOption.length; i += 2) {
+        options.put(memoOption[i], memoOption[i + 1]);
+      }
+      WaxeyePEGParser parser = new WaxeyePEGParser(calculatorGrammar, options, logger);
+      SmaxDocument document = XmlString.toSmax(text);
+      parser.scan(document);
+      assertEquals(expectedOutput, simplify(document));
+    }
+  }
+
+  @Test
+  void test_Memoize_3() throws Exception
+  {
+    // Automatic memoization gives the same result after it has chosen the automata to memoize.
+    // Every number is a lookup of Num, so the first scan passes the 1000 lookups after which automata may no longer be memoized.
+    StringBuilder text = new StringBuilder("<c>");
+    for (int i = 0; i < 1500; ++i) {
+      text.append(i).append(" + (").append(i % 7).append(" - 2)*3, ");
+    }
+    text.append("</c>");
+    WaxeyePEGParser memoizeAllParser = new WaxeyePEGParser(calculatorGrammar, new HashMap<String, String>(), logger);
+    SmaxDocument expectedDocument = XmlString.toSmax(text.toString());
+    memoizeAllParser.scan(expectedDocument);
+    String expectedOutput = simplify(expectedDocument);
+    assertTrue(expectedOutput.contains("<Sum><Prod><Num>1499</Num></Prod> + <Prod>(<Sum>"), expectedOutput.substring(expectedOutput.length() - 200));
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("memoize", "auto");
+    WaxeyePEGParser autoParser = new WaxeyePEGParser(calculatorGrammar, options, logger);
+    for (int scan = 0; scan < 3; ++scan) {
+      SmaxDocument document = XmlString.toSmax(text.toString());
+      autoParser.scan(document);
+      assertEquals(expectedOutput, simplify(document));
+    }
+  }
+
+  @Test
+  void test_Memoize_4() throws Exception
+  {
+    // When the memo table is full and results are no longer stored, there is a warning.
+    List<String> warnings = new ArrayList<>();
+    Logger warningLogger = new Logger() {
+      @Override
+      public void info(String message)
+      {
+        logger.info(message);
+      }
+      @Override
+      public void warning(String message)
+      {
+        warnings.add(message);
+      }
+      @Override
+      public void error(String message)
+      {
+        logger.error(message);
+      }
+    };
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("memo-max-entries", "4");
+    WaxeyePEGParser evictingParser = new WaxeyePEGParser(calculatorGrammar, options, warningLogger);
+    evictingParser.scan(XmlString.toSmax("<c>1 + 2*3  +  (1 + 2) * 3</c>"));
+    assertEquals(List.of(), warnings);
+    options.put("memo-overflow", "disable");
+    WaxeyePEGParser disablingParser = new WaxeyePEGParser(calculatorGrammar, options, warningLogger);
+    disablingParser.scan(XmlString.toSmax("<c>1 + 2*3  +  (1 + 2) * 3</c>"));
+    assertEquals(1, warnings.size(), warnings.toString());
+    assertTrue(warnings.get(0).contains("The memo table is full, with 4 results"), warnings.get(0));
+  }
+
+  @Test
+  void test_Memoize_2() throws Exception
+  {
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("memoize", "Sum Product");
+    Exception exception = assertThrows(RuntimeException.class, () -> new WaxeyePEGParser(calculatorGrammar, options, logger));
+    assertTrue(exception.getMessage().contains("Product"));
+  }
+
+  @Test
+  void test_Parallel_1() throws Exception
+  {
+    StringBuilder xml = new StringBuilder("<doc>");
+    for (int i = 0; i < 100; ++i) {
+      xml.append("<p>").append(i).append(" + ").append(i % 7).append("*<b>3</b></p><q>").append(i).append("</q>");
+    }
+    xml.append("</doc>");
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("parse-within-element", "p");
+    WaxeyePEGParser parser = new WaxeyePEGParser(calculatorGrammar, options, logger);
+    SmaxDocument document = XmlString.toSmax(xml.toString());
+    parser.scan(document);
+    String sequentialOutput = simplify(document);
+    options.put("parallel", "true");
+    WaxeyePEGParser parallelParser = new WaxeyePEGParser(calculatorGrammar, options, logger);
+    SmaxDocument parallelDocument = XmlString.toSmax(xml.toString());
+    parallelParser.scan(parallelDocument);
+    assertEquals(sequentialOutput, simplify(parallelDocument));
+    assertTrue(sequentialOutput.contains("<p><Sum><Prod><Num>42</Num></Prod> + "), sequentialOutput);
+    assertTrue(sequentialOutput.contains("<q>42</q>"), sequentialOutput);
+  }
+
+  @Test
+  void test_Split_1() throws Exception
+  {
+    StringBuilder xml = new StringBuilder("<doc>");
+    for (int i = 0; i < 100; ++i) {
+      xml.append("line ").append(i).append(": ").append(i).append(" + ").append(i % 7).append(" * 3\n");
+    }
+    xml.append("</doc>");
+    Map<String, String> options = new HashMap<String, String>();
+    WaxeyePEGParser parser = new WaxeyePEGParser(calculatorGrammar, options, logger);
+    SmaxDocument document = XmlString.toSmax(xml.toString());
+    parser.scan(document);
+    String sequentialOutput = simplify(document);
+    options.put("split-pattern", "\\n");
+    options.put("split-min-length", "50");
+    WaxeyePEGParser splitParser = new WaxeyePEGParser(calculatorGrammar, options, logger);
+    SmaxDocument splitDocument = XmlString.toSmax(xml.toString());
+    splitParser.scan(splitDocument);
+    assertEquals(sequentialOutput, simplify(splitDocument));
+  }
+
+  @Test
+  void test_Stream_1() throws Exception
+  {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 2000; ++i) {
+      text.append("line ").append(i).append(": ").append(i).append(" + ").append(i % 7).append(" * 3\n");
+    }
+    Map<String, String> options = new HashMap<String, String>();
+    WaxeyePEGParser parser = new WaxeyePEGParser(calculatorGrammar, options, logger);
+    SmaxDocument document = XmlString.toSmax("<doc>"+text+"</doc>");
+    parser.scan(document);
+    String documentOutput = simplify(document).replaceAll("</?doc>", "");
+    WaxeyePEGParser.StreamScanner scanner = parser.scanStream(new StringReader(text.toString()));
+    StringBuilder streamOutput = new StringBuilder();
+    SmaxDocument part;
+    while ((part = scanner.next()) != null) {
+      streamOutput.append(simplify(part).replaceAll("</?wrapper>", ""));
+    }
+    assertEquals(documentOutput, streamOutput.toString());
+    assertTrue(documentOutput.contains("line 42: <Sum><Prod><Num>42</Num></Prod> + "), documentOutput);
+  }
+
+  @Test
+  void test_Chunks_1() throws Exception
+  {
+    String text = "12 + 3*4 and (5 +\n6) * 7, 89.5-1";
+    WaxeyePEGParser parser = new WaxeyePEGParser(calculatorGrammar, new HashMap<String, String>(), logger);
+    WaxeyePEGParser.StreamScanner streamScanner = parser.scanStream(new StringReader(text));
+    StringBuilder streamOutput = new StringBuilder();
+    SmaxDocument part;
+    while ((part = streamScanner.next()) != null) {
+      streamOutput.append(simplify(part).replaceAll("</?wrapper>", ""));
+    }
+    // Push the text in chunks of 3 characters, so matches cross the boundaries between chunks.
+    WaxeyePEGParser.StreamScanner chunkScanner = parser.scanChunks();
+    StringBuilder chunkOutput = new StringBuilder();
+    for (int i = 0; i <= text.length(); i += 3) {
+      if (i < text.length()) {
+        chunkScanner.push(text.substring(i, Math.min(i + 3, text.length())));
+      } else {
+        chunkScanner.end();
+      }
+      while ((part = chunkScanner.next()) != null) {
+        chunkOutput.append(simplify(part).replaceAll("</?wrapper>", ""));
+      }
+    }
+    assertTrue(chunkScanner.isFinished());
+    assertEquals(streamOutput.toString(), chunkOutput.toString());
+    assertTrue(chunkOutput.toString().startsWith("<Sum><Prod><Num>12</Num></Prod> + <Prod><Num>3</Num>*<Num>4</Num></Prod></Sum> and "), chunkOutput.toString());
+  }
+
+  @Test
+  void test_Offsets_1() throws Exception
+  {
+    WaxeyePEGParser parser = new WaxeyePEGParser(calculatorGrammar, new HashMap<String, String>(), logger);
+    SmaxDocument document = XmlString.toSmax("<doc>x 12 + 3 y</doc>");
+    MatchOffsets offsets = parser.scanOffsets(document);
+    assertEquals("<doc>x 12 + 3 y</doc>", simplify(document));
+    StringBuilder output = new StringBuilder();
+    for (int i = 0; i < offsets.size(); ++i) {
+      output.append(offsets.name(i)).append(':').append(offsets.start(i)).append('-').append(offsets.end(i)).append(' ');
+    }
+    assertEquals("Sum:2-8 Prod:2-4 Num:2-4 Prod:7-8 Num:7-8 ", output.toString());
+  }
+
+  @Test
+  void test_MaxMatches_1() throws Exception
+  {
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("max-matches", "2");
+    WaxeyePEGParser parser = new WaxeyePEGParser(calculatorGrammar, options, logger);
+    SmaxDocument document = XmlString.toSmax("<doc>1 and 2 and 3 and 4</doc>");
+    parser.scan(document);
+    assertEquals("<doc><Sum><Prod><Num>1</Num></Prod></Sum> and <Sum><Prod><Num>2</Num></Prod></Sum> and 3 and 4</doc>", simplify(document));
+    options.put("parse-within-element", "p");
+    WaxeyePEGParser withinParser = new WaxeyePEGParser(calculatorGrammar, options, logger);
+    SmaxDocument withinDocument = XmlString.toSmax("<doc><p>1 and 2</p><p>3</p></doc>");
+    MatchOffsets offsets = withinParser.scanOffsets(withinDocument);
+    int nrSums = 0;
+    for (int i = 0; i < offsets.size(); ++i) {
+      if (offsets.name(i).equals("Sum")) {
+        ++nrSums;
+      }
+    }
+    assertEquals(2, nrSums);
+  }
+
+  @Test
+  void test_AsciiText_1() throws Exception
+  {
+    String text = "x 12 + 3 y (4 - 5)*6";
+    WaxeyePEGParser parser = new WaxeyePEGParser(calculatorGrammar, new HashMap<String, String>(), logger);
+    SmaxDocument stringDocument = new SmaxDocument(new SmaxElement("wrapper").setStartPos(0).setEndPos(text.length()), text);
+    parser.scan(stringDocument);
+    AsciiText asciiText = AsciiText.of(text.getBytes(StandardCharsets.UTF_8));
+    SmaxDocument asciiDocument = new SmaxDocument(new SmaxElement("wrapper").setStartPos(0).setEndPos(text.length()), asciiText);
+    parser.scan(asciiDocument);
+    assertEquals(simplify(stringDocument), simplify(asciiDocument));
+    assertNull(AsciiText.of("caf\u00e9".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  void test_Normalization_1() throws Exception
+  {
+    assertEquals('e', CharMapping.forName("ascii").map('\u00e9'));
+    Map<String, String> changes = new HashMap<String, String>();
+    changes.put("x", "a");
+    CharMapping.register("test-x-is-a", CharMapping.forName("ascii").with(changes));
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("normalize", "test-x-is-a");
+    WaxeyePEGParser parser = new WaxeyePEGParser("Word <- 'ab'", options, logger);
+    SmaxDocument document = XmlString.toSmax("<doc>xb and \u00e1b and cb</doc>");
+    parser.scan(document);
+    assertEquals("<doc><Word>xb</Word> and <Word>\u00e1b</Word> and cb</doc>", simplify(document));
+    changes.put("xy", "a");
+    assertThrows(IllegalArgumentException.class, () -> CharMapping.forName("ascii").with(changes));
+  }
+
+  @Test
+  void test_CaseInsensitive_1() throws Exception
+  {
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("case-insensitive", "true");
+    WaxeyePEGParser parser = new WaxeyePEGParser("Art <- 'art.' ' ' +[0-9A-C]", options, logger);
+    SmaxDocument document = XmlString.toSmax("<doc>ART. 12 and Art. 3b and arts. 4</doc>");
+    parser.scan(document);
+    assertEquals("<doc><Art>ART. 12</Art> and <Art>Art. 3b</Art> and arts. 4</doc>", simplify(document));
+  }
+
+  @Test
+  void test_WordCharacters_1() throws Exception
+  {
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("match-whole-words", "true");
+    WaxeyePEGParser parser = new WaxeyePEGParser("Word <- 'ab'", options, logger);
+    SmaxDocument document = XmlString.toSmax("<doc>ab abc ab_c xab ab-d</doc>");
+    parser.scan(document);
+    assertEquals("<doc><Word>ab</Word> abc <Word>ab</Word>_c xab <Word>ab</Word>-d</doc>", simplify(document));
+    options.put("word-characters", "[\\p{L}\\p{N}_]");
+    WaxeyePEGParser underscoreParser = new WaxeyePEGParser("Word <- 'ab'", options, logger);
+    SmaxDocument underscoreDocument = XmlString.toSmax("<doc>ab abc ab_c xab ab-d</doc>");
+    underscoreParser.scan(underscoreDocument);
+    assertEquals("<doc><Word>ab</Word> abc ab_c xab <Word>ab</Word>-d</doc>", simplify(underscoreDocument));
+  }
+
 }